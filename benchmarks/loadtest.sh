@@ -0,0 +1,40 @@
+#!/bin/sh
+#
+# End-to-end load test on one machine, without network access: starts the
+# service with mvn jetty:run against a local stub of the source feeds, runs
+# the steady and the storm workloads of LoadDriver, and stops the service.
+#
+# Build first (mvn install in the project root, mvn package here). Any
+# LoadDriver and StubFeedServer options can be given, e.g.
+#
+#   ./loadtest.sh --concurrency 64 --duration 60 --latency 50 --jitter 50 --errorRate 0.05
+#
+# Environment: PORT (8080), STUB_PORT (8765), FEEDS (4), REFRESH_MILLIS (1000)
+
+set -e
+cd "$(dirname "$0")"
+PORT=${PORT:-8080}
+STUB_PORT=${STUB_PORT:-8765}
+FEEDS=${FEEDS:-4}
+REFRESH_MILLIS=${REFRESH_MILLIS:-1000}
+
+SOURCES=""
+i=0
+while [ $i -lt $FEEDS ]; do
+    SOURCES="$SOURCES${SOURCES:+,}http://127.0.0.1:$STUB_PORT/feed$i.xml"
+    i=$((i + 1))
+done
+
+# The service does not fetch anything before the first request, so it can
+# be started before the stub. The snapshot file is not used, every run
+# starts cold.
+(cd .. && exec mvn -o -q jetty:run -Djetty.port=$PORT \
+    -Drssmergett.sources=$SOURCES \
+    -Drssmergett.refresh.intervalMillis=$REFRESH_MILLIS \
+    -Drssmergett.snapshot.enabled=false) > target/loadtest-service.log 2>&1 &
+SERVICE=$!
+trap 'kill $SERVICE 2>/dev/null' EXIT INT TERM
+
+java -cp target/benchmarks.jar com.sanoma.rssmergett.benchmarks.LoadDriver \
+    --target http://127.0.0.1:$PORT --stubPort $STUB_PORT --feeds $FEEDS \
+    --waitSeconds 180 "$@"
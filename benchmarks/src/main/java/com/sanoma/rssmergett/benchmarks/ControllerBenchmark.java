@@ -0,0 +1,186 @@
+package com.sanoma.rssmergett.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.LocaleResolver;
+import org.springframework.web.servlet.i18n.AcceptHeaderLocaleResolver;
+import com.sanoma.rssmergett.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControllerBenchmark
+{
+    /**
+     * Benchmarks for the request paths of the controllers, from the action
+     * handler to the bytes written to the response. The source feeds are
+     * served by an in-process StubFeedServer.
+     *
+     * The cache hit benchmarks serve the current snapshot, in the locale of
+     * the snapshot or in another one. The refresh
+     * benchmarks rebuild the snapshot, either with unchanged sources (the
+     * sources answer 304) or with every source changed.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Number of source feeds */
+    @Param({"4", "32"})
+    public int feeds;
+
+    /** Total number of items in the source feeds */
+    @Param({"100", "1000"})
+    public int items;
+
+    private static final Locale FINNISH = new Locale("fi");
+
+    /** Locale resolver the DispatcherServlet would provide */
+    private static final LocaleResolver LOCALE_RESOLVER = new AcceptHeaderLocaleResolver();
+
+    private StubFeedServer server;
+    private RssController rssController;
+    private HtmlController htmlController;
+    private FeedMetadata metadata;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        /* Per request logging would dominate the numbers */
+        Logger.getRootLogger().setLevel(Level.WARN);
+        Logger.getLogger("com.sanoma").setLevel(Level.WARN);
+
+        long now = System.currentTimeMillis();
+        server = new StubFeedServer(new byte[][][] {
+                RssFixtures.generate(feeds, items, now, 0),
+                RssFixtures.generate(feeds, items, now, 1)
+            });
+
+        /* Must be set before RssFetchAndCombine is first used */
+        StringBuilder sources = new StringBuilder();
+        for (String url : server.getURLs()) {
+            if (sources.length() > 0) sources.append(',');
+            sources.append(url);
+        }
+        System.setProperty("rssmergett.sources", sources.toString());
+        System.setProperty("rssmergett.refresh.intervalMillis", String.valueOf(24L * 3600 * 1000));
+        System.setProperty("rssmergett.index.maxItems", String.valueOf(Math.max(500, items)));
+        /* Saving the snapshot runs after the refresh, keep the file I/O out of the numbers */
+        System.setProperty("rssmergett.snapshot.enabled", "false");
+
+        StaticMessageSource messages = new StaticMessageSource();
+        String[][] texts = new String[][] {
+            { "feed.title", "Combined feed" },
+            { "feed.imageURL", "http://example.com/logo.png" },
+            { "feed.imageTitle", "Logo" },
+            { "feed.imageLink", "http://example.com/" },
+            { "feed.description", "News" },
+            { "feed.link", "http://example.com/" },
+            { "feed.language", "en" }
+        };
+        for (String[] text : texts) {
+            /* The default locale of the mock requests */
+            messages.addMessage(text[0], Locale.ENGLISH, text[1]);
+            messages.addMessage(text[0], FINNISH, text[1]);
+        }
+        messages.addMessage("feed.title", FINNISH, "Yhdistetty syöte");
+        messages.addMessage("feed.language", FINNISH, "fi");
+        metadata = new FeedMetadata(texts[0][1], texts[1][1], texts[2][1], texts[3][1],
+                                    texts[4][1], texts[5][1], texts[6][1]);
+
+        FeedMetadataCache metadataCache = new FeedMetadataCache();
+        metadataCache.setMessageSource(messages);
+        rssController = new RssController();
+        rssController.setFeedMetadataCache(metadataCache);
+        htmlController = new HtmlController();
+        htmlController.setFeedMetadataCache(metadataCache);
+
+        /* Build the first snapshot outside the measurement */
+        RssFetchAndCombine.refreshNow(metadata);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        server.stop();
+    }
+
+    private static MockHttpServletRequest request(String uri, boolean gzip)
+    {
+        return request(uri, gzip, Locale.ENGLISH);
+    }
+
+    private static MockHttpServletRequest request(String uri, boolean gzip, Locale locale)
+    {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.addPreferredLocale(locale);
+        request.setAttribute(DispatcherServlet.LOCALE_RESOLVER_ATTRIBUTE, LOCALE_RESOLVER);
+        if (gzip) {
+            request.addHeader("Accept-Encoding", "gzip, deflate");
+        }
+        return request;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse rssCacheHit() throws Exception
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        rssController.rssAction(request("/rss", false), response, null, null, null);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse rssCacheHitGzip() throws Exception
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        rssController.rssAction(request("/rss", true), response, null, null, null);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse rssLocalizedCacheHit() throws Exception
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        rssController.rssAction(request("/rss", true, FINNISH), response, null, null, null);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse rssPageCacheHit() throws Exception
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        rssController.rssAction(request("/rss", true), response, null, "20", null);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse htmlCacheHit() throws Exception
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        htmlController.htmlAction(request("/html", true), response, null, null, null);
+        return response;
+    }
+
+    @Benchmark
+    public RssSnapshot refreshUnchanged() throws Exception
+    {
+        return RssFetchAndCombine.refreshNow(metadata);
+    }
+
+    @Benchmark
+    public RssSnapshot refreshChanged() throws Exception
+    {
+        server.nextVersion();
+        return RssFetchAndCombine.refreshNow(metadata);
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.sanoma.rssmergett.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import com.sanoma.rssmergett.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlBenchmark
+{
+    /**
+     * Benchmarks for the XSLT rendering of the combined feed as HTML: a
+     * render of content the renderer has not seen (what the first request
+     * after a refresh pays) and a render of cached content (what every
+     * other request pays).
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Number of items in the combined feed */
+    @Param({"10", "1000", "10000"})
+    public int items;
+
+    private RssHtmlRenderer renderer;
+    private byte[] rss;
+    private FeedContent cached;
+    private FeedContent fresh;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        renderer = RssHtmlRenderer.createFromConfig();
+        StaxRssXmlMerger merger = new StaxRssXmlMerger();
+        rss = merger.merge(RssFixtures.streams(RssFixtures.generate(4, items, System.currentTimeMillis(), 0)),
+                           "title", "imageURL", "imageTitle", "imageLink", "description", "link", "fi");
+        cached = FeedContent.create(rss, RssSnapshot.CONTENT_TYPE);
+        renderer.render(cached);
+    }
+
+    /** New content object for every call, so that the renderer cache misses */
+    @Setup(Level.Invocation)
+    public void newContent()
+    {
+        fresh = FeedContent.create(rss, RssSnapshot.CONTENT_TYPE, 0L);
+    }
+
+    @Benchmark
+    public FeedContent renderNew() throws Exception
+    {
+        return renderer.render(fresh);
+    }
+
+    @Benchmark
+    public FeedContent renderCached() throws Exception
+    {
+        return renderer.render(cached);
+    }
+
+}
@@ -0,0 +1,310 @@
+package com.sanoma.rssmergett.benchmarks;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class LoadDriver
+{
+    /**
+     * End-to-end load test of a running rssmergett service. The driver
+     * starts a StubFeedServer in place of the real sources, and a number of
+     * clients that send requests to the service over HTTP as fast as they
+     * get answers (a closed loop: latencies are measured per request, and a
+     * slow service gets fewer requests rather than a queue). At the end it
+     * reports the throughput and the latency percentiles of each path.
+     *
+     * Two workloads are run:
+     * - steady: the sources do not change, so the service serves its cached
+     *   snapshot and refreshes cost only conditional requests.
+     * - storm: the sources change every --changeMillis, and the clients
+     *   send their requests in waves, all at the same moment, so that many
+     *   requests arrive while the service is rebuilding the combined feed.
+     *   Run the service with a short rssmergett.refresh.intervalMillis for
+     *   this workload.
+     *
+     * The service has to be started with the sources of the stub, e.g.
+     *   mvn jetty:run -Drssmergett.sources=http://127.0.0.1:8765/feed0.xml,..
+     * The stub is only started when the driver starts, so the service has
+     * to be started without requests. See loadtest.sh for a script running
+     * the whole test.
+     *
+     * Options (besides the options of StubFeedServer): --target
+     * (http://127.0.0.1:8080), --paths (/rss,/html), --workload (steady,
+     * storm or both), --concurrency (32), --duration and --warmup (seconds),
+     * --gzip (true: accept gzip), --clientEtags (true: clients send the ETag
+     * of their last response, like feed readers do), --stub (false if the
+     * stub is run separately), --waitSeconds (time to wait for the service).
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Size of the buffer responses are read into */
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    /**
+     * Latencies and errors of one path, recorded by one client.
+     */
+    private static final class Recorder
+    {
+        long[] micros = new long[4096];
+        int count = 0;
+        long errors = 0;
+        long notModified = 0;
+        long bytes = 0;
+
+        void record(long latencyMicros)
+        {
+            if (count == micros.length) {
+                micros = Arrays.copyOf(micros, count * 2);
+            }
+            micros[count++] = latencyMicros;
+        }
+    }
+
+    private LoadDriver()
+    {
+    }
+
+    /**
+     * Run one workload and print its results.
+     * @param name Name of the workload
+     * @param urls URLs the requests are sent to, in turn
+     * @param concurrency Number of clients
+     * @param warmupMillis Time (in milliseconds) before the measurement starts
+     * @param durationMillis Duration of the measurement in milliseconds
+     * @param waves Whether the clients send their requests in waves
+     * @param gzip Whether the clients accept gzip
+     * @param clientEtags Whether the clients send conditional requests
+     */
+    private static void runWorkload(String name, final String[] urls, int concurrency,
+                                    long warmupMillis, long durationMillis, final boolean waves,
+                                    final boolean gzip, final boolean clientEtags)
+        throws InterruptedException
+    {
+        System.out.println("Running " + name + ": " + concurrency + " clients, "
+                           + warmupMillis / 1000 + " s warmup, " + durationMillis / 1000 + " s measurement");
+        final long measureStart = System.currentTimeMillis() + warmupMillis;
+        final long measureEnd = measureStart + durationMillis;
+        /* In waves, the end is decided once per wave so that all clients stop together */
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final CyclicBarrier wave = !waves ? null : new CyclicBarrier(concurrency, new Runnable() {
+                public void run() {
+                    if (System.currentTimeMillis() >= measureEnd) {
+                        finished.set(true);
+                    }
+                }
+            });
+        final Recorder[][] recorders = new Recorder[concurrency][urls.length];
+
+        List<Thread> clients = new ArrayList<Thread>(concurrency);
+        for (int c=0; c<concurrency; c++) {
+            final Recorder[] clientRecorders = recorders[c];
+            for (int u=0; u<urls.length; u++) {
+                clientRecorders[u] = new Recorder();
+            }
+            final int firstUrl = c % urls.length;
+            Thread client = new Thread(new Runnable() {
+                    public void run() {
+                        String[] etags = new String[urls.length];
+                        byte[] buffer = new byte[READ_BUFFER_SIZE];
+                        for (long n=firstUrl; ; n++) {
+                            int u = (int) (n % urls.length);
+                            if (wave != null) {
+                                try {
+                                    wave.await();
+                                } catch (Exception e) {
+                                    return;
+                                }
+                            }
+                            long now = System.currentTimeMillis();
+                            if (wave != null ? finished.get() : now >= measureEnd) {
+                                return;
+                            }
+                            boolean measured = now >= measureStart;
+                            long startNanos = System.nanoTime();
+                            int status = request(urls[u], gzip, clientEtags ? etags : null, u, buffer,
+                                                 measured ? clientRecorders[u] : null);
+                            long latencyMicros = (System.nanoTime() - startNanos) / 1000;
+                            if (measured) {
+                                Recorder recorder = clientRecorders[u];
+                                recorder.record(latencyMicros);
+                                if (status == 304) {
+                                    recorder.notModified++;
+                                } else if (status != 200) {
+                                    recorder.errors++;
+                                }
+                            }
+                        }
+                    }
+                }, "load-client-" + c);
+            client.start();
+            clients.add(client);
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        double seconds = durationMillis / 1000.0;
+        for (int u=0; u<urls.length; u++) {
+            Recorder total = new Recorder();
+            for (int c=0; c<concurrency; c++) {
+                Recorder recorder = recorders[c][u];
+                if (total.micros.length < total.count + recorder.count) {
+                    total.micros = Arrays.copyOf(total.micros, total.count + recorder.count);
+                }
+                System.arraycopy(recorder.micros, 0, total.micros, total.count, recorder.count);
+                total.count += recorder.count;
+                total.errors += recorder.errors;
+                total.notModified += recorder.notModified;
+                total.bytes += recorder.bytes;
+            }
+            report(name, urls[u], total, seconds);
+        }
+    }
+
+    /**
+     * Send one request and read the response.
+     * @return HTTP status, or -1 if the request failed
+     */
+    private static int request(String url, boolean gzip, String[] etags, int u, byte[] buffer, Recorder recorder)
+    {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setUseCaches(false);
+            if (gzip) {
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+            }
+            if (etags != null && etags[u] != null) {
+                connection.setRequestProperty("If-None-Match", etags[u]);
+            }
+            int status = connection.getResponseCode();
+            InputStream is = (status >= 400) ? connection.getErrorStream() : connection.getInputStream();
+            long length = 0;
+            if (is != null) {
+                try {
+                    int n;
+                    while ((n = is.read(buffer)) != -1) {
+                        length += n;
+                    }
+                } finally {
+                    /* Closing the fully read stream keeps the connection for the next request */
+                    try { is.close(); } catch (Throwable tt) { /* ignore */ }
+                }
+            }
+            if (etags != null && status == 200) {
+                etags[u] = connection.getHeaderField("ETag");
+            }
+            if (recorder != null) {
+                recorder.bytes += length;
+            }
+            return status;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return -1;
+        }
+    }
+
+    private static void report(String workload, String url, Recorder total, double seconds)
+    {
+        long[] micros = Arrays.copyOf(total.micros, total.count);
+        Arrays.sort(micros);
+        System.out.println(String.format(Locale.US,
+            "%-7s %-32s %9d requests %7d errors %8d 304 %10.1f req/s %8.1f MB/s"
+            + "  p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms",
+            workload, url, total.count, total.errors, total.notModified,
+            total.count / seconds, total.bytes / seconds / 1e6,
+            percentile(micros, 0.50), percentile(micros, 0.90), percentile(micros, 0.99),
+            percentile(micros, 0.999), percentile(micros, 1.0)));
+    }
+
+    /**
+     * Get a percentile of sorted latencies.
+     * @return The latency in milliseconds
+     */
+    private static double percentile(long[] sortedMicros, double quantile)
+    {
+        if (sortedMicros.length == 0) return 0.0;
+        int index = (int) Math.ceil(quantile * sortedMicros.length) - 1;
+        return sortedMicros[Math.max(0, Math.min(sortedMicros.length - 1, index))] / 1000.0;
+    }
+
+    /**
+     * Wait until the service answers.
+     * @return true if the service answered in time
+     */
+    private static boolean waitFor(String url, long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        while (System.currentTimeMillis() < deadline) {
+            if (request(url, false, null, 0, buffer, null) == 200) {
+                return true;
+            }
+            Thread.sleep(500L);
+        }
+        return false;
+    }
+
+    public static void main(String[] arg) throws Exception
+    {
+        LoadOptions options = new LoadOptions(arg);
+        String target = options.getString("target", "http://127.0.0.1:8080");
+        String[] paths = options.getString("paths", "/rss,/html").split(",");
+        String workload = options.getString("workload", "both");
+        int concurrency = options.getInt("concurrency", 32);
+        long durationMillis = options.getLong("duration", 30L) * 1000;
+        long warmupMillis = options.getLong("warmup", 5L) * 1000;
+        boolean gzip = options.getBoolean("gzip", true);
+        boolean clientEtags = options.getBoolean("clientEtags", false);
+        long changeMillis = options.getLong("changeMillis", 1000L);
+
+        /* Keep a connection per client */
+        System.setProperty("http.maxConnections", String.valueOf(concurrency));
+
+        String[] urls = new String[paths.length];
+        for (int i=0; i<paths.length; i++) {
+            urls[i] = target + paths[i];
+        }
+
+        StubFeedServer stub = null;
+        if (options.getBoolean("stub", true)) {
+            stub = StubFeedServer.start(options);
+            stub.setChangeInterval(0);
+            StringBuilder sources = new StringBuilder();
+            for (String url : stub.getURLs()) {
+                if (sources.length() > 0) sources.append(',');
+                sources.append(url);
+            }
+            System.out.println("Stub sources: -Drssmergett.sources=" + sources);
+        }
+        try {
+            if (!waitFor(urls[0], options.getLong("waitSeconds", 60L) * 1000)) {
+                System.err.println("The service at " + urls[0] + " does not answer");
+                System.exit(-1);
+            }
+            if ("steady".equals(workload) || "both".equals(workload)) {
+                runWorkload("steady", urls, concurrency, warmupMillis, durationMillis, false, gzip, clientEtags);
+            }
+            if ("storm".equals(workload) || "both".equals(workload)) {
+                if (stub != null) {
+                    stub.setChangeInterval(changeMillis);
+                }
+                runWorkload("storm", urls, concurrency, warmupMillis, durationMillis, true, gzip, clientEtags);
+            }
+            if (stub != null) {
+                System.out.println("Stub responses: " + stub.getStats());
+            }
+        } finally {
+            if (stub != null) {
+                stub.stop();
+            }
+        }
+    }
+
+}
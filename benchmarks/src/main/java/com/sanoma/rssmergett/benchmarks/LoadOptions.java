@@ -0,0 +1,61 @@
+package com.sanoma.rssmergett.benchmarks;
+
+import java.util.*;
+
+public class LoadOptions
+{
+    /**
+     * Command line options of the load test tools, given as
+     * "--name value" pairs.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /**
+     * Parse options.
+     * @param arg Command line arguments
+     * @throws IllegalArgumentException if an argument is not a "--name value" pair
+     */
+    public LoadOptions(String[] arg)
+    {
+        for (int i=0; i<arg.length; i+=2) {
+            if (!arg[i].startsWith("--") || i + 1 >= arg.length) {
+                throw new IllegalArgumentException("Expected --name value, got " + arg[i]);
+            }
+            values.put(arg[i].substring(2), arg[i + 1]);
+        }
+    }
+
+    public String getString(String name, String defaultValue)
+    {
+        String value = values.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public int getInt(String name, int defaultValue)
+    {
+        String value = values.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    public long getLong(String name, long defaultValue)
+    {
+        String value = values.get(name);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    public double getDouble(String name, double defaultValue)
+    {
+        String value = values.get(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue)
+    {
+        String value = values.get(name);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.sanoma.rssmergett.benchmarks;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import com.sanoma.rssmergett.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeBenchmark
+{
+    /**
+     * Benchmarks for parsing and combining the source feeds with both merge
+     * engines: parsing alone, rendering already parsed items, and the whole
+     * parse and merge.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Merge engine, see rssmergett.merge.engine */
+    @Param({"stax", "dom"})
+    public String engine;
+
+    /** Number of source feeds */
+    @Param({"4", "32", "256"})
+    public int feeds;
+
+    /** Total number of items in the source feeds */
+    @Param({"10", "1000", "10000"})
+    public int items;
+
+    private RssXmlMerger merger;
+    private byte[][] sources;
+    private List<List<RssItem>> parsed;
+    private List<RssItem> merged;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        merger = "dom".equals(engine) ? new RssXmlMerger() : new StaxRssXmlMerger();
+        sources = RssFixtures.generate(feeds, items, System.currentTimeMillis(), 0);
+        parsed = parse();
+        merged = new ArrayList<RssItem>();
+        for (List<RssItem> source : parsed) {
+            merged.addAll(source);
+        }
+    }
+
+    @Benchmark
+    public List<List<RssItem>> parse() throws Exception
+    {
+        List<List<RssItem>> result = new ArrayList<List<RssItem>>(sources.length);
+        for (InputStream input : RssFixtures.streams(sources)) {
+            result.add(merger.parseItems(input));
+        }
+        return result;
+    }
+
+    @Benchmark
+    public byte[] render() throws Exception
+    {
+        return merger.render(merged, "title", "imageURL", "imageTitle", "imageLink",
+                             "description", "link", "fi");
+    }
+
+    @Benchmark
+    public byte[] mergeParsed() throws Exception
+    {
+        return merger.merge(parsed, "title", "imageURL", "imageTitle", "imageLink",
+                            "description", "link", "fi");
+    }
+
+    @Benchmark
+    public byte[] parseAndMerge() throws Exception
+    {
+        return merger.merge(RssFixtures.streams(sources), "title", "imageURL", "imageTitle", "imageLink",
+                            "description", "link", "fi");
+    }
+
+}
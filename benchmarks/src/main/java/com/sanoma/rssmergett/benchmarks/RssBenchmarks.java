@@ -0,0 +1,37 @@
+package com.sanoma.rssmergett.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class RssBenchmarks
+{
+    /**
+     * Entry point of benchmarks.jar. Takes the usual JMH command line
+     * options, and always adds the GC profiler so that the allocation rate
+     * is reported next to the throughput and the average time.
+     *
+     * Examples:
+     *   java -jar target/benchmarks.jar                      (everything)
+     *   java -jar target/benchmarks.jar MergeBenchmark -p engine=stax
+     *   java -jar target/benchmarks.jar ControllerBenchmark.rssCacheHit -rf json
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    private RssBenchmarks()
+    {
+    }
+
+    public static void main(String[] arg) throws Exception
+    {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(arg))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.sanoma.rssmergett.benchmarks;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+public class RssFixtures
+{
+    /**
+     * Generator for synthetic source RSS feeds. The feeds look like the real
+     * sources: items with title, link, guid, description, pubDate and
+     * dc:date, Finnish text with characters that need escaping, and some
+     * stories published in several feeds. The output is deterministic for
+     * a given seed, so benchmark runs are comparable.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    private static final String[] WORDS = new String[] {
+        "Nokia", "Kone", "pörssi", "osake", "tulos", "yhtiö", "sähköauto", "korko",
+        "työllisyys", "vienti", "Helsinki", "Tampere", "kasvu", "säästäjä", "asunto", "lainat"
+    };
+
+    /** Share of items that are published in several feeds */
+    private static final double SHARED_RATIO = 0.1;
+
+    private RssFixtures()
+    {
+    }
+
+    /**
+     * Generate source feeds.
+     * @param nrFeeds Number of feeds
+     * @param nrItems Total number of items over all feeds (at least one per feed)
+     * @param baseTime Date of the newest item in epoch milliseconds
+     * @param variant Variant of the texts; feeds with a different variant have
+     *        the same items with different titles.
+     * @return The feeds as UTF-8 encoded binary
+     */
+    public static byte[][] generate(int nrFeeds, int nrItems, long baseTime, int variant)
+    {
+        Random random = new Random(1234L + nrFeeds * 31L + nrItems);
+        int itemsPerFeed = Math.max(1, (nrItems + nrFeeds - 1) / nrFeeds);
+        byte[][] feeds = new byte[nrFeeds][];
+        for (int f=0; f<nrFeeds; f++) {
+            feeds[f] = generateFeed("feed" + f, itemsPerFeed, baseTime, variant, random);
+        }
+        return feeds;
+    }
+
+    private static byte[] generateFeed(String name, int nrItems, long baseTime, int variant, Random random)
+    {
+        SimpleDateFormat pubDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+        SimpleDateFormat dcDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
+        pubDateFormat.setTimeZone(TimeZone.getTimeZone("Europe/Helsinki"));
+        dcDateFormat.setTimeZone(TimeZone.getTimeZone("Europe/Helsinki"));
+
+        StringBuilder sb = new StringBuilder(nrItems * 400 + 256);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<rss xmlns:dc=\"http://purl.org/dc/elements/1.1/\" version=\"2.0\">\n");
+        sb.append("<channel><title>").append(name).append("</title>");
+        sb.append("<link>http://example.com/").append(name).append("</link>");
+        sb.append("<description>Feed ").append(name).append("</description>\n");
+
+        /* Items newest first, one to ten minutes apart */
+        long time = baseTime - random.nextInt(600) * 1000L;
+        for (int i=0; i<nrItems; i++) {
+            time -= 60000L + random.nextInt(540) * 1000L;
+            String guid = (random.nextDouble() < SHARED_RATIO)
+                ? "http://example.com/shared/" + (i % 50)
+                : "http://example.com/" + name + "/" + i;
+            Date date = new Date(time);
+            String dcDate = dcDateFormat.format(date);
+            /* ISO-8601 wants the zone as +03:00 */
+            dcDate = dcDate.substring(0, dcDate.length() - 2) + ":" + dcDate.substring(dcDate.length() - 2);
+
+            sb.append("<item><title>");
+            appendWords(sb, random, 6);
+            sb.append(" ").append(variant).append(" &amp; \"").append(name).append("\" &lt;").append(i).append("&gt;");
+            sb.append("</title><link>").append(guid).append("</link>");
+            sb.append("<guid>").append(guid).append("</guid><description>");
+            appendWords(sb, random, 30);
+            sb.append("</description><pubDate>").append(pubDateFormat.format(date)).append("</pubDate>");
+            sb.append("<dc:date>").append(dcDate).append("</dc:date></item>\n");
+        }
+        sb.append("</channel></rss>\n");
+        try {
+            return sb.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            /* UTF-8 is always supported */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void appendWords(StringBuilder sb, Random random, int count)
+    {
+        for (int i=0; i<count; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+
+    /**
+     * Open the feeds as input streams.
+     * @param feeds The feeds
+     * @return One stream per feed
+     */
+    public static InputStream[] streams(byte[][] feeds)
+    {
+        InputStream[] inputs = new InputStream[feeds.length];
+        for (int i=0; i<feeds.length; i++) {
+            inputs[i] = new ByteArrayInputStream(feeds[i]);
+        }
+        return inputs;
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.sanoma.rssmergett.benchmarks;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import com.sanoma.rssmergett.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark
+{
+    /**
+     * Benchmarks for the full-text index: indexing all the items of the
+     * combined feed, and queries for a common word, two common words and a
+     * rare combination. The generated feeds use only a few words, so the
+     * common words are in almost every item, which is the worst case for a
+     * query.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Number of items in the combined feed */
+    @Param({"1000", "10000", "50000"})
+    public int items;
+
+    private List<RssItem> combined;
+    private RssSearchIndex index;
+    private RssPages.Query firstPage;
+    private List<String> common;
+    private List<String> twoCommon;
+    private List<String> rare;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        StaxRssXmlMerger merger = new StaxRssXmlMerger();
+        List<List<RssItem>> sources = new ArrayList<List<RssItem>>();
+        for (InputStream input : RssFixtures.streams(RssFixtures.generate(4, items, now, 0))) {
+            sources.add(merger.parseItems(input));
+        }
+        RssItemIndex itemIndex = new RssItemIndex(items, Long.MAX_VALUE / 2);
+        itemIndex.update(sources, now);
+        combined = itemIndex.getItems();
+        index = build();
+        firstPage = RssPages.Query.parse(null, "20", null);
+        common = RssTokenizer.tokenizeQuery("pörssissä");
+        twoCommon = RssTokenizer.tokenizeQuery("Nokian pörssi");
+        rare = RssTokenizer.tokenizeQuery("feed1 123");
+    }
+
+    @Benchmark
+    public RssSearchIndex build()
+    {
+        RssSearchIndex built = new RssSearchIndex();
+        built.update(combined);
+        return built;
+    }
+
+    @Benchmark
+    public List<RssItem> searchCommon()
+    {
+        return index.search(common, firstPage);
+    }
+
+    @Benchmark
+    public List<RssItem> searchTwoCommon()
+    {
+        return index.search(twoCommon, firstPage);
+    }
+
+    @Benchmark
+    public List<RssItem> searchRare()
+    {
+        return index.search(rare, firstPage);
+    }
+
+}
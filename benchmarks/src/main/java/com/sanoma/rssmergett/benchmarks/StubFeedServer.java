@@ -0,0 +1,343 @@
+package com.sanoma.rssmergett.benchmarks;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import com.sun.net.httpserver.*;
+
+public class StubFeedServer
+{
+    /**
+     * In-process HTTP server standing in for the upstream RSS sources. It
+     * serves generated feeds (or fixture files) at /feed0.xml, /feed1.xml, ..
+     * with ETag validators and answers conditional requests with 304, like
+     * the real sources do. Calling nextVersion() switches every feed to a
+     * new version, so the next refresh sees changed content.
+     *
+     * The server can also behave like a slow or flaky source: every response
+     * can be delayed by a latency with random jitter, a share of the requests
+     * can fail with 503, bodies can be sent slowly in small chunks, and
+     * conditional requests can be ignored.
+     *
+     * Run on its own, the server serves until it is killed:
+     *   java -cp target/benchmarks.jar com.sanoma.rssmergett.benchmarks.StubFeedServer --port 8765 --latency 50
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    private final HttpServer server;
+
+    /** Feed versions that are served in turn */
+    private final byte[][][] versions;
+
+    /** Index of the version being served */
+    private volatile int version = 0;
+
+    /** Delay (in milliseconds) before each response */
+    private volatile long latencyMillis = 0L;
+
+    /** Maximum random delay (in milliseconds) added to the latency */
+    private volatile long jitterMillis = 0L;
+
+    /** Share of the requests answered with 503, 0.0 - 1.0 */
+    private volatile double errorRate = 0.0;
+
+    /** Size of the chunks a slow body is sent in, 0 to send bodies at once */
+    private volatile int dripChunkBytes = 0;
+
+    /** Delay (in milliseconds) between the chunks of a slow body */
+    private volatile long dripDelayMillis = 0L;
+
+    /** Whether conditional requests are answered with 304 */
+    private volatile boolean conditional = true;
+
+    /** Timer switching the versions, see setChangeInterval() */
+    private ScheduledExecutorService changeTimer = null;
+
+    /* Counts of the responses */
+    private final AtomicLong nrOk = new AtomicLong();
+    private final AtomicLong nrNotModified = new AtomicLong();
+    private final AtomicLong nrErrors = new AtomicLong();
+
+    /**
+     * Start a server on a free port.
+     * @param versions Versions of the feeds; versions[v][f] is version v of feed f.
+     */
+    public StubFeedServer(byte[][][] versions) throws IOException
+    {
+        this(versions, 0);
+    }
+
+    /**
+     * Start a server.
+     * @param versions Versions of the feeds; versions[v][f] is version v of feed f.
+     * @param port Port to listen at on 127.0.0.1, 0 for any free port
+     */
+    public StubFeedServer(byte[][][] versions, int port) throws IOException
+    {
+        this.versions = versions;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        server.createContext("/", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    serve(exchange);
+                }
+            });
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "stub-feed-server");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+        server.start();
+    }
+
+    /**
+     * Get the URLs of the served feeds.
+     * @return One URL per feed
+     */
+    public String[] getURLs()
+    {
+        String[] urls = new String[versions[0].length];
+        for (int i=0; i<urls.length; i++) {
+            urls[i] = "http://127.0.0.1:" + server.getAddress().getPort() + "/feed" + i + ".xml";
+        }
+        return urls;
+    }
+
+    /**
+     * Switch all feeds to their next version.
+     */
+    public void nextVersion()
+    {
+        version = (version + 1) % versions.length;
+    }
+
+    /**
+     * Delay every response.
+     * @param latencyMillis Delay in milliseconds
+     * @param jitterMillis Maximum random delay added to the latency, in milliseconds
+     */
+    public void setLatency(long latencyMillis, long jitterMillis)
+    {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Fail a share of the requests with 503 Service Unavailable.
+     * @param errorRate Share of the failing requests, 0.0 - 1.0
+     */
+    public void setErrorRate(double errorRate)
+    {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Send the bodies slowly, as a source on a slow or congested link would.
+     * @param chunkBytes Size of the chunks, 0 to send bodies at once
+     * @param delayMillis Delay between the chunks in milliseconds
+     */
+    public void setDrip(int chunkBytes, long delayMillis)
+    {
+        this.dripChunkBytes = chunkBytes;
+        this.dripDelayMillis = delayMillis;
+    }
+
+    /**
+     * Set whether conditional requests are answered with 304. A source that
+     * ignores them sends the whole feed every time.
+     * @param conditional true to answer with 304 when the ETag matches
+     */
+    public void setConditional(boolean conditional)
+    {
+        this.conditional = conditional;
+    }
+
+    /**
+     * Switch to the next version periodically.
+     * @param intervalMillis Interval in milliseconds, 0 to stop switching
+     */
+    public synchronized void setChangeInterval(long intervalMillis)
+    {
+        if (changeTimer != null) {
+            changeTimer.shutdownNow();
+            changeTimer = null;
+        }
+        if (intervalMillis > 0) {
+            changeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "stub-feed-server-changes");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            changeTimer.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        nextVersion();
+                    }
+                }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the counts of the responses so far.
+     * @return Counts as text, e.g. "200: 10, 304: 40, 503: 2"
+     */
+    public String getStats()
+    {
+        return "200: " + nrOk.get() + ", 304: " + nrNotModified.get() + ", 503: " + nrErrors.get();
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop()
+    {
+        setChangeInterval(0);
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            int feed = -1;
+            if (path.startsWith("/feed") && path.endsWith(".xml")) {
+                try {
+                    feed = Integer.parseInt(path.substring(5, path.length() - 4));
+                } catch (NumberFormatException e) {
+                    /* not a feed */
+                }
+            }
+            int currentVersion = version;
+            if (feed < 0 || feed >= versions[currentVersion].length) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            long delay = latencyMillis;
+            if (jitterMillis > 0) {
+                delay += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                nrErrors.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            String etag = "\"v" + currentVersion + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (conditional && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                nrNotModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            byte[] body = versions[currentVersion][feed];
+            exchange.getResponseHeaders().set("Content-Type", "text/xml;charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream os = exchange.getResponseBody();
+            int chunk = dripChunkBytes;
+            if (chunk <= 0) {
+                os.write(body);
+            } else {
+                for (int pos=0; pos<body.length; pos+=chunk) {
+                    os.write(body, pos, Math.min(chunk, body.length - pos));
+                    os.flush();
+                    Thread.sleep(dripDelayMillis);
+                }
+            }
+            os.close();
+            nrOk.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read fixture feeds from files.
+     * @param files The files
+     * @return The contents of the files
+     */
+    public static byte[][] readFiles(String[] files) throws IOException
+    {
+        byte[][] feeds = new byte[files.length][];
+        for (int i=0; i<files.length; i++) {
+            RandomAccessFile file = new RandomAccessFile(files[i], "r");
+            try {
+                feeds[i] = new byte[(int) file.length()];
+                file.readFully(feeds[i]);
+            } finally {
+                try { file.close(); } catch (Throwable tt) { /* ignore */ }
+            }
+        }
+        return feeds;
+    }
+
+    /**
+     * Start a server configured with command line options.
+     * @param options Options by name, see LoadOptions
+     * @return The started server
+     */
+    public static StubFeedServer start(LoadOptions options) throws IOException
+    {
+        byte[][][] versions;
+        String files = options.getString("files", null);
+        if (files != null) {
+            /* Fixture files do not change, the second version only changes the ETag */
+            byte[][] feeds = readFiles(files.split(","));
+            versions = new byte[][][] { feeds, feeds };
+        } else {
+            int nrFeeds = options.getInt("feeds", 4);
+            int nrItems = options.getInt("items", 400);
+            long now = System.currentTimeMillis();
+            versions = new byte[][][] {
+                RssFixtures.generate(nrFeeds, nrItems, now, 0),
+                RssFixtures.generate(nrFeeds, nrItems, now, 1)
+            };
+        }
+        StubFeedServer server = new StubFeedServer(versions, options.getInt("stubPort", 8765));
+        server.setLatency(options.getLong("latency", 0L), options.getLong("jitter", 0L));
+        server.setErrorRate(options.getDouble("errorRate", 0.0));
+        server.setDrip(options.getInt("dripBytes", 0), options.getLong("dripMillis", 10L));
+        server.setConditional(options.getBoolean("conditional", true));
+        server.setChangeInterval(options.getLong("changeMillis", 0L));
+        return server;
+    }
+
+    /**
+     * Run a server until the process is killed. Prints the source setting
+     * for the service, e.g. mvn jetty:run -Drssmergett.sources=...
+     *
+     * Options: --stubPort (8765), --feeds (4), --items (400), --files
+     * (fixture files instead of generated feeds, comma separated),
+     * --latency, --jitter (milliseconds), --errorRate (0.0 - 1.0),
+     * --dripBytes, --dripMillis (send bodies in chunks of dripBytes every
+     * dripMillis), --conditional (true: answer 304), --changeMillis (switch
+     * the feed versions periodically).
+     */
+    public static void main(String[] arg) throws Exception
+    {
+        LoadOptions options = new LoadOptions(arg);
+        StubFeedServer server = start(options);
+        StringBuilder sources = new StringBuilder();
+        for (String url : server.getURLs()) {
+            if (sources.length() > 0) sources.append(',');
+            sources.append(url);
+        }
+        System.out.println("-Drssmergett.sources=" + sources);
+        while (true) {
+            Thread.sleep(60000L);
+            System.out.println(new Date() + " " + server.getStats());
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.*;
+
+public class AsyncFeedRequest
+{
+    /**
+     * Helper for serving a request from the combined feed without holding a
+     * container thread while the feed is being refreshed. When the request
+     * would have to wait (there is no combined feed yet, or it is too old to
+     * be served), the request is put into asynchronous mode (Servlet 3.0)
+     * and its thread is returned to the container. The responses are
+     * written by the Handler in a small pool of its own when the refresh is
+     * done, so the number of threads stays the same however many requests
+     * wait.
+     *
+     * Requests in containers without asynchronous support wait in their
+     * own thread as before.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(AsyncFeedRequest.class);
+
+    /** Time (in milliseconds) a request waits for a refresh before getting 503 */
+    private static long gTimeoutMillis = RssConfig.getLong("rssmergett.async.timeoutMillis", 30000L);
+
+    /** Threads answering the requests that waited for a refresh */
+    private static final ExecutorService gResponseExecutor = Executors.newFixedThreadPool(
+        RssConfig.getInt("rssmergett.async.threads", 4), new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "rssmergett-async-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Number of requests waiting for a refresh */
+    private static final AtomicInteger gWaiting = new AtomicInteger();
+
+    /* Metrics of the waiting requests */
+    private static final RssMetrics.Counter gParkedCounter = RssMetrics.counter(
+        "rssmergett_parked_requests_total", "Requests that waited for a refresh without holding a thread");
+    private static final RssMetrics.Counter gTimeoutCounter = RssMetrics.counter(
+        "rssmergett_parked_timeouts_total", "Waiting requests that timed out before the refresh was done");
+
+    static {
+        RssMetrics.register("rssmergett_parked_requests", "Requests waiting for a refresh",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    return gWaiting.get();
+                                }
+                            });
+    }
+
+    /**
+     * Writes the response of a request from a snapshot.
+     */
+    public interface Handler
+    {
+        /**
+         * Write the response.
+         * @param snapshot The combined feed in the locale of the request
+         */
+        void handle(RssSnapshot snapshot) throws Exception;
+    }
+
+    private AsyncFeedRequest()
+    {
+    }
+
+    /**
+     * Get the combined feed for a request, or park the request until the
+     * feed has been refreshed.
+     * @param request The request being answered
+     * @param response The response of the request
+     * @param channel The channel asked for
+     * @param metadata Channel texts in the locale of the request
+     * @param handler Handler writing the response if the request is parked
+     * @return The snapshot to answer with now, or null if the request was
+     *         parked and the handler will write the response later.
+     */
+    public static RssSnapshot getSnapshot(HttpServletRequest request, HttpServletResponse response,
+                                          RssChannel channel, FeedMetadata metadata, Handler handler)
+        throws Exception
+    {
+        RssSnapshot snapshot = channel.getSnapshotNow(metadata);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        if (!request.isAsyncSupported()) {
+            return channel.getSnapshot(metadata);
+        }
+        ParkedRequest parked = new ParkedRequest(request.startAsync(request, response), response, handler);
+        channel.whenRefreshed(metadata, parked, parked);
+        return null;
+    }
+
+    /**
+     * A request waiting for a refresh. Runs the handler when the snapshot
+     * is ready, and answers with an error if the refresh fails or takes too
+     * long.
+     */
+    private static final class ParkedRequest
+        implements RssChannel.SnapshotCallback, Executor, AsyncListener
+    {
+        private final AsyncContext context;
+        private final HttpServletResponse response;
+        private final Handler handler;
+
+        /** Set when the response has been claimed by the handler, an error or the timeout */
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        ParkedRequest(AsyncContext context, HttpServletResponse response, Handler handler)
+        {
+            this.context = context;
+            this.response = response;
+            this.handler = handler;
+            context.setTimeout(gTimeoutMillis);
+            context.addListener(this);
+            gWaiting.incrementAndGet();
+            gParkedCounter.inc();
+        }
+
+        /**
+         * Claim the response, so it is written only once.
+         * @return true if the caller may write the response
+         */
+        private boolean claim()
+        {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            gWaiting.decrementAndGet();
+            return true;
+        }
+
+        /** Runs the callback in the response pool */
+        public void execute(Runnable command)
+        {
+            if (finished.get()) {
+                /* Timed out already */
+                return;
+            }
+            gResponseExecutor.execute(command);
+        }
+
+        public void snapshotReady(RssSnapshot snapshot)
+        {
+            if (!claim()) {
+                return;
+            }
+            try {
+                handler.handle(snapshot);
+            } catch (Throwable t) {
+                logger.error("Answering a waiting request failed with error", t);
+                sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } finally {
+                context.complete();
+            }
+        }
+
+        public void snapshotFailed(Exception e)
+        {
+            if (!claim()) {
+                return;
+            }
+            logger.error("Refresh failed for a waiting request", e);
+            sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            context.complete();
+        }
+
+        public void onTimeout(AsyncEvent event)
+        {
+            if (!claim()) {
+                return;
+            }
+            gTimeoutCounter.inc();
+            logger.warn("Request waited " + gTimeoutMillis + " ms for the combined feed, giving up");
+            sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            event.getAsyncContext().complete();
+        }
+
+        public void onError(AsyncEvent event)
+        {
+            if (claim()) {
+                event.getAsyncContext().complete();
+            }
+        }
+
+        public void onComplete(AsyncEvent event)
+        {
+            /* Completed by the container, e.g. when the client went away */
+            claim();
+        }
+
+        public void onStartAsync(AsyncEvent event)
+        {
+        }
+
+        private void sendError(int status)
+        {
+            if (response.isCommitted()) {
+                return;
+            }
+            try {
+                response.sendError(status);
+            } catch (IOException e) {
+                logger.debug("Could not send error " + status + ": " + e);
+            }
+        }
+    }
+
+}
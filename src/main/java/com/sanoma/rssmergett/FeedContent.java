@@ -0,0 +1,162 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.*;
+
+public final class FeedContent
+{
+    /**
+     * Immutable holder for a response body that is served as it is. Besides
+     * the plain bytes it usually carries gzip and (optionally) deflate compressed
+     * variants that are compressed once when the content is created, so
+     * serving a compressed response costs no CPU per request. The content
+     * also carries a hash of the bytes and the time it was generated, used
+     * as the ETag and Last-Modified validators of the responses.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Whether deflate variants are created in addition to gzip */
+    private static final boolean gDeflateEnabled =
+        Boolean.valueOf(RssConfig.getString("rssmergett.compression.deflate", "true")).booleanValue();
+
+    /** Content-Type of the content */
+    private final String contentType;
+
+    /** Uncompressed content */
+    private final byte[] data;
+
+    /** gzip compressed content, or null */
+    private final byte[] gzipData;
+
+    /** deflate (zlib) compressed content, or null */
+    private final byte[] deflateData;
+
+    /** Hex encoded MD5 hash of the uncompressed content */
+    private final String hash;
+
+    /** Time (in epoch milliseconds) when the content was generated */
+    private final long createdTime;
+
+    private FeedContent(String contentType, byte[] data, byte[] gzipData, byte[] deflateData,
+                        String hash, long createdTime)
+    {
+        this.contentType = contentType;
+        this.data = data;
+        this.gzipData = gzipData;
+        this.deflateData = deflateData;
+        this.hash = hash;
+        this.createdTime = createdTime;
+    }
+
+    /**
+     * Create content and its compressed variants.
+     * @param data The content, must not be modified afterwards.
+     * @param contentType Content-Type of the content, e.g. "text/xml;charset=UTF-8"
+     * @return The content
+     */
+    public static FeedContent create(byte[] data, String contentType)
+    {
+        return create(data, contentType, System.currentTimeMillis());
+    }
+
+    /**
+     * Create content and its compressed variants.
+     * @param data The content, must not be modified afterwards.
+     * @param contentType Content-Type of the content
+     * @param createdTime Time (in epoch milliseconds) when the content was generated,
+     *        for content derived from earlier content.
+     * @return The content
+     */
+    public static FeedContent create(byte[] data, String contentType, long createdTime)
+    {
+        try {
+            ByteArrayOutputStream gzipBytes = new ByteArrayOutputStream(data.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(gzipBytes) {
+                    {
+                        /* Compressed only once, so spend the extra time */
+                        def.setLevel(Deflater.BEST_COMPRESSION);
+                    }
+                };
+            gzip.write(data);
+            gzip.close();
+
+            byte[] deflateData = null;
+            if (gDeflateEnabled) {
+                ByteArrayOutputStream deflateBytes = new ByteArrayOutputStream(data.length / 4 + 64);
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                DeflaterOutputStream deflate = new DeflaterOutputStream(deflateBytes, deflater);
+                deflate.write(data);
+                deflate.close();
+                deflater.end();
+                deflateData = deflateBytes.toByteArray();
+            }
+            return new FeedContent(contentType, data, gzipBytes.toByteArray(), deflateData,
+                                   hash(data), createdTime);
+        } catch (IOException e) {
+            /* Can not happen with in-memory streams */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create content without compressed variants, for content that is
+     * served only once or a few times and is not worth compressing ahead.
+     * @param data The content, must not be modified afterwards.
+     * @param contentType Content-Type of the content
+     * @param createdTime Time (in epoch milliseconds) when the content was generated
+     * @return The content
+     */
+    public static FeedContent createUncompressed(byte[] data, String contentType, long createdTime)
+    {
+        return new FeedContent(contentType, data, null, null, hash(data), createdTime);
+    }
+
+    /**
+     * Compute the hex encoded MD5 hash of the given bytes.
+     */
+    static String hash(byte[] data)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            /* MD5 is always supported so this should not happen */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return Content-Type of the content */
+    public String getContentType() { return contentType; }
+
+    /** @return Uncompressed content. Must not be modified. */
+    public byte[] getData() { return data; }
+
+    /** @return gzip compressed content, or null if not available. Must not be modified. */
+    public byte[] getGzipData() { return gzipData; }
+
+    /** @return deflate compressed content, or null if not available. Must not be modified. */
+    public byte[] getDeflateData() { return deflateData; }
+
+    /** @return Hex encoded MD5 hash of the uncompressed content. */
+    public String getHash() { return hash; }
+
+    /** @return Time (in epoch milliseconds) when the content was generated. */
+    public long getCreatedTime() { return createdTime; }
+
+    /** @return Bytes taken by the content and its compressed variants. */
+    public long getMemoryBytes()
+    {
+        return data.length
+            + (gzipData != null ? gzipData.length : 0)
+            + (deflateData != null ? deflateData.length : 0);
+    }
+
+}
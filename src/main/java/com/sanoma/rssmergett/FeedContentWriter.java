@@ -0,0 +1,157 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class FeedContentWriter
+{
+    /**
+     * Helper for writing cached FeedContent to a servlet response. The
+     * compressed variant is picked according to the Accept-Encoding header
+     * of the request, and the bytes are written as they are.
+     *
+     * Responses carry ETag, Last-Modified and Cache-Control headers, and
+     * conditional requests for unchanged content are answered with a
+     * bodyless 304.
+     *
+     * The content is localized (the channel texts follow Accept-Language,
+     * or the locale cookie set by ?locale=..), so shared caches are told to
+     * keep a copy per language and cookie as well as per encoding.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Metrics of the written responses */
+    private static final RssMetrics.Counter gNotModifiedCounter = responseCounter("304", "none");
+    private static final RssMetrics.Counter gIdentityCounter = responseCounter("200", "identity");
+    private static final RssMetrics.Counter gGzipCounter = responseCounter("200", "gzip");
+    private static final RssMetrics.Counter gDeflateCounter = responseCounter("200", "deflate");
+    private static final RssMetrics.Counter gBytesCounter =
+        RssMetrics.counter("rssmergett_response_bytes_total", "Bytes of response bodies written");
+
+    /** Request headers the content depends on */
+    private static final String VARY = "Accept-Encoding, Accept-Language, Cookie";
+
+    private FeedContentWriter()
+    {
+    }
+
+    private static RssMetrics.Counter responseCounter(String status, String encoding)
+    {
+        return RssMetrics.counter("rssmergett_responses_total", "Feed responses by status and content coding",
+                                  "status", status, "encoding", encoding);
+    }
+
+    /**
+     * Write content to the response.
+     * @param request The request being answered
+     * @param response The response to write to
+     * @param content The content to write
+     * @param maxAgeSeconds How long (in seconds) clients may cache the content
+     */
+    public static void write(HttpServletRequest request, HttpServletResponse response, FeedContent content,
+                             long maxAgeSeconds)
+        throws IOException
+    {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        byte[] body = content.getData();
+        String encoding = null;
+        if (content.getGzipData() != null && accepts(acceptEncoding, "gzip")) {
+            body = content.getGzipData();
+            encoding = "gzip";
+        } else if (content.getDeflateData() != null && accepts(acceptEncoding, "deflate")) {
+            body = content.getDeflateData();
+            encoding = "deflate";
+        }
+
+        /* Each encoding is a different representation, so it gets its own ETag */
+        String etag = "\"" + content.getHash() + (encoding == null ? "" : "-" + encoding) + "\"";
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", content.getCreatedTime());
+        response.setHeader("Cache-Control", "public, max-age=" + Math.max(0L, maxAgeSeconds));
+        response.setHeader("Vary", VARY);
+
+        if (isNotModified(request, content)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            gNotModifiedCounter.inc();
+            return;
+        }
+        if (encoding == null) {
+            gIdentityCounter.inc();
+        } else if (encoding.equals("gzip")) {
+            gGzipCounter.inc();
+        } else {
+            gDeflateCounter.inc();
+        }
+        gBytesCounter.add(body.length);
+
+        response.setContentType(content.getContentType());
+        if (encoding != null) {
+            response.setHeader("Content-Encoding", encoding);
+        }
+        response.setContentLength(body.length);
+        OutputStream os = response.getOutputStream();
+        os.write(body);
+        os.flush();
+    }
+
+    /**
+     * Check whether the client already has the content. If-None-Match is
+     * used when present, If-Modified-Since otherwise.
+     * @param request The request being answered
+     * @param content The content that would be sent
+     * @return true if a 304 response can be sent
+     */
+    static boolean isNotModified(HttpServletRequest request, FeedContent content)
+    {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*")) return true;
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                /* Weak comparison: any encoding of the same content matches */
+                if (tag.startsWith("\"" + content.getHash())) return true;
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        /* HTTP dates have one second resolution */
+        return ifModifiedSince >= 0 && content.getCreatedTime() / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Check whether an Accept-Encoding header allows the given coding.
+     * @param acceptEncoding Value of the Accept-Encoding header, or null
+     * @param coding Content coding, e.g. "gzip"
+     * @return true if the coding is listed without q=0
+     */
+    static boolean accepts(String acceptEncoding, String coding)
+    {
+        if (acceptEncoding == null) return false;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase(coding) && !name.equals("*")) continue;
+            for (int i=1; i<parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        if (Double.parseDouble(param.substring(2).trim()) <= 0.0) return false;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+}
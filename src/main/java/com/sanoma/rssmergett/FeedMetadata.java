@@ -0,0 +1,75 @@
+package com.sanoma.rssmergett;
+
+import java.util.Arrays;
+
+public final class FeedMetadata
+{
+    /**
+     * Immutable holder for the channel level texts of the combined RSS feed.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    private final String title;
+    private final String imageURL;
+    private final String imageTitle;
+    private final String imageLink;
+    private final String description;
+    private final String link;
+    private final String language;
+
+    /**
+     * Create channel metadata.
+     * @param title Title text for the combined RSS feed.
+     * @param imageURL Image url for the combined RSS feed.
+     * @param imageTitle Image title for the combined RSS feed.
+     * @param imageLink Image link for the combined RSS feed.
+     * @param description Description for the combined RSS feed.
+     * @param link Link for the combined RSS feed.
+     * @param language Language code for the combined RSS feed. See
+     *        <a href="http://www.rssboard.org/rss-language-codes">http://www.rssboard.org/rss-language-codes</a>
+     *        for supported codes.
+     */
+    public FeedMetadata(String title,
+                        String imageURL,
+                        String imageTitle,
+                        String imageLink,
+                        String description,
+                        String link,
+                        String language)
+    {
+        this.title = title;
+        this.imageURL = imageURL;
+        this.imageTitle = imageTitle;
+        this.imageLink = imageLink;
+        this.description = description;
+        this.link = link;
+        this.language = language;
+    }
+
+    public String getTitle() { return title; }
+    public String getImageURL() { return imageURL; }
+    public String getImageTitle() { return imageTitle; }
+    public String getImageLink() { return imageLink; }
+    public String getDescription() { return description; }
+    public String getLink() { return link; }
+    public String getLanguage() { return language; }
+
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof FeedMetadata)) return false;
+        FeedMetadata other = (FeedMetadata) o;
+        return Arrays.equals(toArray(), other.toArray());
+    }
+
+    public int hashCode()
+    {
+        return Arrays.hashCode(toArray());
+    }
+
+    private String[] toArray()
+    {
+        return new String[] { title, imageURL, imageTitle, imageLink, description, link, language };
+    }
+
+}
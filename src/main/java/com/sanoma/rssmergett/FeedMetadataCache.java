@@ -0,0 +1,231 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.servlet.ServletContext;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.MessageSource;
+import org.springframework.context.support.ReloadableResourceBundleMessageSource;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.ServletContextAware;
+
+import org.apache.log4j.*;
+
+@Component
+public class FeedMetadataCache implements ServletContextAware {
+
+    /**
+     * Cache of the channel texts of the combined feed per locale. The texts
+     * are looked up from the message bundles once per locale, so serving a
+     * request costs one map lookup instead of seven message lookups.
+     *
+     * The texts of a named channel are looked up with the channel name as a
+     * prefix (e.g. sports.feed.title), falling back to the texts of the
+     * default channel (feed.title).
+     *
+     * Requests can carry any locale, so each channel keeps the texts of the
+     * MAX_LOCALES most recently requested locales; rare or junk locales
+     * push out each other, not the common ones.
+     *
+     * The message bundle files (messages*.properties) are checked for
+     * changes at most once per rssmergett.messages.reloadCheckMillis; when
+     * one changes, the message source and this cache are cleared so the new
+     * texts are used without restarting the service.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(FeedMetadataCache.class);
+
+    /** Maximum number of locales kept per channel; requests can carry any locale */
+    private static final int MAX_LOCALES = 64;
+
+    /** Web application path of the message bundle files */
+    private static final String gMessagesPath = RssConfig.getString("rssmergett.messages.directory", "/WEB-INF/messages");
+
+    /** Interval (in milliseconds) for checking whether the message bundles have changed, 0 to never check */
+    private static final long gReloadCheckInMillis = RssConfig.getLong("rssmergett.messages.reloadCheckMillis", 5000L);
+
+    /** MessageSource for accessing localized strings */
+    private MessageSource messageSource;
+
+    /** Directory of the message bundle files, or null if they are not in the file system */
+    private File messagesDirectory;
+
+    /** Channel texts by locale, least recently used first, guarded by itself */
+    private final Map<Locale, FeedMetadata> metadataByLocale = createLocaleCache();
+
+    /** Channel texts of the named channels by channel and locale */
+    private final ConcurrentMap<String, Map<Locale, FeedMetadata>> metadataByChannel =
+        new ConcurrentHashMap<String, Map<Locale, FeedMetadata>>();
+
+    /** Modification state of the message bundle files when they were last checked */
+    private volatile long messagesState;
+
+    /** Time (in milliseconds) of the last check for changed message bundles */
+    private volatile long lastReloadCheckTime;
+
+    /** Setter for injecting the MessageSource bean. The bean itself is
+     * injected instead of the application context (as MessageSourceAware
+     * would) so that its cache can be cleared.
+     * @param bundle Injected MessageSource bean.
+     */
+    @Autowired
+    public void setMessageSource(MessageSource bundle) {
+        messageSource = bundle;
+        synchronized (metadataByLocale) {
+            metadataByLocale.clear();
+        }
+        metadataByChannel.clear();
+    }
+
+    /** Setter for injecting the ServletContext, used for locating the message bundle files.
+     * @param servletContext Injected ServletContext.
+     */
+    public void setServletContext(ServletContext servletContext) {
+        String path = servletContext.getRealPath(gMessagesPath);
+        if (path == null) {
+            logger.info("Message bundles " + gMessagesPath + " are not in the file system, not checking for changes");
+            return;
+        }
+        messagesDirectory = new File(path);
+        messagesState = readMessagesState();
+        lastReloadCheckTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the channel texts of the combined feed for a locale.
+     * @param locale Locale of the request, or null for the default locale
+     * @return The channel texts
+     */
+    public FeedMetadata get(Locale locale)
+    {
+        return get(locale, null);
+    }
+
+    /**
+     * Get the channel texts of a channel for a locale.
+     * @param locale Locale of the request, or null for the default locale
+     * @param channel Name of the channel, or null for the default channel
+     * @return The channel texts
+     */
+    public FeedMetadata get(Locale locale, String channel)
+    {
+        checkReload();
+        if (locale == null) {
+            locale = Locale.getDefault();
+        }
+        Map<Locale, FeedMetadata> cache = metadataByLocale;
+        if (channel != null) {
+            cache = metadataByChannel.get(channel);
+            if (cache == null) {
+                Map<Locale, FeedMetadata> created = createLocaleCache();
+                cache = metadataByChannel.putIfAbsent(channel, created);
+                if (cache == null) {
+                    cache = created;
+                }
+            }
+        }
+        FeedMetadata metadata;
+        synchronized (cache) {
+            metadata = cache.get(locale);
+        }
+        if (metadata == null) {
+            metadata = new FeedMetadata(getText(channel, "feed.title", locale),
+                                        getText(channel, "feed.imageURL", locale),
+                                        getText(channel, "feed.imageTitle", locale),
+                                        getText(channel, "feed.imageLink", locale),
+                                        getText(channel, "feed.description", locale),
+                                        getText(channel, "feed.link", locale),
+                                        getText(channel, "feed.language", locale));
+            synchronized (cache) {
+                cache.put(locale, metadata);
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Create a cache of the channel texts by locale, keeping the most
+     * recently used MAX_LOCALES locales. Must be used synchronized.
+     */
+    private static Map<Locale, FeedMetadata> createLocaleCache()
+    {
+        return new LinkedHashMap<Locale, FeedMetadata>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Locale, FeedMetadata> eldest) {
+                return size() > MAX_LOCALES;
+            }
+        };
+    }
+
+    /** Helper for getting simple localized string from properties.
+     * @param channel Name of the channel, or null for the default channel
+     * @param key Text resource key in the bundle
+     * @param locale Locale of the text
+     * @return Localized text
+     */
+    private String getText(String channel, String key, Locale locale)
+    {
+        if (channel != null) {
+            String text = messageSource.getMessage(channel + "." + key, new Object[0], null, locale);
+            if (text != null) {
+                return text;
+            }
+        }
+        return messageSource.getMessage(key, new Object[0], locale);
+    }
+
+    /**
+     * Clear the cached texts if a message bundle file has changed since the
+     * last check. Checks at most once per reload check interval.
+     */
+    private void checkReload()
+    {
+        if (messagesDirectory == null || gReloadCheckInMillis <= 0) return;
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - lastReloadCheckTime < gReloadCheckInMillis) return;
+        synchronized (this) {
+            if (currentTime - lastReloadCheckTime < gReloadCheckInMillis) return;
+            lastReloadCheckTime = currentTime;
+            long state = readMessagesState();
+            if (state != messagesState) {
+                messagesState = state;
+                if (messageSource instanceof ReloadableResourceBundleMessageSource) {
+                    ((ReloadableResourceBundleMessageSource) messageSource).clearCache();
+                }
+                synchronized (metadataByLocale) {
+                    metadataByLocale.clear();
+                }
+                metadataByChannel.clear();
+                logger.info("Message bundles in " + messagesDirectory + " changed, reloaded the feed texts");
+            }
+        }
+    }
+
+    /**
+     * Compute a value that changes when a message bundle file is added,
+     * removed or modified.
+     */
+    private long readMessagesState()
+    {
+        File[] files = messagesDirectory.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.startsWith("messages") && name.endsWith(".properties");
+                }
+            });
+        if (files == null) return 0L;
+        Arrays.sort(files);
+        long state = files.length;
+        for (File file : files) {
+            state = state * 31 + file.getName().hashCode();
+            state = state * 31 + file.lastModified();
+            state = state * 31 + file.length();
+        }
+        return state;
+    }
+
+}
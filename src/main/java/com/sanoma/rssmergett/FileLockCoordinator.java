@@ -0,0 +1,238 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.*;
+
+public class FileLockCoordinator implements RssCoordinator
+{
+    /**
+     * Coordinator of the nodes sharing a directory (rssmergett.cluster.directory).
+     *
+     * The lease of the leader is an exclusive lock on the file leader.lock
+     * in the directory. The node holding it keeps it for as long as it
+     * runs; when the process dies the operating system releases the lock,
+     * and the first node to check next (at its next refresh) becomes the
+     * leader. The leader writes its name into the lock file, so the other
+     * nodes can tell who is leading.
+     *
+     * The leader publishes the combined feed of each channel as
+     * channel-NAME.dat in the directory, in the format of RssSnapshotStore,
+     * written to a temporary file and renamed over the previous one, at
+     * every refresh. The other nodes compare the identity, time and size of
+     * the file before loading it, so checking for a new version costs a
+     * stat.
+     *
+     * The directory must support file locks, e.g. a local file system for
+     * several nodes on one host or NFSv4 for several hosts. A leader that
+     * hangs without dying keeps the lock; the other nodes then fetch the
+     * sources themselves once the published feed is older than
+     * rssmergett.refresh.maxStaleMillis (see RssChannel).
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(FileLockCoordinator.class);
+
+    /**
+     * A published feed as it was last loaded.
+     */
+    private static final class Published
+    {
+        /** Identity, modification time and size of the file */
+        final Object fileKey;
+        final long lastModified;
+        final long length;
+        final String sourcesKey;
+        /** The feed, null if the file was not usable */
+        final RssSnapshotStore.Stored stored;
+
+        Published(Object fileKey, long lastModified, long length, String sourcesKey, RssSnapshotStore.Stored stored)
+        {
+            this.fileKey = fileKey;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.sourcesKey = sourcesKey;
+            this.stored = stored;
+        }
+
+        boolean isSame(BasicFileAttributes attributes, String sourcesKey)
+        {
+            return (fileKey == null ? attributes.fileKey() == null : fileKey.equals(attributes.fileKey()))
+                && lastModified == attributes.lastModifiedTime().toMillis()
+                && length == attributes.size()
+                && this.sourcesKey.equals(sourcesKey);
+        }
+    }
+
+    /** The shared directory */
+    private final File directory;
+
+    /** Name of this node, written into the lock file while leading */
+    private final String nodeName;
+
+    /** The lock file */
+    private final File lockFile;
+
+    /** The open lock file, or null; guarded by this */
+    private RandomAccessFile lockAccess = null;
+
+    /** The lease, or null if this node is not the leader; guarded by this */
+    private FileLock lock = null;
+
+    /** Whether this node has been following; guarded by this, for logging the changes only */
+    private boolean following = false;
+
+    /** The published feeds as they were last loaded or published, by channel */
+    private final Map<String, Published> published = new ConcurrentHashMap<String, Published>();
+
+    /**
+     * Create a coordinator.
+     * @param directory The directory shared by the nodes
+     * @param nodeName Name of this node, for the logs of the other nodes
+     */
+    public FileLockCoordinator(File directory, String nodeName)
+    {
+        this.directory = directory;
+        this.nodeName = nodeName;
+        this.lockFile = new File(directory, "leader.lock");
+        RssMetrics.register("rssmergett_cluster_leader", "1 if this node fetches the sources for the cluster",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    return isHoldingLease() ? 1 : 0;
+                                }
+                            });
+    }
+
+    /**
+     * Create a coordinator using the settings in rssmergett.properties.
+     * @return The configured coordinator, or null if rssmergett.cluster.directory is not set
+     */
+    public static FileLockCoordinator createFromConfig()
+    {
+        String directory = RssConfig.getString("rssmergett.cluster.directory", "");
+        if (directory.trim().length() == 0) {
+            return null;
+        }
+        /* The default name is pid@host */
+        String nodeName = RssConfig.getString("rssmergett.cluster.nodeName",
+                                              ManagementFactory.getRuntimeMXBean().getName());
+        logger.info("Node " + nodeName + " coordinating through " + directory);
+        return new FileLockCoordinator(new File(directory.trim()), nodeName);
+    }
+
+    public boolean isClustered()
+    {
+        return true;
+    }
+
+    public synchronized boolean isLeader()
+    {
+        if (isHoldingLease()) {
+            return true;
+        }
+        lock = null;
+        try {
+            if (lockAccess == null) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Can not create directory " + directory);
+                }
+                lockAccess = new RandomAccessFile(lockFile, "rw");
+            }
+            lock = lockAccess.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            /* Held by another coordinator of this process */
+        } catch (IOException e) {
+            logger.warn("Could not lock " + lockFile + ", following: " + e);
+            try { lockAccess.close(); } catch (Throwable tt) { /* ignore */ }
+            lockAccess = null;
+        }
+        if (lock == null) {
+            if (!following) {
+                following = true;
+                logger.info("Node " + nodeName + " following the leader " + readLeaderName());
+            }
+            return false;
+        }
+        following = false;
+        try {
+            lockAccess.setLength(0);
+            lockAccess.write(nodeName.getBytes("UTF-8"));
+        } catch (IOException e) {
+            logger.warn("Could not write the leader name to " + lockFile + ": " + e);
+        }
+        logger.info("Node " + nodeName + " is now the leader, fetching the sources for the cluster");
+        return true;
+    }
+
+    private synchronized boolean isHoldingLease()
+    {
+        return lock != null && lock.isValid();
+    }
+
+    /** @return Name of the leader written into the lock file, or "unknown" */
+    private String readLeaderName()
+    {
+        try {
+            byte[] bytes = Files.readAllBytes(lockFile.toPath());
+            return bytes.length == 0 ? "unknown" : new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    public long publish(String channel, String sourcesKey, RssSnapshot snapshot) throws IOException
+    {
+        /* Continue from the version published last, also by an earlier leader; the same content keeps its version */
+        RssSnapshotStore.Stored previous = getPublished(channel, sourcesKey);
+        long version = 1L;
+        if (previous != null) {
+            boolean same = previous.getSnapshot().getContent().getHash().equals(snapshot.getContent().getHash());
+            version = same ? previous.getVersion() : previous.getVersion() + 1;
+        }
+        File file = getFile(channel);
+        new RssSnapshotStore(file, false).save(sourcesKey, snapshot, null, version);
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        published.put(channel, new Published(attributes.fileKey(), attributes.lastModifiedTime().toMillis(),
+                                             attributes.size(), sourcesKey,
+                                             new RssSnapshotStore.Stored(snapshot,
+                                                                         Collections.<RssSourceCache.CachedFeed>emptyList(),
+                                                                         version)));
+        return version;
+    }
+
+    public RssSnapshotStore.Stored getPublished(String channel, String sourcesKey)
+    {
+        File file = getFile(channel);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            /* Nothing published */
+            return null;
+        }
+        Published cached = published.get(channel);
+        if (cached != null && cached.isSame(attributes, sourcesKey)) {
+            return cached.stored;
+        }
+        /* Remembered also when the file is not usable, so it is not loaded again until it changes */
+        RssSnapshotStore.Stored stored = new RssSnapshotStore(file, false).load(sourcesKey);
+        published.put(channel, new Published(attributes.fileKey(), attributes.lastModifiedTime().toMillis(),
+                                             attributes.size(), sourcesKey, stored));
+        return stored;
+    }
+
+    /** @return The file the feed of a channel is published in */
+    private File getFile(String channel)
+    {
+        return new File(directory, "channel-" + channel + ".dat");
+    }
+
+}
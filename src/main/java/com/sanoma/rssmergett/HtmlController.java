@@ -2,26 +2,25 @@ package com.sanoma.rssmergett;
 
 import java.io.*;
 import java.util.*;
-import javax.xml.transform.*;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.springframework.stereotype.Controller;
-import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.context.MessageSource;
-import org.springframework.context.MessageSourceAware;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.servlet.support.RequestContextUtils;
 import org.apache.log4j.*;
 
 @Controller
 @RequestMapping(value="/html")
-public class HtmlController implements MessageSourceAware {
+public class HtmlController {
 
     /**
      * Spring Controller class  for serving requests for HTML version of the combined
      * RSS feed. This class queries the combined RSS data from RssXmlMerger and
-     * uses XSLT for converting it into HTML source. 
+     * uses XSLT (rss2html.xsl) for converting it into HTML source. 
      *
      * @author Tuomas Tynjälä
      */
@@ -29,101 +28,132 @@ public class HtmlController implements MessageSourceAware {
     /* Logger for the class */
     protected static final Logger logger = Logger.getLogger(HtmlController.class);
 
-    /** MessageSource for accessing localized strings */
-    private MessageSource messageSource;
+    /* Metrics of the requests */
+    private static final RssMetrics.Counter gRequestCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/html");
+    private static final RssMetrics.Histogram gRequestTimer = RssMetrics.timer(
+        "rssmergett_request_seconds", "Time to handle a request, by endpoint", "endpoint", "/html");
+    private static final RssMetrics.Counter gChannelRequestCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/html/{channel}");
+    private static final RssMetrics.Histogram gChannelRequestTimer = RssMetrics.timer(
+        "rssmergett_request_seconds", "Time to handle a request, by endpoint", "endpoint", "/html/{channel}");
 
-    /** Setter for injecting the MessageSource bean.
-     * @param bundle Injected MessageSource bean.
-     */
-    public void setMessageSource(MessageSource bundle) {
-        messageSource = bundle;
+    /** Localized channel texts of the combined feed */
+    private FeedMetadataCache feedMetadataCache;
+
+    /** Renderer converting the combined RSS feed into HTML */
+    private final RssHtmlRenderer renderer;
+
+    public HtmlController() throws Exception
+    {
+        renderer = RssHtmlRenderer.createFromConfig();
     }
 
-    /** Helper class for getting simple localized string from properties.
-     * However, currently this does NOT support several locales as the default locale
-     * is used.
-     * @param key Text resource key in the bundle
-     * @return Localized text
+    /** Setter for injecting the FeedMetadataCache bean.
+     * @param cache Injected FeedMetadataCache bean.
      */
-    private String getText(String key) 
-    {
-        return messageSource.getMessage(key, new Object[0], Locale.getDefault());
+    @Autowired
+    public void setFeedMetadataCache(FeedMetadataCache cache) {
+        feedMetadataCache = cache;
     }
 
     /**
      * Action handler for generating the combined RSS feed request in HTML format.
      * This method loads the source RSS feeds, combines them and renders the result
      * as HTML.
-     * @param model Data model for the rendering jsp
-     * @return Spring view for the JSP rendering of result
+     * @param request The HTTP request
+     * @param response The HTTP response the HTML is written to
+     * @param offset Number of newest items to skip (optional)
+     * @param limit Maximum number of items (optional)
+     * @param since Only include items newer than this, epoch milliseconds, ISO-8601 or RFC-822 (optional)
      */
     @RequestMapping(method=RequestMethod.GET)
-    public String htmlAction(Model model) throws Exception {
+    public void htmlAction(HttpServletRequest request, HttpServletResponse response,
+                           @RequestParam(value="offset", required=false) String offset,
+                           @RequestParam(value="limit", required=false) String limit,
+                           @RequestParam(value="since", required=false) String since) throws Exception {
         
         logger.info("Incoming HTML query");
-        String html = "";
+        gRequestCounter.inc();
+        serve(request, response, RssFetchAndCombine.getDefaultChannel(), null, offset, limit, since, gRequestTimer);
+    }
+
+    /**
+     * Action handler for the HTML version of a named channel, see htmlAction().
+     * @param channel Name of the channel
+     */
+    @RequestMapping(value="/{channel}", method=RequestMethod.GET)
+    public void htmlChannelAction(HttpServletRequest request, HttpServletResponse response,
+                                  @PathVariable("channel") String channel,
+                                  @RequestParam(value="offset", required=false) String offset,
+                                  @RequestParam(value="limit", required=false) String limit,
+                                  @RequestParam(value="since", required=false) String since) throws Exception {
+
+        logger.info("Incoming HTML query for channel " + channel);
+        gChannelRequestCounter.inc();
+        RssChannel rssChannel = RssFetchAndCombine.getChannel(channel);
+        if (rssChannel == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such channel: " + channel);
+            return;
+        }
+        serve(request, response, rssChannel, channel, offset, limit, since, gChannelRequestTimer);
+    }
+
+    /**
+     * Write the HTML version of a channel.
+     * @param channelName Name of the channel for the channel texts, null for the default channel
+     * @param timer Histogram the time of the request is recorded in
+     */
+    private void serve(final HttpServletRequest request, final HttpServletResponse response,
+                       final RssChannel channel, String channelName,
+                       String offset, String limit, String since,
+                       final RssMetrics.Histogram timer) throws Exception {
+
+        final long startNanos = System.nanoTime();
+        final RssPages.Query query;
         try {
+            query = RssPages.Query.parse(offset, limit, since);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
 
-            /** Get the combined RSS feed as XML */
-            RssXmlMerger rssMerget = new RssXmlMerger();
-            byte[] xmlInUTF8 = 
-                RssFetchAndCombine.fetchAndCombineRSS(getText("feed.title"),
-                                                      getText("feed.imageURL"),
-                                                      getText("feed.imageTitle"),
-                                                      getText("feed.imageLink"),
-                                                      getText("feed.description"),
-                                                      getText("feed.link"),
-                                                      getText("feed.language"));
-
-            /* XSLT template to use in converting XML to HTML */
-            String xsltCode = 
-                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
-                "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"1.0\">\n" +
-                "<xsl:output method=\"html\" encoding=\"UTF-8\"/>\n" + 
-                "<xsl:template match=\"/\">\n" + 
-                "<html>\n" + 
-                "  <head>\n" + 
-                "     <title>\n"+
-                "      <xsl:value-of select=\"/rss/channel/title\"/>\n"+
-                "     </title>\n" + 
-                "  </head>\n" + 
-                "  <body>\n" + 
-                "    <xsl:for-each select=\"/rss/channel/item\">\n" +
-                "      <hr/>\n" +
-                "      <a>\n"+
-                "        <xsl:attribute name=\"href\">\n"+
-                "          <xsl:value-of select=\"link\"/>\n"+
-                "        </xsl:attribute>\n"+
-                "        <xsl:value-of select=\"title\"/>\n"+
-                "      </a>\n"+
-                "      <br/>\n" +
-                "      <xsl:value-of select=\"pubDate\"/>\n"+
-                "      <br/>\n" +
-                "      <xsl:value-of select=\"description\"/>\n"+
-                "    </xsl:for-each>\n" +
-                "  </body>\n" + 
-                "</html>\n" + 
-                "</xsl:template>\n"+
-                "</xsl:stylesheet>\n";
-            
-            /** Convert XML to HTML using XSLT*/
-            TransformerFactory factory = TransformerFactory.newInstance();
-            Source xslt = new StreamSource(new ByteArrayInputStream(xsltCode.getBytes("UTF-8")));
-            Transformer transformer = factory.newTransformer(xslt);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            Source text = new StreamSource(new ByteArrayInputStream(xmlInUTF8));
-            transformer.transform(text, new StreamResult(bos));
-            html = new String(bos.toByteArray(), "UTF-8");
+        AsyncFeedRequest.Handler handler = new AsyncFeedRequest.Handler() {
+                public void handle(RssSnapshot snapshot) throws Exception {
+                    FeedContent html;
+                    try {
+                        /** Convert XML to HTML using XSLT, rendered once per snapshot or page */
+                        html = renderer.render(snapshot.getPages().getPage(query));
+                    } catch (Throwable t) {
+                        logger.error("Incoming HTML query failed with error", t);
+                        throw new Exception("INTERNAL ERROR");
+                    }
 
+                    /* Write the cached HTML as it is */
+                    FeedContentWriter.write(request, response, html, channel.getMaxAgeSeconds(snapshot));
+                    timer.recordSince(startNanos);
+                    logger.info("Incoming HTML query done");
+                }
+            };
+
+        RssSnapshot snapshot;
+        try {
+
+            /** Get the combined RSS feed snapshot in the locale of the request */
+            snapshot = AsyncFeedRequest.getSnapshot(request, response, channel,
+                                                    feedMetadataCache.get(RequestContextUtils.getLocale(request),
+                                                                          channelName),
+                                                    handler);
 
         } catch (Throwable t) {
             logger.error("Incoming HTML query failed with error", t);
             throw new Exception("INTERNAL ERROR");
         }
-        
-        /* Pass generated HTML to JSP for rendering */
-        model.addAttribute("html", html);
-        logger.info("Incoming HTML query done");
-        return "rssmergett/html";
+
+        if (snapshot == null) {
+            /* Waiting for a refresh without holding the thread, the handler writes the response */
+            return;
+        }
+        handler.handle(snapshot);
     }
 }
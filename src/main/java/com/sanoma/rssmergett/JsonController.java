@@ -0,0 +1,150 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import java.io.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.servlet.support.RequestContextUtils;
+
+import org.apache.log4j.*;
+
+@Controller
+@RequestMapping(value="/json")
+public class JsonController {
+
+    /**
+     * Spring Controller class for serving request for JSON version of the
+     * RSS feed. The JSON is rendered from the combined items once per
+     * refresh (see RssJsonRenderer), so this class writes it as it is.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(JsonController.class);
+
+    /* Metrics of the requests */
+    private static final RssMetrics.Counter gRequestCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/json");
+    private static final RssMetrics.Histogram gRequestTimer = RssMetrics.timer(
+        "rssmergett_request_seconds", "Time to handle a request, by endpoint", "endpoint", "/json");
+    private static final RssMetrics.Counter gChannelRequestCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/json/{channel}");
+    private static final RssMetrics.Histogram gChannelRequestTimer = RssMetrics.timer(
+        "rssmergett_request_seconds", "Time to handle a request, by endpoint", "endpoint", "/json/{channel}");
+
+    /** Localized channel texts of the combined feed */
+    private FeedMetadataCache feedMetadataCache;
+
+    /** Setter for injecting the FeedMetadataCache bean.
+     * @param cache Injected FeedMetadataCache bean.
+     */
+    @Autowired
+    public void setFeedMetadataCache(FeedMetadataCache cache) {
+        feedMetadataCache = cache;
+    }
+
+    /**
+     * Action handler for generating the combined RSS feed request in JSON format.
+     * @param request The HTTP request
+     * @param response The HTTP response the JSON is written to
+     * @param offset Number of newest items to skip (optional)
+     * @param limit Maximum number of items (optional)
+     * @param since Only include items newer than this, epoch milliseconds, ISO-8601 or RFC-822 (optional)
+     */
+    @RequestMapping(method=RequestMethod.GET)
+    public void jsonAction(HttpServletRequest request, HttpServletResponse response,
+                           @RequestParam(value="offset", required=false) String offset,
+                           @RequestParam(value="limit", required=false) String limit,
+                           @RequestParam(value="since", required=false) String since) throws Exception
+    {
+        logger.info("Incoming JSON query");
+        gRequestCounter.inc();
+        serve(request, response, RssFetchAndCombine.getDefaultChannel(), null, offset, limit, since, gRequestTimer);
+    }
+
+    /**
+     * Action handler for the JSON version of a named channel, see jsonAction().
+     * @param channel Name of the channel
+     */
+    @RequestMapping(value="/{channel}", method=RequestMethod.GET)
+    public void jsonChannelAction(HttpServletRequest request, HttpServletResponse response,
+                                   @PathVariable("channel") String channel,
+                                   @RequestParam(value="offset", required=false) String offset,
+                                   @RequestParam(value="limit", required=false) String limit,
+                                   @RequestParam(value="since", required=false) String since) throws Exception
+    {
+        logger.info("Incoming JSON query for channel " + channel);
+        gChannelRequestCounter.inc();
+        RssChannel rssChannel = RssFetchAndCombine.getChannel(channel);
+        if (rssChannel == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such channel: " + channel);
+            return;
+        }
+        serve(request, response, rssChannel, channel, offset, limit, since, gChannelRequestTimer);
+    }
+
+    /**
+     * Write the JSON version of a channel.
+     * @param channelName Name of the channel for the channel texts, null for the default channel
+     * @param timer Histogram the time of the request is recorded in
+     */
+    private void serve(final HttpServletRequest request, final HttpServletResponse response,
+                       final RssChannel channel, String channelName,
+                       String offset, String limit, String since,
+                       final RssMetrics.Histogram timer) throws Exception
+    {
+        final long startNanos = System.nanoTime();
+
+        final RssPages.Query query;
+        try {
+            query = RssPages.Query.parse(offset, limit, since);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        AsyncFeedRequest.Handler handler = new AsyncFeedRequest.Handler() {
+                public void handle(RssSnapshot snapshot) throws Exception {
+                    RssPages json = snapshot.getJson();
+                    if (json == null) {
+                        /* Only a snapshot loaded without its items, until the first refresh */
+                        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                        return;
+                    }
+                    /* Write the cached JSON (or the requested page of it) as it is */
+                    FeedContentWriter.write(request, response, json.getPage(query),
+                                            channel.getMaxAgeSeconds(snapshot));
+                    timer.recordSince(startNanos);
+                    logger.info("Incoming JSON query done");
+                }
+            };
+
+        RssSnapshot snapshot;
+        try {
+            /** Get the combined RSS feed snapshot in the locale of the request */
+            snapshot = AsyncFeedRequest.getSnapshot(request, response, channel,
+                                                    feedMetadataCache.get(RequestContextUtils.getLocale(request),
+                                                                          channelName),
+                                                    handler);
+        } catch (Throwable t) {
+            logger.error("Incoming JSON query failed with error", t);
+            throw new Exception("INTERNAL ERROR");
+        }
+
+        if (snapshot == null) {
+            /* Waiting for a refresh without holding the thread, the handler writes the response */
+            return;
+        }
+        handler.handle(snapshot);
+    }
+
+}
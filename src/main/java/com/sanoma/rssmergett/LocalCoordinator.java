@@ -0,0 +1,33 @@
+package com.sanoma.rssmergett;
+
+public class LocalCoordinator implements RssCoordinator
+{
+    /**
+     * Coordinator of a node working alone: the node is always the leader,
+     * fetches its sources itself and publishes nothing. Used unless
+     * clustering is configured.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    public boolean isLeader()
+    {
+        return true;
+    }
+
+    public boolean isClustered()
+    {
+        return false;
+    }
+
+    public long publish(String channel, String sourcesKey, RssSnapshot snapshot)
+    {
+        return 0L;
+    }
+
+    public RssSnapshotStore.Stored getPublished(String channel, String sourcesKey)
+    {
+        return null;
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.sanoma.rssmergett;
+
+import java.util.Arrays;
+
+public final class LongHashTable<V>
+{
+    /**
+     * Hash table from primitive long keys to values, using open addressing
+     * with linear probing. Keys are stored in a plain long array, so there
+     * is no boxing and no entry object per key. Not thread safe.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Marker for an empty slot; a real key 0 is stored as ZERO_KEY */
+    private static final long EMPTY = 0L;
+
+    /** Replacement for key 0, which would collide with EMPTY */
+    private static final long ZERO_KEY = 0x9e3779b97f4a7c15L;
+
+    /** Maximum fill ratio before the table is grown */
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int resizeThreshold;
+
+    /**
+     * Create a table.
+     * @param expectedSize Number of keys the table can hold without growing
+     */
+    public LongHashTable(int expectedSize)
+    {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static long storedKey(long key)
+    {
+        return key == EMPTY ? ZERO_KEY : key;
+    }
+
+    /** Spread the key bits so that sequential keys do not cluster */
+    private int slot(long key)
+    {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /** @return Number of keys in the table */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Get the value of a key.
+     * @param key The key
+     * @return The value, or null if the key is not in the table
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        key = storedKey(key);
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) return (V) values[i];
+            if (k == EMPTY) return null;
+        }
+    }
+
+    /**
+     * Check whether a key is in the table.
+     * @param key The key
+     * @return true if the key is in the table
+     */
+    public boolean contains(long key)
+    {
+        return get(key) != null;
+    }
+
+    /**
+     * Set the value of a key.
+     * @param key The key
+     * @param value The value, must not be null
+     * @return The previous value, or null if the key was not in the table
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value)
+    {
+        if (value == null) throw new NullPointerException("null values are not supported");
+        key = storedKey(key);
+        int i = slot(key);
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+            if (k == EMPTY) break;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Remove a key.
+     * @param key The key
+     * @return The removed value, or null if the key was not in the table
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key)
+    {
+        key = storedKey(key);
+        int i = slot(key);
+        while (true) {
+            long k = keys[i];
+            if (k == key) break;
+            if (k == EMPTY) return null;
+            i = (i + 1) & mask;
+        }
+        V removed = (V) values[i];
+
+        /* Shift back the following keys of the probe run so that no tombstones are needed */
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            /* Move the key if its home slot is not between the hole and its current slot */
+            boolean movable = (hole <= j) ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        values[hole] = null;
+        size--;
+        return removed;
+    }
+
+    /**
+     * Get the keys of the table, in no particular order.
+     * @return A new array of the keys
+     */
+    public long[] keys()
+    {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i=0; i<keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove all keys.
+     */
+    public void clear()
+    {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i=0; i<oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k != EMPTY) {
+                int j = slot(k);
+                while (keys[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = k;
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+}
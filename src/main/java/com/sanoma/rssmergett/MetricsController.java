@@ -0,0 +1,41 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+@Controller
+@RequestMapping(value="/metrics")
+public class MetricsController {
+
+    /**
+     * Spring Controller class for serving the runtime metrics of the service
+     * (fetch, parse, render and cache behaviour) in the Prometheus text
+     * exposition format, for scraping by a monitoring system.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Content type of the Prometheus text format */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+
+    /**
+     * Action handler for the metrics request.
+     * @param request The HTTP request
+     * @param response The HTTP response the metrics are written to
+     */
+    @RequestMapping(method=RequestMethod.GET)
+    public void metricsAction(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        RssMetrics.write(writer);
+    }
+
+}
@@ -0,0 +1,1049 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.io.*;
+import org.apache.log4j.*;
+
+public class RssChannel
+{
+    /**
+     * One combined feed: a set of source RSS feeds merged into one, with its
+     * own refresh interval, item index and snapshot.
+     *
+     * The combined result is kept in an immutable snapshot that readers get
+     * without locking. When the snapshot gets older than the refresh interval
+     * it is rebuilt in the background while readers keep getting the old one.
+     * Readers only wait when there is no snapshot yet, or when the snapshot is
+     * older than the hard staleness limit. Requests that have to wait can
+     * also be parked instead of blocking a thread: getSnapshotNow() returns
+     * null instead of waiting, and whenRefreshed() calls back when the
+     * refresh is done.
+     *
+     * All channels share one cache of the source feeds, so a source used by
+     * several channels is fetched once, and a small pool of refresh threads.
+     * The settings of a channel are read from rssmergett.channel.NAME.*,
+     * falling back to the global rssmergett.* settings; the default channel
+     * uses the global settings only. See RssFetchAndCombine for the list of
+     * channels.
+     *
+     * The items each refresh adds are published to the event stream of the
+     * channel (see RssEventStream). A channel that has been streamed is
+     * refreshed on its schedule even if nobody polls the feed.
+     *
+     * The items are also kept in a full-text index (see RssSearchIndex),
+     * updated with the item index at each refresh, for search().
+     *
+     * After each refresh of a channel that has a store and changed something
+     * the snapshot is saved to a local file (see RssSnapshotStore). After a
+     * restart warmStart() loads it, so requests are served from it at once
+     * while a background refresh catches up, even if the sources are down.
+     *
+     * Several nodes can share the work (see RssCoordinator): only the leader
+     * fetches the sources and publishes each new combined feed, and the
+     * other nodes load the published feed at their refreshes instead, so
+     * they serve the same bytes. A node fetches the sources itself while
+     * nothing has been published for the channel, or when the published
+     * feed is older than the hard staleness limit. In a cluster all the
+     * configured channels are refreshed on their schedule from the start
+     * (see startClusterRefresh()): the leader refreshes and publishes every
+     * channel, also ones it does not serve itself or has evicted, and
+     * publishes at every refresh even when nothing changed, so that a quiet
+     * feed does not look like a hung leader to the other nodes.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssChannel.class);
+
+    /** Minimum time (in milliseconds) between a failed refresh and the next attempt */
+    private static long gRetryIntervalInMillis = RssConfig.getLong("rssmergett.refresh.retryMillis", 5000L);
+
+    /** Whether the result is refreshed on a fixed schedule instead of when a reader finds it expired */
+    private static boolean gScheduledRefresh =
+        Boolean.valueOf(RssConfig.getString("rssmergett.refresh.scheduled", "false")).booleanValue();
+
+    /** Copies of the sources validated within this time (in milliseconds), e.g. for another channel, are reused */
+    private static long gSourceReuseInMillis = RssConfig.getLong("rssmergett.fetch.reuseMillis", 10000L);
+
+    /** Maximum number of localized versions (other channel texts) kept per snapshot */
+    private static final int gMaxLocalized = RssConfig.getInt("rssmergett.locale.maxVariants", 16);
+
+    /** Threads running the refreshes of all channels */
+    private static final ScheduledExecutorService gRefreshExecutor =
+        Executors.newScheduledThreadPool(RssConfig.getInt("rssmergett.refresh.threads", 2), new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "rssmergett-refresh-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Merge engine parsing and combining the feeds */
+    private static final RssXmlMerger gMerger = RssXmlMerger.createFromConfig();
+
+    /** Cache of the source RSS feeds, shared by all channels */
+    private static final RssSourceCache gSourceCache =
+        new RssSourceCache(RssFeedFetcher.createFromConfig(), gMerger);
+
+    /** Coordinator deciding which node of a cluster fetches the sources */
+    private static final RssCoordinator gCoordinator = createCoordinator();
+
+    /**
+     * Callback for a request waiting for the combined feed, see whenRefreshed().
+     */
+    public interface SnapshotCallback
+    {
+        /**
+         * Called when the refresh the request was waiting for is done.
+         * @param snapshot The new snapshot, in the requested locale
+         */
+        void snapshotReady(RssSnapshot snapshot);
+
+        /**
+         * Called when the refresh the request was waiting for failed.
+         * @param e The reason
+         */
+        void snapshotFailed(Exception e);
+    }
+
+    /**
+     * Refresh of the combined feed. Besides waiting for the result, callers
+     * can add listeners that are run when the refresh is done.
+     */
+    private final class RefreshTask extends FutureTask<RssSnapshot>
+    {
+        /** Listeners to run when done, null after they have been run */
+        private List<Runnable> listeners = new ArrayList<Runnable>();
+
+        RefreshTask()
+        {
+            super(new Callable<RssSnapshot>() {
+                    public RssSnapshot call() throws Exception {
+                        return refresh();
+                    }
+                });
+        }
+
+        /**
+         * Run a listener when the refresh is done, or now if it is done already.
+         * @param listener The listener, run in the refresh thread, must not block
+         */
+        void addListener(Runnable listener)
+        {
+            synchronized (this) {
+                if (listeners != null) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            runListener(listener);
+        }
+
+        protected void done()
+        {
+            List<Runnable> finished;
+            synchronized (this) {
+                finished = listeners;
+                listeners = null;
+            }
+            for (Runnable listener : finished) {
+                runListener(listener);
+            }
+        }
+
+        private void runListener(Runnable listener)
+        {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                logger.warn("Notifying a request waiting for the combined feed failed", e);
+            }
+        }
+    }
+
+    /** Name of the channel */
+    private final String name;
+
+    /** URLs of the source RSS feeds */
+    private final String[] sources;
+
+    /** Time interval (in milliseconds) after which we regenerate the combined RSS result */
+    private final long fetchIntervalInMillis;
+
+    /** Age (in milliseconds) after which a cached result is not served without refreshing it first */
+    private final long maxStaleInMillis;
+
+    /** Maximum number of items in the combined feed */
+    private final int maxItems;
+
+    /** Age (in milliseconds) after which items are dropped from the combined feed */
+    private final long retentionInMillis;
+
+    /** Store for the snapshot saved over restarts, or null */
+    private final RssSnapshotStore store;
+
+    /** Stream of the items added by the refreshes */
+    private final RssEventStream stream;
+
+    /** Cached combined RSS result */
+    private volatile RssSnapshot snapshot = null;
+
+    /** Channel texts used by the latest reader, used by background refreshes */
+    private volatile FeedMetadata metadata = null;
+
+    /** Time (in milliseconds) when a reader last asked for the snapshot */
+    private volatile long lastAccessTime = 0L;
+
+    /** Time (in milliseconds) when the last refresh attempt was started */
+    private volatile long lastAttemptTime = 0L;
+
+    /** Whether the next refresh fetches all sources, due or not, see refreshNow() */
+    private volatile boolean fetchAllSources = false;
+
+    /** Whether the last refresh attempt failed */
+    private volatile boolean lastRefreshFailed = false;
+
+    /** The refresh currently in progress, or the last finished one */
+    private final AtomicReference<RefreshTask> refresh = new AtomicReference<RefreshTask>();
+
+    /** Set when the fixed schedule refresh has been started */
+    private final AtomicBoolean scheduleStarted = new AtomicBoolean(false);
+
+    /** Index of the items of the combined feed, kept over refreshes; replaced when the channel is evicted */
+    private volatile RssItemIndex index;
+
+    /** Full-text index of the items, following the item index; replaced when the channel is evicted */
+    private volatile RssSearchIndex search;
+
+    /** Number of times the channel has been evicted; guarded by this */
+    private long evictions = 0L;
+
+    /** Channel texts the current snapshot was built with */
+    private FeedMetadata snapshotMetadata = null;
+
+    /** The snapshot loaded from the store, until a refresh replaces it */
+    private volatile RssSnapshot restoredSnapshot = null;
+
+    /** Items of the loaded snapshot, inserted into the index by the next refresh */
+    private volatile List<RssItem> restoredItems = null;
+
+    /** Version of the published feed the index was last updated from, -1 if the sources were fetched; refresh thread only */
+    private long publishedVersion = -1L;
+
+    /** Items of that published feed; refresh thread only */
+    private List<RssItem> publishedItems = null;
+
+    /** Set when the channel is refreshed on schedule for the cluster, see startClusterRefresh() */
+    private volatile boolean clusterRefresh = false;
+
+    /** Set when the saved snapshot has been looked for */
+    private boolean warmStarted = false;
+
+    /** Version of the source cache when the snapshot was last saved */
+    private long savedSourceVersion = -1L;
+
+    /* Metrics of the snapshot cache and the refreshes */
+    private final RssMetrics.Counter hitCounter;
+    private final RssMetrics.Counter staleCounter;
+    private final RssMetrics.Counter missCounter;
+    private final RssMetrics.Histogram refreshTimer;
+    private final RssMetrics.Counter refreshFailures;
+    private final RssMetrics.Histogram indexTimer;
+    private final RssMetrics.Histogram searchIndexTimer;
+    private final RssMetrics.Histogram searchTimer;
+    private final RssMetrics.Histogram renderTimer;
+    private final RssMetrics.Histogram jsonTimer;
+    private final RssMetrics.Histogram compressTimer;
+    private final RssMetrics.Histogram saveTimer;
+    private final RssMetrics.Counter publishCounter;
+    private final RssMetrics.Counter loadPublishedCounter;
+    private final RssMetrics.Counter fallbackCounter;
+
+    /**
+     * Create a channel.
+     * @param name Name of the channel
+     * @param sources URLs of the source RSS feeds
+     * @param fetchIntervalInMillis Age (in milliseconds) after which the combined feed is rebuilt
+     * @param maxStaleInMillis Age (in milliseconds) after which the combined feed is not served before it has been rebuilt
+     * @param maxItems Maximum number of items in the combined feed
+     * @param retentionInMillis Age (in milliseconds) after which items are dropped from the combined feed
+     * @param store Store for saving the combined feed over restarts, or null
+     */
+    public RssChannel(String name, String[] sources, long fetchIntervalInMillis, long maxStaleInMillis,
+                      int maxItems, long retentionInMillis, RssSnapshotStore store)
+    {
+        this.name = name;
+        this.sources = sources;
+        this.fetchIntervalInMillis = fetchIntervalInMillis;
+        this.maxStaleInMillis = maxStaleInMillis;
+        this.maxItems = maxItems;
+        this.retentionInMillis = retentionInMillis;
+        this.store = store;
+        this.index = new RssItemIndex(maxItems, retentionInMillis);
+        this.search = new RssSearchIndex();
+        this.stream = new RssEventStream(name);
+        if (store != null && store.isStoringFeeds()) {
+            gSourceCache.setKeepBodies(true);
+        }
+
+        hitCounter = snapshotCounter("hit");
+        staleCounter = snapshotCounter("stale");
+        missCounter = snapshotCounter("miss");
+        refreshTimer = RssMetrics.timer("rssmergett_refresh_seconds", "Time to refresh the combined feed",
+                                        "channel", name);
+        refreshFailures = RssMetrics.counter("rssmergett_refresh_failures_total",
+                                             "Failed refreshes of the combined feed", "channel", name);
+        indexTimer = RssMetrics.timer("rssmergett_index_update_seconds", "Time to update the item index",
+                                      "channel", name);
+        searchIndexTimer = RssMetrics.timer("rssmergett_search_index_update_seconds",
+                                            "Time to update the full-text index", "channel", name);
+        searchTimer = RssMetrics.timer("rssmergett_search_seconds", "Time to run a search query",
+                                       "channel", name);
+        renderTimer = RssMetrics.timer("rssmergett_render_seconds", "Time to serialize the combined feed",
+                                       "channel", name);
+        jsonTimer = RssMetrics.timer("rssmergett_json_render_seconds",
+                                     "Time to render and compress the combined feed as JSON", "channel", name);
+        compressTimer = RssMetrics.timer("rssmergett_compress_seconds",
+                                         "Time to compress the combined feed and its pages", "channel", name);
+        saveTimer = RssMetrics.timer("rssmergett_snapshot_save_seconds",
+                                     "Time to save the combined feed to the snapshot file", "channel", name);
+        publishCounter = RssMetrics.counter("rssmergett_cluster_published_total",
+                                            "Combined feeds published to the other nodes", "channel", name);
+        loadPublishedCounter = RssMetrics.counter("rssmergett_cluster_loaded_total",
+                                                  "Combined feeds loaded from the leader", "channel", name);
+        fallbackCounter = RssMetrics.counter("rssmergett_cluster_fallbacks_total",
+                                             "Refreshes that fetched the sources because the leader had not "
+                                             + "published a fresh combined feed", "channel", name);
+        RssMetrics.register("rssmergett_snapshot_age_seconds", "Age of the combined feed being served",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    RssSnapshot current = snapshot;
+                                    return current == null ? -1 : current.getAge(System.currentTimeMillis()) / 1000;
+                                }
+                            }, "channel", name);
+        RssMetrics.register("rssmergett_snapshot_bytes", "Size of the combined feed being served",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    RssSnapshot current = snapshot;
+                                    return current == null ? 0 : current.getData().length;
+                                }
+                            }, "channel", name);
+        RssMetrics.register("rssmergett_snapshot_memory_bytes",
+                            "Memory taken by the combined feed with its compressed, paged and localized versions",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    return getMemoryBytes();
+                                }
+                            }, "channel", name);
+        RssMetrics.register("rssmergett_items", "Number of items in the combined feed",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    return index.size();
+                                }
+                            }, "channel", name);
+        RssMetrics.register("rssmergett_search_words", "Number of distinct words in the full-text index",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    return search.getWordCount();
+                                }
+                            }, "channel", name);
+    }
+
+    /**
+     * Create a channel using the settings in rssmergett.properties.
+     * @param name Name of the channel, or null for the default channel
+     * @param defaultSources Sources used when none are configured
+     * @return The configured channel
+     */
+    public static RssChannel createFromConfig(String name, String[] defaultSources)
+    {
+        if (name == null) {
+            return new RssChannel("default",
+                                  RssConfig.getStringArray("rssmergett.sources", defaultSources),
+                                  RssConfig.getLong("rssmergett.refresh.intervalMillis", 60000L),
+                                  RssConfig.getLong("rssmergett.refresh.maxStaleMillis", 600000L),
+                                  RssConfig.getInt("rssmergett.index.maxItems", 500),
+                                  RssConfig.getLong("rssmergett.index.retentionMillis", 3L * 24 * 3600 * 1000),
+                                  RssSnapshotStore.createFromConfig());
+        }
+        String prefix = "rssmergett.channel." + name + ".";
+        return new RssChannel(name,
+                              RssConfig.getStringArray(prefix + "sources", defaultSources),
+                              RssConfig.getLong(prefix + "refresh.intervalMillis",
+                                                RssConfig.getLong("rssmergett.refresh.intervalMillis", 60000L)),
+                              RssConfig.getLong(prefix + "refresh.maxStaleMillis",
+                                                RssConfig.getLong("rssmergett.refresh.maxStaleMillis", 600000L)),
+                              RssConfig.getInt(prefix + "index.maxItems",
+                                               RssConfig.getInt("rssmergett.index.maxItems", 500)),
+                              RssConfig.getLong(prefix + "index.retentionMillis",
+                                                RssConfig.getLong("rssmergett.index.retentionMillis",
+                                                                  3L * 24 * 3600 * 1000)),
+                              null);
+    }
+
+    /**
+     * Create the coordinator configured with rssmergett.cluster.coordinator
+     * (a class implementing RssCoordinator) or rssmergett.cluster.directory
+     * (FileLockCoordinator).
+     * @return The coordinator, LocalCoordinator if clustering is not configured
+     */
+    private static RssCoordinator createCoordinator()
+    {
+        String className = RssConfig.getString("rssmergett.cluster.coordinator", "").trim();
+        if (className.length() > 0) {
+            try {
+                return (RssCoordinator) Class.forName(className).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                /* ClassNotFoundException, NoSuchMethodException, InvocationTargetException, .. */
+                logger.error("Could not create the coordinator " + className + ", working alone", e);
+                return new LocalCoordinator();
+            }
+        }
+        RssCoordinator coordinator = FileLockCoordinator.createFromConfig();
+        return coordinator != null ? coordinator : new LocalCoordinator();
+    }
+
+    private RssMetrics.Counter snapshotCounter(String result)
+    {
+        return RssMetrics.counter("rssmergett_snapshot_requests_total",
+                                  "Requests for the combined feed by cache result: "
+                                  + "hit (fresh), stale (served while refreshing) or miss (waited for a refresh)",
+                                  "channel", name, "result", result);
+    }
+
+    /** @return Name of the channel */
+    public String getName() { return name; }
+
+    /** @return URLs of the source RSS feeds. Must not be modified. */
+    public String[] getSources() { return sources; }
+
+    /**
+     * Get the current combined RSS snapshot. Returns immediately unless there
+     * is no snapshot yet or the snapshot is older than the hard staleness limit.
+     * @param metadata Channel texts for the combined RSS feed.
+     * @return The current snapshot.
+     */
+    public RssSnapshot getSnapshot(FeedMetadata metadata) throws Exception
+    {
+        RssSnapshot current = getServable(metadata);
+        if (current != null) {
+            return localize(current, metadata);
+        }
+        try {
+            return localize(triggerRefresh(true).get(), metadata);
+        } catch (ExecutionException e) {
+            throw (Exception) (e.getCause() instanceof Exception ? e.getCause() : e);
+        }
+    }
+
+    /**
+     * Get the current combined RSS snapshot without waiting. When
+     * getSnapshot() would wait for a refresh, this returns null instead; the
+     * caller can then get the snapshot with whenRefreshed().
+     * @param metadata Channel texts for the combined RSS feed.
+     * @return The current snapshot, or null if there is none that can be served.
+     */
+    public RssSnapshot getSnapshotNow(FeedMetadata metadata) throws Exception
+    {
+        RssSnapshot current = getServable(metadata);
+        return current == null ? null : localize(current, metadata);
+    }
+
+    /**
+     * Get the snapshot of the running refresh (or the last one, if it is
+     * done already) without holding a thread while waiting for it.
+     * @param metadata Channel texts for the combined RSS feed.
+     * @param executor Executor running the callback
+     * @param callback Callback getting the snapshot or the error when the refresh is done
+     */
+    public void whenRefreshed(final FeedMetadata metadata, final Executor executor,
+                              final SnapshotCallback callback)
+    {
+        final RefreshTask task = triggerRefresh(true);
+        task.addListener(new Runnable() {
+                public void run() {
+                    executor.execute(new Runnable() {
+                            public void run() {
+                                RssSnapshot ready;
+                                try {
+                                    ready = localize(task.get(), metadata);
+                                } catch (ExecutionException e) {
+                                    callback.snapshotFailed(e.getCause() instanceof Exception
+                                                            ? (Exception) e.getCause() : e);
+                                    return;
+                                } catch (Exception e) {
+                                    callback.snapshotFailed(e);
+                                    return;
+                                }
+                                callback.snapshotReady(ready);
+                            }
+                        });
+                }
+            });
+    }
+
+    /**
+     * Get the stream of the items added to the channel. From the first call
+     * on the channel is refreshed on its schedule, so the stream gets the
+     * new items even if nobody asks for the feed itself.
+     * @param metadata Channel texts for the combined RSS feed.
+     * @return The stream
+     */
+    public RssEventStream getEventStream(FeedMetadata metadata)
+    {
+        getServable(metadata);
+        if (scheduleStarted.compareAndSet(false, true)) {
+            startScheduledRefresh();
+        }
+        return stream;
+    }
+
+    /**
+     * Start refreshing the channel on its schedule for the cluster, if
+     * clustering is configured. Whichever node is the leader then
+     * refreshes and publishes the channel at every interval, whether or not
+     * the channel is requested from that node.
+     * @param metadata Channel texts used until the channel is requested
+     */
+    public void startClusterRefresh(FeedMetadata metadata)
+    {
+        if (!gCoordinator.isClustered()) {
+            return;
+        }
+        if (this.metadata == null) {
+            this.metadata = metadata;
+        }
+        clusterRefresh = true;
+        if (scheduleStarted.compareAndSet(false, true)) {
+            startScheduledRefresh();
+        }
+    }
+
+    /**
+     * Get the snapshot that can be served without waiting, and start a
+     * refresh if it is due.
+     * @param metadata Channel texts for the combined RSS feed.
+     * @return The snapshot (not localized), or null if the caller has to
+     *         wait for the running refresh.
+     */
+    private RssSnapshot getServable(FeedMetadata metadata)
+    {
+        this.metadata = metadata;
+        if ((gScheduledRefresh || gCoordinator.isClustered()) && scheduleStarted.compareAndSet(false, true)) {
+            startScheduledRefresh();
+        }
+
+        RssSnapshot current = snapshot;
+        if (current == null && store != null) {
+            warmStart();
+            current = snapshot;
+        }
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - lastAccessTime > 1000L) {
+            /* Only for choosing the channels to evict, so a coarse time is enough */
+            lastAccessTime = currentTime;
+        }
+        if (current != null && current.getAge(currentTime) <= fetchIntervalInMillis) {
+            hitCounter.inc();
+            return current;
+        }
+
+        /* Cached copy is old or does not exist, need to (re)generate. A loaded
+           snapshot is served while refreshing however old it is. */
+        boolean mustWait = (current == null
+                            || (current.getAge(currentTime) > maxStaleInMillis && current != restoredSnapshot));
+        triggerRefresh(mustWait);
+        if (!mustWait) {
+            staleCounter.inc();
+            return current;
+        }
+        missCounter.inc();
+        return null;
+    }
+
+    /**
+     * Load the snapshot saved before the service was last stopped, unless a
+     * snapshot already exists, and start a refresh in the background.
+     * Requests are served from the loaded snapshot until the refresh is done.
+     * Only the first call does anything.
+     * @return true if a saved snapshot was loaded
+     */
+    public synchronized boolean warmStart()
+    {
+        if (store == null || warmStarted || snapshot != null) {
+            return false;
+        }
+        warmStarted = true;
+        RssSnapshotStore.Stored stored = store.load(RssSnapshotStore.sourcesKey(sources));
+        if (stored == null) {
+            return false;
+        }
+        for (RssSourceCache.CachedFeed feed : stored.getFeeds()) {
+            gSourceCache.restore(feed);
+        }
+        RssSnapshot loaded = stored.getSnapshot();
+        try {
+            /* The index starts empty, refill it with the items that were being served */
+            restoredItems = gMerger.parseItems(new ByteArrayInputStream(loaded.getData()));
+            search.update(restoredItems);
+            loaded = new RssSnapshot(loaded.getPages(), RssJsonRenderer.render(restoredItems, loaded.getMetadata()),
+                                     loaded.getMetadata(), loaded.getGeneratedTime());
+        } catch (Exception e) {
+            logger.warn("Could not read the items of the saved snapshot: " + e);
+        }
+        if (loaded.getMetadata() != null) {
+            snapshotMetadata = loaded.getMetadata();
+            if (metadata == null) {
+                metadata = loaded.getMetadata();
+            }
+        }
+        if (snapshot != null) {
+            /* A refresh finished while loading */
+            return false;
+        }
+        restoredSnapshot = loaded;
+        snapshot = loaded;
+        lastAccessTime = System.currentTimeMillis();
+        if (metadata != null) {
+            triggerRefresh(true);
+        }
+        return true;
+    }
+
+    /**
+     * Get the version of a snapshot with the given channel texts. The items
+     * are the same for every locale, so the item bytes of the snapshot (RSS
+     * and JSON) are reused as they are and only the channel header is
+     * generated. The result is cached with the snapshot.
+     * @param snapshot The snapshot
+     * @param metadata Channel texts wanted
+     * @return Snapshot with the given channel texts
+     */
+    private static RssSnapshot localize(RssSnapshot snapshot, FeedMetadata metadata) throws Exception
+    {
+        if (metadata == null || snapshot.getMetadata() == null || metadata.equals(snapshot.getMetadata())) {
+            return snapshot;
+        }
+        RssSnapshot localized = snapshot.getLocalized(metadata);
+        if (localized != null) {
+            return localized;
+        }
+
+        /* The same content is shared by snapshots of refreshes that changed nothing */
+        RssPages basePages = snapshot.getPages();
+        RssPages pages = basePages.getLocalized(metadata);
+        if (pages == null) {
+            byte[] frame = gMerger.render(Collections.<RssItem>emptyList(),
+                                          metadata.getTitle(),
+                                          metadata.getImageURL(),
+                                          metadata.getImageTitle(),
+                                          metadata.getImageLink(),
+                                          metadata.getDescription(),
+                                          metadata.getLink(),
+                                          metadata.getLanguage());
+            byte[] bytes = basePages.reframe(frame);
+            if (bytes == null) {
+                logger.warn("Could not locate the items of the combined feed, serving it without localization");
+                return snapshot;
+            }
+            FeedContent content = FeedContent.create(bytes, RssSnapshot.CONTENT_TYPE,
+                                                     basePages.getFull().getCreatedTime());
+            pages = new RssPages(content, basePages.getTimestamps());
+            basePages.putLocalized(metadata, pages, gMaxLocalized);
+        }
+        RssPages json = snapshot.getJson();
+        if (json != null) {
+            json = RssJsonRenderer.localize(json, metadata, gMaxLocalized);
+        }
+        localized = new RssSnapshot(pages, json, metadata, snapshot.getGeneratedTime());
+        snapshot.putLocalized(localized, gMaxLocalized);
+        return localized;
+    }
+
+    /**
+     * Refresh the combined RSS snapshot now and wait for the result, e.g. to
+     * warm up the cache or to measure a refresh. All the sources are
+     * fetched, also those that are not due by their own schedule.
+     * @param metadata Channel texts for the combined RSS feed.
+     * @return The new snapshot.
+     */
+    public RssSnapshot refreshNow(FeedMetadata metadata) throws Exception
+    {
+        this.metadata = metadata;
+        fetchAllSources = true;
+        try {
+            return localize(triggerRefresh(true).get(), metadata);
+        } catch (ExecutionException e) {
+            throw (Exception) (e.getCause() instanceof Exception ? e.getCause() : e);
+        }
+    }
+
+    /**
+     * Search the items of the channel. Call this after getting a snapshot,
+     * so the index has been filled.
+     * @param terms The search query; items containing all its words match
+     * @param query Paging of the results and the oldest item date
+     * @param metadata Channel texts for the result feed
+     * @param createdTime Time the items are from, the Last-Modified of the result
+     * @param json Whether to return the result as JSON instead of RSS
+     * @return The matching items, newest first, as a feed
+     */
+    public FeedContent search(String terms, RssPages.Query query, FeedMetadata metadata, long createdTime,
+                              boolean json) throws Exception
+    {
+        long searchNanos = System.nanoTime();
+        List<RssItem> items = search.search(RssTokenizer.tokenizeQuery(terms), query);
+        searchTimer.recordSince(searchNanos);
+        if (json) {
+            return RssJsonRenderer.renderUncompressed(items, metadata, createdTime);
+        }
+        byte[] bytes = gMerger.render(items,
+                                      metadata.getTitle(),
+                                      metadata.getImageURL(),
+                                      metadata.getImageTitle(),
+                                      metadata.getImageLink(),
+                                      metadata.getDescription(),
+                                      metadata.getLink(),
+                                      metadata.getLanguage());
+        return FeedContent.createUncompressed(bytes, RssSnapshot.CONTENT_TYPE, createdTime);
+    }
+
+    /**
+     * Get how long clients may cache a snapshot: the time left until the
+     * snapshot is due for a refresh.
+     * @param snapshot The snapshot being served
+     * @return Time in seconds, 0 if the snapshot is already due for a refresh
+     */
+    public long getMaxAgeSeconds(RssSnapshot snapshot)
+    {
+        long timeLeft = fetchIntervalInMillis - snapshot.getAge(System.currentTimeMillis());
+        return Math.max(0L, timeLeft / 1000);
+    }
+
+    /** @return Time (in epoch milliseconds) when a reader last asked for the snapshot */
+    long getLastAccessTime()
+    {
+        return lastAccessTime;
+    }
+
+    /** @return Memory (in bytes) taken by the current snapshot and the search index, 0 if there is no snapshot */
+    long getMemoryBytes()
+    {
+        RssSnapshot current = snapshot;
+        if (current == null) {
+            return 0L;
+        }
+        long bytes = current.getPages().getMemoryBytes() + search.getMemoryBytes();
+        if (current.getJson() != null) {
+            bytes += current.getJson().getMemoryBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Drop the snapshot and the item and search indexes to free memory. The next reader
+     * waits for a refresh, like after a restart; the source feeds stay in
+     * the shared cache, so the refresh is cheap. A refresh running at the
+     * same time does not keep its result (see refresh()).
+     * @return Memory (in bytes) freed
+     */
+    synchronized long evict()
+    {
+        long bytes = getMemoryBytes();
+        evictions++;
+        snapshot = null;
+        restoredSnapshot = null;
+        index = new RssItemIndex(maxItems, retentionInMillis);
+        search = new RssSearchIndex();
+        return bytes;
+    }
+
+    /**
+     * Start a background refresh unless one is already running.
+     * @param force Start a new refresh even if the previous one failed recently.
+     * @return The running refresh.
+     */
+    private RefreshTask triggerRefresh(boolean force)
+    {
+        while (true) {
+            RefreshTask current = refresh.get();
+            if (current != null && !current.isDone()) {
+                return current;
+            }
+            if (current != null && !force && lastRefreshFailed
+                && System.currentTimeMillis() - lastAttemptTime < gRetryIntervalInMillis) {
+                return current;
+            }
+            RefreshTask task = new RefreshTask();
+            if (refresh.compareAndSet(current, task)) {
+                lastAttemptTime = System.currentTimeMillis();
+                gRefreshExecutor.execute(task);
+                return task;
+            }
+        }
+    }
+
+    /**
+     * Start refreshing the combined result on a fixed schedule. Evicted
+     * channels are not refreshed until they are asked for again, unless
+     * they are being streamed or this node is the leader of a cluster.
+     */
+    private void startScheduledRefresh()
+    {
+        logger.info("Refreshing channel " + name + " every " + fetchIntervalInMillis + " ms");
+        gRefreshExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    if (snapshot != null || stream.getSubscriberCount() > 0
+                        || (clusterRefresh && metadata != null && gCoordinator.isLeader())) {
+                        triggerRefresh(true);
+                    }
+                }
+            }, fetchIntervalInMillis, fetchIntervalInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Save a snapshot to the store after the running refresh, in a refresh
+     * thread, so that waiting for a refresh does not include the save.
+     * @param saved The snapshot
+     */
+    private void scheduleSave(final RssSnapshot saved)
+    {
+        gRefreshExecutor.execute(new Runnable() {
+                public void run() {
+                    if (snapshot != saved) {
+                        /* A newer snapshot has been made, it will be saved instead */
+                        return;
+                    }
+                    long startNanos = System.nanoTime();
+                    long sourceVersion = gSourceCache.getVersion();
+                    try {
+                        store.save(RssSnapshotStore.sourcesKey(sources), saved, gSourceCache.getCachedFeeds(sources));
+                        savedSourceVersion = sourceVersion;
+                    } catch (IOException e) {
+                        logger.warn("Could not save the snapshot to " + store.getFile() + ": " + e);
+                    } finally {
+                        saveTimer.recordSince(startNanos);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Publish a snapshot to the other nodes of the cluster after the running
+     * refresh, in a refresh thread, like scheduleSave().
+     * @param published The snapshot
+     */
+    private void schedulePublish(final RssSnapshot published)
+    {
+        gRefreshExecutor.execute(new Runnable() {
+                public void run() {
+                    if (snapshot != published) {
+                        /* A newer snapshot will be published instead */
+                        return;
+                    }
+                    try {
+                        long version = gCoordinator.publish(name, RssSnapshotStore.sourcesKey(sources), published);
+                        publishCounter.inc();
+                        logger.debug("Published version " + version + " of channel " + name);
+                    } catch (IOException e) {
+                        logger.warn("Could not publish channel " + name + " to the other nodes: " + e);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Get the combined feed published by the leader, if it can be served.
+     * @param currentTime Current time in epoch milliseconds
+     * @return The published feed, or null if this node has to fetch the sources itself
+     */
+    private RssSnapshotStore.Stored getPublished(long currentTime)
+    {
+        RssSnapshotStore.Stored published = gCoordinator.getPublished(name, RssSnapshotStore.sourcesKey(sources));
+        if (published == null) {
+            /* The leader has not combined this channel (yet) */
+            fallbackCounter.inc();
+            logger.debug("Nothing published for channel " + name + ", fetching the sources");
+            return null;
+        }
+        long age = published.getSnapshot().getAge(currentTime);
+        if (age > maxStaleInMillis) {
+            fallbackCounter.inc();
+            logger.warn("The feed of channel " + name + " published by the leader is " + age / 1000
+                        + " s old, fetching the sources");
+            return null;
+        }
+        return published;
+    }
+
+    /**
+     * Fetch and combine the source RSS feeds and publish the result as the
+     * new snapshot. Runs in a refresh thread, one refresh per channel at a
+     * time. A node following the leader of a cluster loads the feed the
+     * leader published instead.
+     * @return The new snapshot.
+     */
+    private RssSnapshot refresh() throws Exception
+    {
+        FeedMetadata metadata = this.metadata;
+        RssItemIndex index;
+        RssSearchIndex search;
+        long evictionsAtStart;
+        synchronized (this) {
+            index = this.index;
+            search = this.search;
+            evictionsAtStart = evictions;
+        }
+        long currentTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        try {
+            logger.info("Start fetching streams for channel " + name + "..");
+
+            boolean force = fetchAllSources;
+            fetchAllSources = false;
+            boolean leader = gCoordinator.isLeader();
+            RssSnapshotStore.Stored published = leader ? null : getPublished(currentTime);
+            boolean publishedChanged = false;
+            List<List<RssItem>> sourceItems;
+            if (published != null) {
+                /* Follow the leader: the items of its feed are the only source */
+                if (published.getVersion() != publishedVersion || publishedItems == null) {
+                    publishedItems = gMerger.parseItems(new ByteArrayInputStream(published.getSnapshot().getData()));
+                    publishedVersion = published.getVersion();
+                    publishedChanged = true;
+                    loadPublishedCounter.inc();
+                    logger.info("Loaded version " + publishedVersion + " of channel " + name + " from the leader");
+                }
+                sourceItems = Collections.singletonList(publishedItems);
+            } else {
+                publishedVersion = -1L;
+                publishedItems = null;
+                /* Refresh the cached sources that are due, unchanged sources are not downloaded or parsed again */
+                sourceItems = gSourceCache.refresh(sources,
+                                                   force ? 0L : Math.min(gSourceReuseInMillis, fetchIntervalInMillis),
+                                                   force);
+            }
+
+            /* Insert new and changed items into the index */
+            long indexNanos = System.nanoTime();
+            List<List<RssItem>> indexSources = sourceItems;
+            List<RssItem> restored = restoredItems;
+            if (restored != null) {
+                /* After the sources, so that the fetched versions of the items win over the saved ones */
+                indexSources = new ArrayList<List<RssItem>>(sourceItems.size() + 1);
+                indexSources.addAll(sourceItems);
+                indexSources.add(restored);
+            }
+            /* The first update after a start or an eviction fills the index, those items are not new */
+            boolean initialUpdate = (index.size() == 0);
+            boolean itemsChanged = index.update(indexSources, currentTime);
+            restoredItems = null;
+            indexTimer.recordSince(indexNanos);
+            if (itemsChanged) {
+                long searchNanos = System.nanoTime();
+                search.update(index.getItems());
+                searchIndexTimer.recordSince(searchNanos);
+            }
+
+            RssSnapshot previous = snapshot;
+            RssPages pages;
+            RssPages json = null;
+            if (published != null && (publishedChanged || previous == null)) {
+                /* Serve the feed of the leader as it is, so all the nodes serve the same bytes */
+                pages = published.getSnapshot().getPages();
+                if (published.getSnapshot().getMetadata() != null) {
+                    snapshotMetadata = published.getSnapshot().getMetadata();
+                } else {
+                    snapshotMetadata = metadata;
+                }
+                long jsonNanos = System.nanoTime();
+                json = RssJsonRenderer.render(publishedItems, snapshotMetadata);
+                jsonTimer.recordSince(jsonNanos);
+            } else if (previous != null && (published != null || !itemsChanged)) {
+                /* Nothing changed (or nothing new was published), keep the previous result with its cached
+                   pages and localized versions */
+                pages = previous.getPages();
+                json = previous.getJson();
+            } else {
+                /* Regenerate the combined feed from the index */
+                long renderNanos = System.nanoTime();
+                byte[] bytes = gMerger.render(index.getItems(),
+                                              metadata.getTitle(),
+                                              metadata.getImageURL(),
+                                              metadata.getImageTitle(),
+                                              metadata.getImageLink(),
+                                              metadata.getDescription(),
+                                              metadata.getLink(),
+                                              metadata.getLanguage());
+                renderTimer.recordSince(renderNanos);
+                if (previous != null && Arrays.equals(bytes, previous.getData())) {
+                    /* Same result, e.g. after reloading the saved snapshot; keep its validators */
+                    pages = previous.getPages();
+                    json = previous.getJson();
+                } else {
+                    /* Compress once here instead of on every request */
+                    long compressNanos = System.nanoTime();
+                    FeedContent content = FeedContent.create(bytes, RssSnapshot.CONTENT_TYPE);
+                    pages = new RssPages(content, index.getTimestamps());
+                    compressTimer.recordSince(compressNanos);
+                    snapshotMetadata = metadata;
+                }
+            }
+            if (json == null) {
+                /* The JSON is made from the items as well, without going through the XML */
+                long jsonNanos = System.nanoTime();
+                json = RssJsonRenderer.render(index.getItems(), snapshotMetadata);
+                jsonTimer.recordSince(jsonNanos);
+            }
+            logger.info("Fetching streams for channel " + name + " done");
+            RssSnapshot refreshed = new RssSnapshot(pages, json, snapshotMetadata, currentTime);
+            boolean kept;
+            synchronized (this) {
+                /* An eviction during the refresh wins, otherwise the memory limit would not hold; the
+                   waiting readers still get the result */
+                kept = (evictions == evictionsAtStart);
+                if (kept) {
+                    snapshot = refreshed;
+                    restoredSnapshot = null;
+                }
+            }
+            if (!kept) {
+                logger.info("Channel " + name + " was dropped during the refresh, not keeping the result");
+            }
+            lastRefreshFailed = false;
+            if (!initialUpdate) {
+                /* Published after the snapshot, so a client fetching the feed on an event gets the item */
+                stream.publish(index.getLastInserted());
+            }
+            if (stream.getSubscriberCount() > 0) {
+                /* A streamed channel is in use even if nobody polls it */
+                lastAccessTime = currentTime;
+            }
+            if (store != null && (itemsChanged || gSourceCache.getVersion() != savedSourceVersion)) {
+                scheduleSave(refreshed);
+            }
+            if (leader && gCoordinator.isClustered()) {
+                /* Also when nothing changed: the time of the published feed tells the other nodes the leader is alive */
+                schedulePublish(refreshed);
+            }
+            if (kept) {
+                RssFetchAndCombine.enforceMemoryLimit(this);
+            }
+            return refreshed;
+        } catch (Exception e) {
+            lastRefreshFailed = true;
+            refreshFailures.inc();
+            logger.error("Refreshing channel " + name + " failed, keeping the previous result", e);
+            throw e;
+        } finally {
+            refreshTimer.recordSince(startNanos);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import java.io.*;
+import org.apache.log4j.*;
+
+public class RssConfig
+{
+    /**
+     * Class for reading the rssmergett configuration. The settings are read
+     * from the classpath resource rssmergett.properties, and any setting can
+     * be overridden with a JVM system property of the same name, e.g.
+     * <code>mvn jetty:run -Drssmergett.fetch.readTimeoutMillis=3000</code>.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssConfig.class);
+
+    /** Classpath location of the configuration file */
+    private static final String CONFIG_RESOURCE = "/rssmergett.properties";
+
+    /** Settings loaded from the configuration file */
+    private static final Properties gProperties = loadProperties();
+
+    private RssConfig()
+    {
+    }
+
+    /**
+     * Load the configuration file from the classpath.
+     * @return Loaded settings, empty if the file does not exist.
+     */
+    private static Properties loadProperties()
+    {
+        Properties properties = new Properties();
+        InputStream is = RssConfig.class.getResourceAsStream(CONFIG_RESOURCE);
+        if (is == null) {
+            logger.warn("Configuration " + CONFIG_RESOURCE + " not found, using defaults");
+            return properties;
+        }
+        try {
+            properties.load(is);
+        } catch (IOException e) {
+            logger.error("Reading configuration " + CONFIG_RESOURCE + " failed, using defaults", e);
+        } finally {
+            try { is.close(); } catch (Throwable tt) { /* ignore */ }
+        }
+        return properties;
+    }
+
+    /**
+     * Get a string setting.
+     * @param key Name of the setting
+     * @param defaultValue Value returned when the setting is not defined
+     * @return Value of the setting
+     */
+    public static String getString(String key, String defaultValue)
+    {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = gProperties.getProperty(key);
+        }
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * Get an integer setting.
+     * @param key Name of the setting
+     * @param defaultValue Value returned when the setting is not defined or is invalid
+     * @return Value of the setting
+     */
+    public static int getInt(String key, int defaultValue)
+    {
+        return (int) getLong(key, defaultValue);
+    }
+
+    /**
+     * Get a long integer setting.
+     * @param key Name of the setting
+     * @param defaultValue Value returned when the setting is not defined or is invalid
+     * @return Value of the setting
+     */
+    public static long getLong(String key, long defaultValue)
+    {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value '" + value + "' for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get a list setting. List entries are separated by commas and/or whitespace.
+     * @param key Name of the setting
+     * @param defaultValue Value returned when the setting is not defined
+     * @return Value of the setting
+     */
+    public static String[] getStringArray(String key, String[] defaultValue)
+    {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        ArrayList<String> entries = new ArrayList<String>();
+        for (String entry : value.split("[,\\s]+")) {
+            if (entry.length() > 0) {
+                entries.add(entry);
+            }
+        }
+        return entries.toArray(new String[entries.size()]);
+    }
+
+}
@@ -3,20 +3,22 @@ package com.sanoma.rssmergett;
 import java.util.*;
 import java.io.*;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.springframework.stereotype.Controller;
-import org.springframework.ui.Model;
-import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.context.MessageSource;
-import org.springframework.context.MessageSourceAware;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.servlet.support.RequestContextUtils;
 
 import org.apache.log4j.*;
 
 @Controller
 @RequestMapping(value="/rss")
-public class RssController implements MessageSourceAware {
+public class RssController {
 
     /**
      * Spring Controller class for serving request for XML/RSS version of the
@@ -29,61 +31,154 @@ public class RssController implements MessageSourceAware {
     /* Logger for the class */
     protected static final Logger logger = Logger.getLogger(RssController.class);
 
-    /** MessageSource for accessing localized strings */
-    private MessageSource messageSource;
+    /* Metrics of the requests */
+    private static final RssMetrics.Counter gRequestCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/rss");
+    private static final RssMetrics.Histogram gRequestTimer = RssMetrics.timer(
+        "rssmergett_request_seconds", "Time to handle a request, by endpoint", "endpoint", "/rss");
+    private static final RssMetrics.Counter gChannelRequestCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/rss/{channel}");
+    private static final RssMetrics.Histogram gChannelRequestTimer = RssMetrics.timer(
+        "rssmergett_request_seconds", "Time to handle a request, by endpoint", "endpoint", "/rss/{channel}");
+    private static final RssMetrics.Counter gStreamCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/rss/stream");
+    private static final RssMetrics.Counter gChannelStreamCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/rss/{channel}/stream");
 
-    /** Setter for injecting the MessageSource bean.
-     * @param bundle Injected MessageSource bean.
-     */
-    public void setMessageSource(MessageSource bundle) {
-        messageSource = bundle;
-    }
+    /** Localized channel texts of the combined feed */
+    private FeedMetadataCache feedMetadataCache;
 
-    /** Helper class for getting simple localized string from properties.
-     * However, currently this does NOT support several locales as the default locale
-     * is used.
-     * @param key Text resource key in the bundle
-     * @return Localized text
+    /** Setter for injecting the FeedMetadataCache bean.
+     * @param cache Injected FeedMetadataCache bean.
      */
-    private String getText(String key) 
-    {
-        return messageSource.getMessage(key, new Object[0], Locale.getDefault());
+    @Autowired
+    public void setFeedMetadataCache(FeedMetadataCache cache) {
+        feedMetadataCache = cache;
     }
 
     /**
      * Action handler for generating the combined RSS feed request in RSS format.
      * This method loads the source RSS feeds and renders it as it is.
-     * @param model Data model for the rendering jsp
-     * @return Spring view for the JSP rendering of result
+     * @param request The HTTP request
+     * @param response The HTTP response the RSS is written to
+     * @param offset Number of newest items to skip (optional)
+     * @param limit Maximum number of items (optional)
+     * @param since Only include items newer than this, epoch milliseconds, ISO-8601 or RFC-822 (optional)
      */
     @RequestMapping(method=RequestMethod.GET)
-    public String rssAction(Model model) throws Exception
+    public void rssAction(HttpServletRequest request, HttpServletResponse response,
+                          @RequestParam(value="offset", required=false) String offset,
+                          @RequestParam(value="limit", required=false) String limit,
+                          @RequestParam(value="since", required=false) String since) throws Exception
     {      
         logger.info("Incoming RSS query");
+        gRequestCounter.inc();
+        serve(request, response, RssFetchAndCombine.getDefaultChannel(), null, offset, limit, since, gRequestTimer);
+    }
+
+    /**
+     * Action handler for the RSS feed of a named channel, see rssAction().
+     * @param channel Name of the channel
+     */
+    @RequestMapping(value="/{channel}", method=RequestMethod.GET)
+    public void rssChannelAction(HttpServletRequest request, HttpServletResponse response,
+                                 @PathVariable("channel") String channel,
+                                 @RequestParam(value="offset", required=false) String offset,
+                                 @RequestParam(value="limit", required=false) String limit,
+                                 @RequestParam(value="since", required=false) String since) throws Exception
+    {
+        logger.info("Incoming RSS query for channel " + channel);
+        gChannelRequestCounter.inc();
+        RssChannel rssChannel = RssFetchAndCombine.getChannel(channel);
+        if (rssChannel == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such channel: " + channel);
+            return;
+        }
+        serve(request, response, rssChannel, channel, offset, limit, since, gChannelRequestTimer);
+    }
+
+    /**
+     * Action handler for the stream of the items added to the combined feed,
+     * as Server-Sent Events. See RssEventStream.
+     * @param request The HTTP request
+     * @param response The HTTP response the events are written to
+     */
+    @RequestMapping(value="/stream", method=RequestMethod.GET)
+    public void streamAction(HttpServletRequest request, HttpServletResponse response) throws Exception
+    {
+        logger.info("Incoming RSS stream");
+        gStreamCounter.inc();
+        RssFetchAndCombine.getDefaultChannel()
+            .getEventStream(feedMetadataCache.get(RequestContextUtils.getLocale(request)))
+            .subscribe(request, response);
+    }
 
+    /**
+     * Action handler for the event stream of a named channel, see streamAction().
+     * @param channel Name of the channel
+     */
+    @RequestMapping(value="/{channel}/stream", method=RequestMethod.GET)
+    public void channelStreamAction(HttpServletRequest request, HttpServletResponse response,
+                                    @PathVariable("channel") String channel) throws Exception
+    {
+        logger.info("Incoming RSS stream for channel " + channel);
+        gChannelStreamCounter.inc();
+        RssChannel rssChannel = RssFetchAndCombine.getChannel(channel);
+        if (rssChannel == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such channel: " + channel);
+            return;
+        }
+        rssChannel.getEventStream(feedMetadataCache.get(RequestContextUtils.getLocale(request), channel))
+            .subscribe(request, response);
+    }
+
+    /**
+     * Write the RSS feed of a channel.
+     * @param channelName Name of the channel for the channel texts, null for the default channel
+     * @param timer Histogram the time of the request is recorded in
+     */
+    private void serve(final HttpServletRequest request, final HttpServletResponse response,
+                       final RssChannel channel, String channelName,
+                       String offset, String limit, String since,
+                       final RssMetrics.Histogram timer) throws Exception
+    {
+        final long startNanos = System.nanoTime();
+
+        final RssPages.Query query;
         try {
-            /** Get the combined RSS feed as XML */
-            RssXmlMerger rssMerget = new RssXmlMerger();
-            byte[] xmlBytes = 
-                RssFetchAndCombine.fetchAndCombineRSS(getText("feed.title"),
-                                                      getText("feed.imageURL"),
-                                                      getText("feed.imageTitle"),
-                                                      getText("feed.imageLink"),
-                                                      getText("feed.description"),
-                                                      getText("feed.link"),
-                                                      getText("feed.language"));
-            
-            /* Pass generated XML to JSP for rendering */
-            String xml = new String(xmlBytes, "UTF-8");
-            model.addAttribute("xml", xml);
-            
+            query = RssPages.Query.parse(offset, limit, since);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        AsyncFeedRequest.Handler handler = new AsyncFeedRequest.Handler() {
+                public void handle(RssSnapshot snapshot) throws Exception {
+                    /* Write the cached XML (or the requested page of it) as it is */
+                    FeedContentWriter.write(request, response, snapshot.getPages().getPage(query),
+                                            channel.getMaxAgeSeconds(snapshot));
+                    timer.recordSince(startNanos);
+                    logger.info("Incoming RSS query done");
+                }
+            };
+
+        RssSnapshot snapshot;
+        try {
+            /** Get the combined RSS feed snapshot in the locale of the request */
+            snapshot = AsyncFeedRequest.getSnapshot(request, response, channel,
+                                                    feedMetadataCache.get(RequestContextUtils.getLocale(request),
+                                                                          channelName),
+                                                    handler);
         } catch (Throwable t) {
             logger.error("Incoming XML query failed with error", t);
             throw new Exception("INTERNAL ERROR");
         }
 
-        logger.info("Incoming RSS query done");
-        return "rssmergett/xml";
+        if (snapshot == null) {
+            /* Waiting for a refresh without holding the thread, the handler writes the response */
+            return;
+        }
+        handler.handle(snapshot);
     }
 
 }
@@ -0,0 +1,59 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+
+public interface RssCoordinator
+{
+    /**
+     * Coordinates the nodes of a cluster serving the same channels, so that
+     * only one node (the leader) fetches and combines the source feeds. The
+     * leader publishes each new combined feed of a channel with a version
+     * number; the other nodes load the published feed instead of fetching
+     * the sources, and serve the same bytes. When the leader goes away,
+     * another node takes over.
+     *
+     * A single node uses LocalCoordinator: it is always the leader and
+     * publishes nothing. FileLockCoordinator coordinates the nodes through a
+     * shared directory. Other implementations can be configured with
+     * rssmergett.cluster.coordinator, see RssChannel.
+     *
+     * The methods are called from the refresh threads of the channels.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /**
+     * Check whether this node is the leader, trying to become one if there
+     * is no leader.
+     * @return true if this node fetches the sources and publishes the combined feeds
+     */
+    boolean isLeader();
+
+    /**
+     * @return true if the combined feeds are shared with other nodes; false
+     *         when this node works alone
+     */
+    boolean isClustered();
+
+    /**
+     * Publish a combined feed made by this node to the other nodes. Called
+     * at every refresh of the leader, also when the feed has not changed:
+     * the generation time of the published feed tells the other nodes that
+     * the leader is alive. The version changes only when the content does.
+     * @param channel Name of the channel
+     * @param sourcesKey Identifies the sources of the channel, see RssSnapshotStore.sourcesKey()
+     * @param snapshot The combined feed
+     * @return Version of the published feed
+     */
+    long publish(String channel, String sourcesKey, RssSnapshot snapshot) throws IOException;
+
+    /**
+     * Get the latest combined feed published for a channel. Checking for a
+     * new version should be cheap, this is called at every refresh.
+     * @param channel Name of the channel
+     * @param sourcesKey Identifies the sources of the channel; feeds published for other sources are ignored
+     * @return The feed with its version, or null if none has been published
+     */
+    RssSnapshotStore.Stored getPublished(String channel, String sourcesKey);
+
+}
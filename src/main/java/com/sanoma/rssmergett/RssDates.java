@@ -0,0 +1,360 @@
+package com.sanoma.rssmergett;
+
+public class RssDates
+{
+    /**
+     * Helpers for converting RSS item dates into epoch milliseconds.
+     *
+     * The parsers work on the characters of the text in place: they do not
+     * create substrings, boxed numbers or calendars, so parsing the date of
+     * an item allocates nothing. They take any CharSequence, so a date can
+     * be parsed straight from a parser buffer.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Returned when a date can not be parsed */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    /** First three letters of the month names in RFC-822 dates, in lower case */
+    private static final String MONTHS = "janfebmaraprmayjunjulaugsepoctnovdec";
+
+    /** Days in each month of a non-leap year */
+    private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    private RssDates()
+    {
+    }
+
+    /**
+     * Get the date of an item: the dc:date if it is valid, otherwise the
+     * RSS 2.0 pubDate.
+     * @param dcDate The dc:date text, or null
+     * @param pubDate The pubDate text, or null
+     * @return The date in epoch milliseconds, or INVALID if neither is a valid date
+     */
+    public static long parseItemDate(CharSequence dcDate, CharSequence pubDate)
+    {
+        long date = parseIsoDate(dcDate);
+        return (date != INVALID) ? date : parseRfc822Date(pubDate);
+    }
+
+    /**
+     * Parse a date given either as an ISO-8601 date or as an RFC-822 date.
+     * @param date The date text
+     * @return The date in epoch milliseconds, or INVALID if the text is not a valid date
+     */
+    public static long parseDate(CharSequence date)
+    {
+        long value = parseIsoDate(date);
+        return (value != INVALID) ? value : parseRfc822Date(date);
+    }
+
+    /**
+     * Parse an ISO-8601 date as used in dc:date, e.g. "2013-05-20T12:00:00+03:00".
+     * Seconds, fractions of a second and the time zone are optional; a date
+     * without time zone is taken as UTC.
+     * @param date The date text
+     * @return The date in epoch milliseconds, or INVALID if the text is not a valid date
+     */
+    public static long parseIsoDate(CharSequence date)
+    {
+        if (date == null) return INVALID;
+        int end = trimEnd(date);
+        int pos = skipSpaces(date, 0, end);
+        if (end - pos < 10 || date.charAt(pos + 4) != '-' || date.charAt(pos + 7) != '-') return INVALID;
+        int year = digits(date, pos, 4, end);
+        int month = digits(date, pos + 5, 2, end);
+        int day = digits(date, pos + 8, 2, end);
+        pos += 10;
+        int hour = 0, minute = 0, second = 0, millis = 0;
+        if (pos < end && (date.charAt(pos) == 'T' || date.charAt(pos) == ' ')) {
+            if (end - pos < 6 || date.charAt(pos + 3) != ':') return INVALID;
+            hour = digits(date, pos + 1, 2, end);
+            minute = digits(date, pos + 4, 2, end);
+            pos += 6;
+            if (pos < end && date.charAt(pos) == ':') {
+                second = digits(date, pos + 1, 2, end);
+                pos += 3;
+                if (pos < end && (date.charAt(pos) == '.' || date.charAt(pos) == ',')) {
+                    int start = ++pos;
+                    int unit = 100;
+                    while (pos < end && isDigit(date.charAt(pos))) {
+                        millis += (date.charAt(pos++) - '0') * unit;
+                        unit /= 10;
+                    }
+                    if (pos == start) return INVALID;
+                }
+            }
+        }
+        int offsetMinutes = 0;
+        if (pos < end) {
+            char c = date.charAt(pos);
+            if (c == 'Z' || c == 'z') {
+                pos++;
+            } else if (c == '+' || c == '-') {
+                int offsetHours = digits(date, pos + 1, 2, end);
+                int offsetMins = 0;
+                pos += 3;
+                if (pos < end && date.charAt(pos) == ':') {
+                    /* A colon must be followed by the minutes */
+                    offsetMins = digits(date, pos + 1, 2, end);
+                    pos += 3;
+                } else if (pos < end) {
+                    offsetMins = digits(date, pos, 2, end);
+                    pos += 2;
+                }
+                if (offsetHours < 0 || offsetHours > 23 || offsetMins < 0 || offsetMins > 59) return INVALID;
+                offsetMinutes = (c == '-' ? -1 : 1) * (offsetHours * 60 + offsetMins);
+            }
+        }
+        if (pos != end) return INVALID;
+        if (!isValid(year, month, day, hour, minute, second)) return INVALID;
+        return toEpochMillis(year, month, day, hour, minute, second, millis) - offsetMinutes * 60000L;
+    }
+
+    /**
+     * Parse an RFC-822 date as used in the RSS 2.0 pubDate, e.g.
+     * "Mon, 20 May 2013 12:00:00 +0300". The day of the week, the seconds
+     * and the time zone are optional, and two digit years are accepted as
+     * in RFC 2822. The zone can be a numeric offset or one of UT, GMT, Z,
+     * EST, EDT, CST, CDT, MST, MDT, PST and PDT; other zone names and a
+     * missing zone are taken as UTC.
+     * @param date The date text
+     * @return The date in epoch milliseconds, or INVALID if the text is not a valid date
+     */
+    public static long parseRfc822Date(CharSequence date)
+    {
+        if (date == null) return INVALID;
+        int end = trimEnd(date);
+        int pos = skipSpaces(date, 0, end);
+
+        // Optional day of the week
+        if (pos < end && isLetter(date.charAt(pos))) {
+            while (pos < end && isLetter(date.charAt(pos))) pos++;
+            if (pos < end && date.charAt(pos) == ',') pos++;
+            pos = skipSpaces(date, pos, end);
+        }
+
+        // Day, month and year
+        int start = pos;
+        int day = 0;
+        while (pos < end && isDigit(date.charAt(pos))) day = day * 10 + (date.charAt(pos++) - '0');
+        if (pos - start < 1 || pos - start > 2) return INVALID;
+        pos = skipSpaces(date, pos, end);
+        int month = monthNumber(date, pos, end);
+        if (month < 0) return INVALID;
+        while (pos < end && isLetter(date.charAt(pos))) pos++;
+        pos = skipSpaces(date, pos, end);
+        start = pos;
+        int year = 0;
+        while (pos < end && isDigit(date.charAt(pos))) year = year * 10 + (date.charAt(pos++) - '0');
+        if (pos - start == 2) {
+            year += (year < 50) ? 2000 : 1900;
+        } else if (pos - start != 4) {
+            return INVALID;
+        }
+        pos = skipSpaces(date, pos, end);
+
+        // Time
+        start = pos;
+        int hour = 0;
+        while (pos < end && isDigit(date.charAt(pos))) hour = hour * 10 + (date.charAt(pos++) - '0');
+        if (pos - start < 1 || pos - start > 2 || pos >= end || date.charAt(pos) != ':') return INVALID;
+        int minute = digits(date, pos + 1, 2, end);
+        pos += 3;
+        int second = 0;
+        if (pos < end && date.charAt(pos) == ':') {
+            second = digits(date, pos + 1, 2, end);
+            pos += 3;
+        }
+        pos = skipSpaces(date, pos, end);
+
+        // Time zone
+        int offsetMinutes = 0;
+        if (pos < end) {
+            char c = date.charAt(pos);
+            if (c == '+' || c == '-') {
+                int offset = digits(date, pos + 1, 4, end);
+                if (offset < 0 || offset % 100 > 59) return INVALID;
+                offsetMinutes = (c == '-' ? -1 : 1) * ((offset / 100) * 60 + offset % 100);
+                pos += 5;
+            } else if (isLetter(c)) {
+                start = pos;
+                while (pos < end && isLetter(date.charAt(pos))) pos++;
+                offsetMinutes = zoneOffsetMinutes(date, start, pos);
+            } else {
+                return INVALID;
+            }
+        }
+        if (pos != end) return INVALID;
+        if (!isValid(year, month, day, hour, minute, second)) return INVALID;
+        return toEpochMillis(year, month, day, hour, minute, second, 0) - offsetMinutes * 60000L;
+    }
+
+    /**
+     * Format epoch milliseconds as an ISO-8601 date in UTC, e.g. "2013-05-20T09:00:00Z".
+     * @param millis The date in epoch milliseconds
+     * @return The date text
+     */
+    public static String formatIsoDate(long millis)
+    {
+        long days = floorDiv(millis, 86400000L);
+        int millisOfDay = (int) (millis - days * 86400000L);
+        // Inverse of daysFromCivil (H. Hinnant's civil_from_days algorithm)
+        long z = days + 719468L;
+        long era = floorDiv(z, 146097L);
+        int dayOfEra = (int) (z - era * 146097L);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        int seconds = millisOfDay / 1000;
+        StringBuilder sb = new StringBuilder(20);
+        sb.append(year).append('-');
+        appendTwoDigits(sb, month).append('-');
+        appendTwoDigits(sb, day).append('T');
+        appendTwoDigits(sb, seconds / 3600).append(':');
+        appendTwoDigits(sb, seconds / 60 % 60).append(':');
+        appendTwoDigits(sb, seconds % 60).append('Z');
+        return sb.toString();
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder sb, int value)
+    {
+        return sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static long floorDiv(long a, long b)
+    {
+        long q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * Read a fixed number of decimal digits.
+     * @return The value, or -1 if the characters are not all digits or run past the end
+     */
+    private static int digits(CharSequence s, int pos, int count, int end)
+    {
+        if (pos < 0 || pos + count > end) return -1;
+        int value = 0;
+        for (int i=pos; i<pos+count; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Month number (1-12) of the month name starting at pos, matched by its
+     * first three letters in any case, or -1 if it is not a month name.
+     */
+    private static int monthNumber(CharSequence s, int pos, int end)
+    {
+        if (pos + 3 > end) return -1;
+        char c0 = Character.toLowerCase(s.charAt(pos));
+        char c1 = Character.toLowerCase(s.charAt(pos + 1));
+        char c2 = Character.toLowerCase(s.charAt(pos + 2));
+        for (int i=0; i<MONTHS.length(); i+=3) {
+            if (MONTHS.charAt(i) == c0 && MONTHS.charAt(i + 1) == c1 && MONTHS.charAt(i + 2) == c2) {
+                return i / 3 + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Offset from UTC (in minutes) of a time zone name of RFC-822.
+     */
+    private static int zoneOffsetMinutes(CharSequence s, int start, int end)
+    {
+        if (end - start != 3 || Character.toUpperCase(s.charAt(start + 2)) != 'T') return 0;
+        char zone = Character.toUpperCase(s.charAt(start));
+        boolean daylight = Character.toUpperCase(s.charAt(start + 1)) == 'D';
+        if (!daylight && Character.toUpperCase(s.charAt(start + 1)) != 'S') return 0;
+        int standardHours;
+        switch (zone) {
+        case 'E': standardHours = -5; break;
+        case 'C': standardHours = -6; break;
+        case 'M': standardHours = -7; break;
+        case 'P': standardHours = -8; break;
+        default: return 0;
+        }
+        return (daylight ? standardHours + 1 : standardHours) * 60;
+    }
+
+    private static boolean isValid(int year, int month, int day, int hour, int minute, int second)
+    {
+        if (year < 0 || month < 1 || month > 12 || day < 1
+            || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return false;
+        }
+        boolean leapYear = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+        return day <= ((month == 2 && leapYear) ? 29 : DAYS_IN_MONTH[month - 1]);
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isSpace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static int skipSpaces(CharSequence s, int pos, int end)
+    {
+        while (pos < end && isSpace(s.charAt(pos))) pos++;
+        return pos;
+    }
+
+    private static int trimEnd(CharSequence s)
+    {
+        int end = s.length();
+        while (end > 0 && isSpace(s.charAt(end - 1))) end--;
+        return end;
+    }
+
+    /**
+     * Convert a UTC date and time into epoch milliseconds.
+     */
+    static long toEpochMillis(int year, int month, int day, int hour, int minute, int second, int millis)
+    {
+        return ((daysFromCivil(year, month, day) * 24L + hour) * 60L + minute) * 60000L + second * 1000L + millis;
+    }
+
+    /**
+     * Number of days from 1970-01-01 to the given date in the proleptic
+     * Gregorian calendar (H. Hinnant's days_from_civil algorithm).
+     */
+    static long daysFromCivil(int year, int month, int day)
+    {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468L;
+    }
+
+    /** Test driver: parses the dates given as arguments and prints them in UTC */
+    public static void main(String[] args)
+    {
+        for (String arg : args) {
+            long date = parseDate(arg);
+            System.out.println(arg + " -> " + (date == INVALID ? "INVALID" : date + " " + formatIsoDate(date)));
+        }
+    }
+
+}
@@ -0,0 +1,471 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.*;
+
+public class RssEventStream
+{
+    /**
+     * Server-Sent Events stream of the items added to one channel. Each
+     * refresh publishes the items it added (or changed) as events, one
+     * event per item with the item as JSON (see RssJsonRenderer), so
+     * clients get the new items as they come instead of polling the whole
+     * feed.
+     *
+     * The connections are asynchronous requests (Servlet 3.0): an idle
+     * connection holds no thread. Events are written by a small pool of
+     * threads shared by all streams, each connection by one thread at a
+     * time from a queue of its own. A client that falls more than
+     * rssmergett.stream.maxQueuedEvents writes behind is disconnected. A
+     * comment is sent every rssmergett.stream.heartbeatMillis to keep idle
+     * connections open through proxies and to notice clients that went
+     * away.
+     *
+     * The writes block (Servlet 3.0 has no non-blocking output), so a
+     * client that stops reading without closing the connection blocks the
+     * thread writing to it. A watchdog disconnects a client whose write has
+     * taken longer than rssmergett.stream.writeTimeoutMillis, and the pool
+     * gets an extra thread for as long as the write stays blocked, so
+     * stalled clients do not hold the others back. The heartbeats and the
+     * watchdog run in a timer thread of their own, which never writes.
+     *
+     * The latest rssmergett.stream.bufferItems events are kept in a ring
+     * buffer. A client reconnecting with the Last-Event-ID header (which
+     * browsers send automatically) gets the events it missed; if they are
+     * no longer in the buffer it gets a "reset" event first, telling it
+     * to reload the feed, and then the buffered events.
+     *
+     * The events of each node and run are different (each node publishes
+     * the items its own index added), so an event ID is a random run
+     * identifier followed by the number of the event, e.g. "k3v9x0q2a1-42".
+     * A client reconnecting to another node of a cluster, or to the same
+     * node after a restart, sends an ID of another run and gets a "reset"
+     * instead of events picked by a number that means something else here.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssEventStream.class);
+
+    /** Content type of the stream */
+    public static final String CONTENT_TYPE = "text/event-stream;charset=UTF-8";
+
+    /** Number of recent events kept for clients that reconnect */
+    private static final int gBufferSize = Math.max(1, RssConfig.getInt("rssmergett.stream.bufferItems", 1000));
+
+    /** Interval (in milliseconds) of the comments sent to keep the connections open */
+    private static long gHeartbeatInMillis = RssConfig.getLong("rssmergett.stream.heartbeatMillis", 15000L);
+
+    /** Maximum number of open connections per stream */
+    private static int gMaxConnections = RssConfig.getInt("rssmergett.stream.maxConnections", 10000);
+
+    /** Maximum number of writes waiting for one client before it is disconnected */
+    private static int gMaxQueuedWrites = RssConfig.getInt("rssmergett.stream.maxQueuedEvents", 1000);
+
+    /** Time (in milliseconds) clients wait before reconnecting, sent to them in the retry field */
+    private static long gRetryInMillis = RssConfig.getLong("rssmergett.stream.retryMillis", 5000L);
+
+    /** Time (in milliseconds) after which a client whose write has not returned is disconnected */
+    private static long gWriteTimeoutInMillis = RssConfig.getLong("rssmergett.stream.writeTimeoutMillis", 10000L);
+
+    /** Number of threads writing to the clients when no write is stalled */
+    private static final int gWriteThreads = Math.max(1, RssConfig.getInt("rssmergett.stream.threads", 2));
+
+    /** Threads writing to the clients of all streams */
+    private static final ThreadPoolExecutor gWriteExecutor = new ThreadPoolExecutor(
+        gWriteThreads, gWriteThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "rssmergett-stream-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Thread sending the heartbeats and watching for stalled writes; never writes itself */
+    private static final ScheduledExecutorService gTimer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rssmergett-stream-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Number of writer threads blocked in a stalled write; guarded by gWriteExecutor */
+    private static int gStalledWrites = 0;
+
+    static {
+        RssMetrics.register("rssmergett_stream_stalled_writes", "Stream writes blocked longer than the write timeout",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    synchronized (gWriteExecutor) {
+                                        return gStalledWrites;
+                                    }
+                                }
+                            });
+    }
+
+    /** Comment keeping a connection open */
+    private static final byte[] HEARTBEAT = bytes(":\n\n");
+
+    /** Event telling a client that it missed events that are no longer buffered */
+    private static final byte[] RESET = bytes("event: reset\ndata: {}\n\n");
+
+    /** Name of the channel */
+    private final String name;
+
+    /** Buffered events by slot, the slot of an event is its ID modulo the buffer size; guarded by this */
+    private final byte[][] events = new byte[gBufferSize][];
+
+    /** Identifies this run of the stream in the event IDs, unique over nodes and restarts */
+    private final String run;
+
+    /** Number of the latest event, the first one is 1; guarded by this */
+    private long lastId = 0L;
+
+    /** Connected clients */
+    private final Set<Subscriber> subscribers =
+        Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+
+    /* Metrics of the stream */
+    private final RssMetrics.Counter eventCounter;
+    private final RssMetrics.Counter rejectedCounter;
+
+    /**
+     * Create a stream.
+     * @param name Name of the channel
+     */
+    public RssEventStream(String name)
+    {
+        this.name = name;
+        this.run = Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36);
+
+        eventCounter = RssMetrics.counter("rssmergett_stream_events_total", "Items published to the event streams",
+                                          "channel", name);
+        rejectedCounter = RssMetrics.counter("rssmergett_stream_rejected_total",
+                                             "Stream connections refused because of the connection limit",
+                                             "channel", name);
+        RssMetrics.register("rssmergett_stream_connections", "Open event stream connections",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    return subscribers.size();
+                                }
+                            }, "channel", name);
+
+        gTimer.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    for (Subscriber subscriber : subscribers) {
+                        subscriber.send(HEARTBEAT);
+                    }
+                }
+            }, gHeartbeatInMillis, gHeartbeatInMillis, TimeUnit.MILLISECONDS);
+        long watchInMillis = Math.max(100L, gWriteTimeoutInMillis / 4);
+        gTimer.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    long currentTime = System.currentTimeMillis();
+                    for (Subscriber subscriber : subscribers) {
+                        subscriber.checkStalled(currentTime);
+                    }
+                }
+            }, watchInMillis, watchInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add or remove a writer thread for a write that stalled or returned,
+     * so the number of threads free for the other clients stays the same.
+     * @param delta +1 when a write stalled, -1 when a stalled write returned
+     */
+    private static void adjustWriters(int delta)
+    {
+        synchronized (gWriteExecutor) {
+            gStalledWrites += delta;
+            int size = gWriteThreads + gStalledWrites;
+            if (delta > 0) {
+                gWriteExecutor.setMaximumPoolSize(size);
+                gWriteExecutor.setCorePoolSize(size);
+            } else {
+                gWriteExecutor.setCorePoolSize(size);
+                gWriteExecutor.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    /** @return Number of connected clients */
+    public int getSubscriberCount()
+    {
+        return subscribers.size();
+    }
+
+    /**
+     * Publish items to the connected clients and buffer them for the ones
+     * that reconnect.
+     * @param items The items, oldest first
+     */
+    public void publish(List<RssItem> items) throws IOException
+    {
+        if (items.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(items.size() * 1024);
+        synchronized (this) {
+            for (RssItem item : items) {
+                long id = ++lastId;
+                byte[] event = ("id: " + run + "-" + id + "\ndata: " + RssJsonRenderer.renderItem(item) + "\n\n").getBytes("UTF-8");
+                events[(int) (id % gBufferSize)] = event;
+                batch.write(event);
+            }
+            /* Sent in the lock, so a client subscribing now gets each event exactly once */
+            byte[] bytes = batch.toByteArray();
+            for (Subscriber subscriber : subscribers) {
+                subscriber.send(bytes);
+            }
+        }
+        eventCounter.add(items.size());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Published " + items.size() + " items to " + subscribers.size()
+                         + " clients of channel " + name);
+        }
+    }
+
+    /**
+     * Start streaming to a client. The request is put into asynchronous
+     * mode and stays open until the client disconnects.
+     * @param request The request, with the Last-Event-ID header (or the
+     *        lastEventId parameter) if the client is reconnecting
+     * @param response The response
+     */
+    public void subscribe(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        if (!request.isAsyncSupported()) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                               "Streaming needs asynchronous request support");
+            return;
+        }
+        if (subscribers.size() >= gMaxConnections) {
+            rejectedCounter.inc();
+            response.setHeader("Retry-After", String.valueOf(Math.max(1L, gRetryInMillis / 1000)));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many stream connections");
+            return;
+        }
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (lastEventId == null || lastEventId.trim().length() == 0) {
+            lastEventId = request.getParameter("lastEventId");
+        }
+
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache");
+        AsyncContext context = request.startAsync(request, response);
+        /* The stream is open until the client goes away */
+        context.setTimeout(0);
+        Subscriber subscriber = new Subscriber(context, response.getOutputStream());
+        context.addListener(subscriber);
+        subscriber.send(bytes("retry: " + gRetryInMillis + "\n\n"));
+
+        synchronized (this) {
+            if (lastEventId != null && lastEventId.trim().length() > 0) {
+                long resumeAfter = parseEventId(lastEventId);
+                long oldest = Math.max(1L, lastId - gBufferSize + 1);
+                if (resumeAfter < oldest - 1 || resumeAfter > lastId) {
+                    /* Missed events that are no longer buffered, or an ID from another node or run */
+                    subscriber.send(RESET);
+                    resumeAfter = oldest - 1;
+                }
+                for (long id = resumeAfter + 1; id <= lastId; id++) {
+                    subscriber.send(events[(int) (id % gBufferSize)]);
+                }
+            }
+            if (!subscriber.isClosed()) {
+                /* Not when it was disconnected for falling behind already while catching up */
+                subscribers.add(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Parse an event ID sent by a client.
+     * @return The number of the event, or -1 if the ID is not one of this run
+     */
+    private long parseEventId(String value)
+    {
+        value = value.trim();
+        if (!value.startsWith(run + "-")) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(value.substring(run.length() + 1));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * One connected client. The writes are queued and written by one
+     * thread at a time.
+     */
+    private final class Subscriber implements Runnable, AsyncListener
+    {
+        private final AsyncContext context;
+        private final OutputStream out;
+
+        /** Writes waiting to be written */
+        private final ConcurrentLinkedQueue<byte[]> pending = new ConcurrentLinkedQueue<byte[]>();
+
+        /** Number of writes waiting */
+        private final AtomicInteger queued = new AtomicInteger();
+
+        /** Set while a thread is writing the queue */
+        private final AtomicBoolean writing = new AtomicBoolean(false);
+
+        /** Set when the connection has been closed */
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        /** Time (in epoch milliseconds) the running write started, 0 when not writing */
+        private volatile long writeStartTime = 0L;
+
+        /** Set when the running write has been found stalled and a writer thread added for it */
+        private final AtomicBoolean stalled = new AtomicBoolean(false);
+
+        Subscriber(AsyncContext context, OutputStream out)
+        {
+            this.context = context;
+            this.out = out;
+        }
+
+        /** @return true if the connection has been closed */
+        boolean isClosed()
+        {
+            return closed.get();
+        }
+
+        /**
+         * Queue bytes to be written to the client.
+         */
+        void send(byte[] bytes)
+        {
+            if (closed.get()) {
+                return;
+            }
+            if (queued.incrementAndGet() > gMaxQueuedWrites) {
+                close("slow");
+                return;
+            }
+            pending.offer(bytes);
+            if (writing.compareAndSet(false, true)) {
+                gWriteExecutor.execute(this);
+            }
+        }
+
+        /** Writes the queue to the client */
+        public void run()
+        {
+            try {
+                byte[] bytes;
+                while (!closed.get() && (bytes = pending.poll()) != null) {
+                    queued.decrementAndGet();
+                    writeStartTime = System.currentTimeMillis();
+                    out.write(bytes);
+                }
+                if (!closed.get()) {
+                    writeStartTime = System.currentTimeMillis();
+                    out.flush();
+                }
+            } catch (Exception e) {
+                logger.debug("Stream client of channel " + name + " went away: " + e);
+                close("client");
+            } finally {
+                writeStartTime = 0L;
+                if (stalled.compareAndSet(true, false)) {
+                    adjustWriters(-1);
+                }
+                writing.set(false);
+                if (!closed.get() && !pending.isEmpty() && writing.compareAndSet(false, true)) {
+                    gWriteExecutor.execute(this);
+                }
+            }
+        }
+
+        /**
+         * Disconnect the client if its write has been blocked for longer
+         * than the write timeout. Called by the timer thread.
+         * @param currentTime Current time in epoch milliseconds
+         */
+        void checkStalled(long currentTime)
+        {
+            long started = writeStartTime;
+            if (started == 0L || currentTime - started <= gWriteTimeoutInMillis) {
+                return;
+            }
+            if (stalled.compareAndSet(false, true)) {
+                /* The blocked thread is lost to the others until the write returns */
+                adjustWriters(1);
+                if (writeStartTime == 0L && stalled.compareAndSet(true, false)) {
+                    /* Returned meanwhile, and run() did not see the flag */
+                    adjustWriters(-1);
+                }
+                logger.info("Stream client of channel " + name + " has not read for "
+                            + (currentTime - started) + " ms, disconnecting");
+            }
+            close("stalled");
+            /* Unblocks the write on containers that close the connection when the stream is closed */
+            try { out.close(); } catch (Throwable tt) { /* ignore */ }
+        }
+
+        /**
+         * Close the connection.
+         * @param reason Why, for the metrics
+         */
+        private void close(String reason)
+        {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            subscribers.remove(this);
+            pending.clear();
+            RssMetrics.counter("rssmergett_stream_disconnects_total", "Closed event stream connections, by reason",
+                               "channel", name, "reason", reason).inc();
+            try { context.complete(); } catch (Throwable tt) { /* ignore */ }
+        }
+
+        public void onComplete(AsyncEvent event)
+        {
+            /* Completed by the container, e.g. when the client went away */
+            close("client");
+        }
+
+        public void onTimeout(AsyncEvent event)
+        {
+            close("timeout");
+        }
+
+        public void onError(AsyncEvent event)
+        {
+            close("client");
+        }
+
+        public void onStartAsync(AsyncEvent event)
+        {
+        }
+    }
+
+    private static byte[] bytes(String s)
+    {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            /* UTF-8 is always supported */
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
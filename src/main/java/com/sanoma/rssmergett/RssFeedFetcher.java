@@ -0,0 +1,419 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.*;
+import java.net.*;
+import org.apache.log4j.*;
+
+public class RssFeedFetcher
+{
+    /**
+     * Class for downloading the source RSS feeds. All sources are fetched
+     * in parallel on a bounded thread pool, and every fetch has a connect
+     * timeout, a read timeout and a total deadline, so one slow or hung
+     * source can not stall the refresh of the combined feed.
+     *
+     * The deadline of a source starts when its fetch starts, not when it is
+     * queued: with more sources than threads (the pool is shared by all the
+     * channels), the time spent waiting for a thread is not counted against
+     * the source. The time spent queued is bounded separately by the
+     * maximum wait of fetchAll(). A fetch that runs out of time is aborted
+     * by closing its connection, which also frees a thread blocked in a
+     * read.
+     *
+     * Sources can also be file: or jar: URLs (e.g. fixtures), which are
+     * read as they are, without conditional requests. A response larger
+     * than rssmergett.fetch.maxBytes is rejected, whatever its
+     * Content-Length claims.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssFeedFetcher.class);
+
+    /** Size of the buffer used for reading the feeds */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /** Largest initial size of the body buffer, whatever the Content-Length of the response */
+    private static final int MAX_INITIAL_BUFFER_SIZE = 1024 * 1024;
+
+    /** Thread pool running the fetches */
+    private final ExecutorService executor;
+
+    /** Timeout (in milliseconds) for opening the connection to a source */
+    private final int connectTimeoutMillis;
+
+    /** Timeout (in milliseconds) for a single blocking read from a source */
+    private final int readTimeoutMillis;
+
+    /** Time (in milliseconds) after which the fetch of a single source is abandoned */
+    private final long deadlineMillis;
+
+    /** Time (in milliseconds) fetchAll() waits at most, including the time the fetches are queued */
+    private final long maxWaitMillis;
+
+    /** Maximum size (in bytes, uncompressed) of a source feed */
+    private final int maxBodyBytes;
+
+    /**
+     * Create a fetcher.
+     * @param nrThreads Maximum number of sources fetched at the same time.
+     * @param connectTimeoutMillis Connect timeout for a source, in milliseconds.
+     * @param readTimeoutMillis Read timeout for a source, in milliseconds.
+     * @param deadlineMillis Total time allowed for fetching a source, in milliseconds, from the start of its fetch.
+     * @param maxWaitMillis Total time allowed for fetching all the sources of a call, in milliseconds.
+     * @param maxBodyBytes Maximum size of a source feed, in bytes, uncompressed.
+     */
+    public RssFeedFetcher(int nrThreads, int connectTimeoutMillis, int readTimeoutMillis, long deadlineMillis,
+                          long maxWaitMillis, int maxBodyBytes)
+    {
+        this.maxBodyBytes = maxBodyBytes;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.deadlineMillis = deadlineMillis;
+        this.maxWaitMillis = Math.max(deadlineMillis, maxWaitMillis);
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(nrThreads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "rssmergett-fetch-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * Create a fetcher using the settings in rssmergett.properties.
+     * @return The configured fetcher
+     */
+    public static RssFeedFetcher createFromConfig()
+    {
+        return new RssFeedFetcher(RssConfig.getInt("rssmergett.fetch.threads", 4),
+                                  RssConfig.getInt("rssmergett.fetch.connectTimeoutMillis", 5000),
+                                  RssConfig.getInt("rssmergett.fetch.readTimeoutMillis", 10000),
+                                  RssConfig.getLong("rssmergett.fetch.deadlineMillis", 15000L),
+                                  RssConfig.getLong("rssmergett.fetch.maxWaitMillis", 60000L),
+                                  RssConfig.getInt("rssmergett.fetch.maxBytes", 16 * 1024 * 1024));
+    }
+
+    /** @return Time (in milliseconds) after which the fetch of a single source is abandoned */
+    public long getDeadlineMillis()
+    {
+        return deadlineMillis;
+    }
+
+    /** @return Time (in milliseconds) fetchAll() waits at most, including the time the fetches are queued */
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Result of fetching one source.
+     */
+    public static final class Result
+    {
+        /** HTTP status of the response, or -1 if the fetch failed */
+        private final int status;
+
+        /** Response body, null unless the status is 200 */
+        private final byte[] body;
+
+        /** ETag header of the response */
+        private final String etag;
+
+        /** Last-Modified header of the response */
+        private final String lastModified;
+
+        /** Reason of the failure, null if the fetch succeeded */
+        private final IOException error;
+
+        Result(int status, byte[] body, String etag, String lastModified, IOException error)
+        {
+            this.status = status;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.error = error;
+        }
+
+        public int getStatus() { return status; }
+        public byte[] getBody() { return body; }
+        public String getEtag() { return etag; }
+        public String getLastModified() { return lastModified; }
+        public IOException getError() { return error; }
+
+        /** @return true if the source has not changed since the given validators */
+        public boolean isNotModified() { return status == HttpURLConnection.HTTP_NOT_MODIFIED; }
+
+        /** @return true if the fetch failed */
+        public boolean isFailed() { return error != null; }
+    }
+
+    /**
+     * Fetch of one source in the thread pool. Records when it started and
+     * the open connection, so the caller can tell how long it has run and
+     * abort it.
+     */
+    private final class FetchTask implements Callable<Result>
+    {
+        private final String url;
+        private final String etag;
+        private final String lastModified;
+
+        /** Time (in epoch milliseconds) the fetch started, 0 while queued */
+        private volatile long startTime = 0L;
+
+        /** The open connection, or null */
+        private URLConnection connection = null;
+
+        /** Set when the caller gave up on the fetch; guarded by this */
+        private boolean aborted = false;
+
+        FetchTask(String url, String etag, String lastModified)
+        {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public Result call() throws IOException
+        {
+            startTime = System.currentTimeMillis();
+            return fetch(url, etag, lastModified, startTime + deadlineMillis, this);
+        }
+
+        /** Remember the connection, or close it at once if the fetch has been aborted */
+        synchronized void setConnection(URLConnection connection)
+        {
+            this.connection = connection;
+            if (aborted) {
+                disconnect(connection);
+            }
+        }
+
+        /** Give up the fetch, closing its connection so that a blocked read returns */
+        synchronized void abort()
+        {
+            aborted = true;
+            if (connection != null) {
+                disconnect(connection);
+            }
+        }
+    }
+
+    /**
+     * Fetch all given sources in parallel. Each source gets the deadline
+     * from the start of its own fetch; the method returns when all the
+     * sources have been read or have run out of time, at most after the
+     * maximum wait. A failure of one source does not affect the others, it
+     * is reported in its result.
+     * @param urls URLs of the source RSS feeds
+     * @param etags ETags of the cached copies for If-None-Match, or null entries
+     * @param lastModifieds Last-Modified values of the cached copies for If-Modified-Since, or null entries
+     * @return Results of the fetches, in the same order as the URLs.
+     */
+    public Result[] fetchAll(String[] urls, String[] etags, String[] lastModifieds)
+    {
+        long maxWaitTime = System.currentTimeMillis() + maxWaitMillis;
+        List<FetchTask> tasks = new ArrayList<FetchTask>(urls.length);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(urls.length);
+        for (int i=0; i<urls.length; i++) {
+            FetchTask task = new FetchTask(urls[i], etags[i], lastModifieds[i]);
+            tasks.add(task);
+            futures.add(executor.submit(task));
+        }
+
+        Result[] results = new Result[urls.length];
+        for (int i=0; i<urls.length; i++) {
+            FetchTask task = tasks.get(i);
+            Future<Result> future = futures.get(i);
+            IOException failure = null;
+            try {
+                results[i] = await(task, future, maxWaitTime);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                task.abort();
+                failure = new SocketTimeoutException("Fetching " + urls[i]
+                                                     + (task.startTime == 0L ? " was not started in time" : " timed out"));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    failure = (IOException) e.getCause();
+                } else {
+                    failure = (IOException) new IOException("Fetching " + urls[i] + " failed").initCause(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                task.abort();
+                failure = new InterruptedIOException("Fetching " + urls[i] + " interrupted");
+            }
+            if (failure != null) {
+                results[i] = new Result(-1, null, null, null, failure);
+            }
+            String status = (failure == null) ? String.valueOf(results[i].getStatus())
+                : (failure instanceof SocketTimeoutException) ? "timeout" : "error";
+            RssMetrics.counter("rssmergett_fetch_total", "Source feed fetches by result",
+                               "source", urls[i], "status", status).inc();
+        }
+        return results;
+    }
+
+    /**
+     * Wait for the result of a fetch until its deadline, counted from the
+     * start of the fetch, or until the maximum wait of the call.
+     * @param task The fetch
+     * @param future Its future
+     * @param maxWaitTime Time (in epoch milliseconds) after which the caller gives up
+     * @return Result of the fetch
+     * @throws TimeoutException If the fetch did not finish in time
+     */
+    private Result await(FetchTask task, Future<Result> future, long maxWaitTime)
+        throws TimeoutException, ExecutionException, InterruptedException
+    {
+        while (true) {
+            long started = task.startTime;
+            long now = System.currentTimeMillis();
+            /* While queued, wait one deadline at a time: a fetch starting meanwhile has time left after it */
+            long until = (started == 0L) ? now + deadlineMillis : started + deadlineMillis;
+            long timeLeft = Math.min(until, maxWaitTime) - now;
+            if (timeLeft <= 0L) {
+                if (future.isDone()) {
+                    return future.get();
+                }
+                throw new TimeoutException();
+            }
+            try {
+                return future.get(timeLeft, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (task.startTime != 0L && task.startTime + deadlineMillis <= System.currentTimeMillis()) {
+                    throw e;
+                }
+                /* Still queued, or started during the wait: wait on */
+            }
+        }
+    }
+
+    /**
+     * Fetch one source and buffer it fully in memory.
+     * @param url URL of the source
+     * @param etag ETag of the cached copy, or null
+     * @param lastModified Last-Modified of the cached copy, or null
+     * @param deadline Time (in epoch milliseconds) after which the fetch is abandoned.
+     * @param task The task running the fetch, told about the connection
+     * @return Result of the fetch
+     */
+    private Result fetch(String url, String etag, String lastModified, long deadline, FetchTask task)
+        throws IOException
+    {
+        long startNanos = System.nanoTime();
+        try {
+            Result result = fetchOnce(url, etag, lastModified, deadline, task);
+            if (result.getBody() != null) {
+                RssMetrics.sizes("rssmergett_fetch_bytes", "Size of the downloaded source feeds",
+                                 "source", url).record(result.getBody().length);
+            }
+            return result;
+        } finally {
+            RssMetrics.timer("rssmergett_fetch_seconds", "Time to fetch a source feed, including failures",
+                             "source", url).recordSince(startNanos);
+        }
+    }
+
+    /** Fetch one source, see fetch() */
+    private Result fetchOnce(String url, String etag, String lastModified, long deadline, FetchTask task)
+        throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+        URLConnection connection = new URL(url).openConnection();
+        task.setConnection(connection);
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setUseCaches(false);
+        int status = HttpURLConnection.HTTP_OK;
+        String responseEtag = null;
+        String responseLastModified = null;
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection) connection;
+            http.setRequestProperty("Accept-Encoding", "gzip");
+            if (etag != null) {
+                http.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                http.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            status = http.getResponseCode();
+            responseEtag = http.getHeaderField("ETag");
+            responseLastModified = http.getHeaderField("Last-Modified");
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Not modified: " + url);
+                }
+                return new Result(status, null,
+                                  responseEtag != null ? responseEtag : etag,
+                                  responseLastModified != null ? responseLastModified : lastModified,
+                                  null);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                http.disconnect();
+                throw new IOException("Fetching " + url + " failed with HTTP status " + status);
+            }
+        }
+
+        InputStream is = connection.getInputStream();
+        try {
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                is = new java.util.zip.GZIPInputStream(is);
+            }
+            int contentLength = connection.getContentLength();
+            if (contentLength > maxBodyBytes) {
+                throw new IOException("Source " + url + " is too large: " + contentLength + " bytes");
+            }
+            /* The Content-Length is only a hint, a bogus one must not allocate much */
+            int initialSize = contentLength > 0 ? Math.min(contentLength, MAX_INITIAL_BUFFER_SIZE) : READ_BUFFER_SIZE;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(initialSize);
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                bos.write(buffer, 0, n);
+                if (bos.size() > maxBodyBytes) {
+                    throw new IOException("Source " + url + " is larger than " + maxBodyBytes + " bytes");
+                }
+                /* The read timeout does not catch a source that keeps sending slowly */
+                if (System.currentTimeMillis() > deadline) {
+                    throw new SocketTimeoutException("Deadline exceeded while reading " + url);
+                }
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Fetched " + url + " (" + bos.size() + " bytes) in "
+                             + (System.currentTimeMillis() - startTime) + " ms");
+            }
+            return new Result(status, bos.toByteArray(), responseEtag, responseLastModified, null);
+        } finally {
+            try { is.close(); } catch (Throwable tt) { /* ignore */ }
+        }
+    }
+
+    /**
+     * Close a connection. Only HTTP connections can be closed from another
+     * thread; the others (files) do not block for long.
+     */
+    private static void disconnect(URLConnection connection)
+    {
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).disconnect();
+        }
+    }
+
+    /**
+     * Stop the fetch threads.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+}
@@ -1,29 +1,95 @@
 package com.sanoma.rssmergett;
 
 import java.util.*;
-import java.io.*;
-import java.net.*;
 import org.apache.log4j.*;
 
-public class RssFetchAndCombine 
+public class RssFetchAndCombine
 {
     /**
      * Class for fetching and combining serveral RSS feeds into one.
-     * 
+     *
+     * The service serves a default channel, combining the feeds in
+     * rssmergett.sources, and the named channels listed in
+     * rssmergett.channels, each combining the feeds in
+     * rssmergett.channel.NAME.sources. Every channel has its own refresh
+     * interval and snapshot (see RssChannel); the source feeds are cached
+     * once for all of them.
+     *
+     * The memory taken by the snapshots of all channels is limited to
+     * rssmergett.channels.maxBytes. When a refresh takes the total over the
+     * limit, the snapshots of the channels that have been asked for least
+     * recently are dropped until it fits; they are rebuilt when they are
+     * asked for again.
+     *
+     * The static methods without a channel use the default channel.
+     *
      * @author Tuomas Tynjälä
      */
 
     /* Logger for the class */
     protected static final Logger logger = Logger.getLogger(RssFetchAndCombine.class);
 
-    /** Time (in milliseconds) when cached combined RSS result was last updated */
-    private static long gLastFetchTime = 0L;
+    /** Source RSS feeds used when rssmergett.sources is not configured */
+    private static final String[] DEFAULT_SOURCES = new String[] {
+        "http://rss.kauppalehti.fi/rss/yritysuutiset.jsp",
+        "http://rss.kauppalehti.fi/rss/omaraha.jsp",
+        "http://rss.kauppalehti.fi/rss/etusivun_mobiili.jsp",
+        "http://rss.kauppalehti.fi/rss/auto.jsp"
+    };
 
-    /** Time interval (in milliseconds) after which we regenerate the combined RSS result */
-    private static long gFetchIntervalInMillis = 60000L;
+    /** Maximum memory (in bytes) taken by the snapshots of all channels */
+    private static long gMaxSnapshotBytes = RssConfig.getLong("rssmergett.channels.maxBytes", 256L * 1024 * 1024);
 
-    /** Cached combined RSS result, as UTF-8 encoded XML */
-    private static volatile byte[] gLastFetchedData = null;
+    /** The default channel, served at /rss and /html */
+    private static final RssChannel gDefaultChannel = RssChannel.createFromConfig(null, DEFAULT_SOURCES);
+
+    /** Named channels, served at /rss/NAME and /html/NAME */
+    private static final Map<String, RssChannel> gChannels = createChannels();
+
+    /* Metrics of the evictions */
+    private static final RssMetrics.Counter gEvictionCounter = RssMetrics.counter(
+        "rssmergett_channel_evictions_total", "Channels whose snapshot was dropped to stay within the memory limit");
+
+    static {
+        RssMetrics.register("rssmergett_channels_memory_bytes", "Memory taken by the snapshots of all channels",
+                            new RssMetrics.Gauge() {
+                                public long get() {
+                                    return getMemoryBytes();
+                                }
+                            });
+    }
+
+    private RssFetchAndCombine()
+    {
+    }
+
+    /**
+     * Create the named channels listed in the configuration.
+     * @return Channels by name, in the configured order
+     */
+    private static Map<String, RssChannel> createChannels()
+    {
+        Map<String, RssChannel> channels = new LinkedHashMap<String, RssChannel>();
+        for (String name : RssConfig.getStringArray("rssmergett.channels", new String[0])) {
+            if (channels.containsKey(name) || name.equals(gDefaultChannel.getName())) {
+                logger.warn("Ignoring duplicate channel " + name);
+                continue;
+            }
+            if (name.equals("stream")) {
+                /* /rss/stream is the event stream of the default channel */
+                logger.warn("Ignoring channel " + name + ": the name is reserved");
+                continue;
+            }
+            RssChannel channel = RssChannel.createFromConfig(name, null);
+            if (channel.getSources() == null) {
+                logger.warn("Ignoring channel " + name + ": rssmergett.channel." + name + ".sources is not set");
+                continue;
+            }
+            channels.put(name, channel);
+            logger.info("Channel " + name + ": " + Arrays.asList(channel.getSources()));
+        }
+        return Collections.unmodifiableMap(channels);
+    }
 
     /**
      * Method for loading, caching and combining several RSS feeds.
@@ -46,69 +112,126 @@ public class RssFetchAndCombine
                                             String link,
                                             String language) throws Exception
     {
+        return getSnapshot(new FeedMetadata(title,
+                                            imageURL,
+                                            imageTitle,
+                                            imageLink,
+                                            description,
+                                            link,
+                                            language)).getData();
+    }
 
-        long currentTime = System.currentTimeMillis();
-        synchronized (RssFetchAndCombine.class) {
-            /* Check if we can use the casched combined result */
-            if ((currentTime - gLastFetchTime) > gFetchIntervalInMillis) {
-                /** Cashed copy is old or does not exists, need to (re)generate */
-                gLastFetchTime = currentTime;
-
-                /* List of source RSS feeds that we'll combine */
-                String[] sourceRssURLStrings = new String[] {
-                    "http://rss.kauppalehti.fi/rss/yritysuutiset.jsp",
-                    "http://rss.kauppalehti.fi/rss/omaraha.jsp",
-                    "http://rss.kauppalehti.fi/rss/etusivun_mobiili.jsp",
-                    "http://rss.kauppalehti.fi/rss/auto.jsp"
-                };
-                int nrFeeds = sourceRssURLStrings.length;
-                
-                logger.info("Start fetching streams..");
-                
-                URL[] sourceRssURLs = new URL[nrFeeds];
-                InputStream[] sourceRssInputs = new InputStream[nrFeeds];
-                String xml = null;
-                try { 
-                    /* Open source RSS streams for reading */
-                    for (int i=0; i<nrFeeds; i++) {
-                        sourceRssURLs[i] = new URL(sourceRssURLStrings[i]);
-                        sourceRssInputs[i] = sourceRssURLs[i].openStream();
-                    }
-
-                    /* Use helper for loading and combining the RSS feeds */
-                    RssXmlMerger merger = new RssXmlMerger();
-                    xml = new String(merger.merge(sourceRssInputs, 
-                                                  title,
-                                                  imageURL,
-                                                  imageTitle,
-                                                  imageLink,
-                                                  description,
-                                                  link,
-                                                  language),
-                                     "UTF-8");
-                } finally {
-                    /* Close the source RSS feed streams */
-                    if (sourceRssInputs != null) {
-                        for (InputStream is : sourceRssInputs) {
-                            if (is != null) {
-                                try { is.close(); } catch (Throwable tt) { /* ignore */ }
-                            }
-                        }
-                    }
-                }
-                
-                /* Get the generated combined RSS XML as UTF-8 bytes */
-                byte[] bytes = null;
-                try { 
-                    bytes = xml.getBytes("UTF-8"); 
-                } catch (Throwable tt) { 
-                    tt.printStackTrace(); // utf-8 is always supported so this should not happen 
+    /** @return The default channel */
+    public static RssChannel getDefaultChannel()
+    {
+        return gDefaultChannel;
+    }
+
+    /**
+     * Get a channel by name.
+     * @param name Name of the channel
+     * @return The channel, or null if there is no such channel
+     */
+    public static RssChannel getChannel(String name)
+    {
+        return gChannels.get(name);
+    }
+
+    /**
+     * Get the current combined RSS snapshot of the default channel, see
+     * RssChannel.getSnapshot().
+     * @param metadata Channel texts for the combined RSS feed.
+     * @return The current snapshot.
+     */
+    public static RssSnapshot getSnapshot(FeedMetadata metadata) throws Exception
+    {
+        return gDefaultChannel.getSnapshot(metadata);
+    }
+
+    /**
+     * Load the snapshot of the default channel saved before the service was
+     * last stopped, see RssChannel.warmStart().
+     * @return true if a saved snapshot was loaded
+     */
+    public static boolean warmStart()
+    {
+        return gDefaultChannel.warmStart();
+    }
+
+    /**
+     * Start refreshing all the channels on their schedule for the cluster,
+     * if clustering is configured, see RssChannel.startClusterRefresh().
+     * @param metadataCache The channel texts, in the default locale until a channel is requested
+     */
+    public static void startClusterRefresh(FeedMetadataCache metadataCache)
+    {
+        gDefaultChannel.startClusterRefresh(metadataCache.get(null));
+        for (RssChannel channel : gChannels.values()) {
+            channel.startClusterRefresh(metadataCache.get(null, channel.getName()));
+        }
+    }
+
+    /**
+     * Refresh the combined RSS snapshot of the default channel now and wait
+     * for the result, e.g. to warm up the cache or to measure a refresh.
+     * @param metadata Channel texts for the combined RSS feed.
+     * @return The new snapshot.
+     */
+    public static RssSnapshot refreshNow(FeedMetadata metadata) throws Exception
+    {
+        return gDefaultChannel.refreshNow(metadata);
+    }
+
+    /**
+     * Get how long clients may cache a snapshot of the default channel.
+     * @param snapshot The snapshot being served
+     * @return Time in seconds, 0 if the snapshot is already due for a refresh
+     */
+    public static long getMaxAgeSeconds(RssSnapshot snapshot)
+    {
+        return gDefaultChannel.getMaxAgeSeconds(snapshot);
+    }
+
+    /** @return Memory (in bytes) taken by the snapshots of all channels */
+    private static long getMemoryBytes()
+    {
+        long bytes = gDefaultChannel.getMemoryBytes();
+        for (RssChannel channel : gChannels.values()) {
+            bytes += channel.getMemoryBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Drop the snapshots of the least recently used channels until the
+     * snapshots of all channels fit in the memory limit. Called after each
+     * refresh.
+     * @param refreshed The channel just refreshed, it is not evicted
+     */
+    static synchronized void enforceMemoryLimit(RssChannel refreshed)
+    {
+        long total = getMemoryBytes();
+        while (total > gMaxSnapshotBytes) {
+            RssChannel coldest = null;
+            if (gDefaultChannel != refreshed && gDefaultChannel.getMemoryBytes() > 0) {
+                coldest = gDefaultChannel;
+            }
+            for (RssChannel channel : gChannels.values()) {
+                if (channel != refreshed && channel.getMemoryBytes() > 0
+                    && (coldest == null || channel.getLastAccessTime() < coldest.getLastAccessTime())) {
+                    coldest = channel;
                 }
-                logger.info("Fetching streams done");
-                gLastFetchedData = bytes;
             }
+            if (coldest == null) {
+                logger.warn("Channel " + refreshed.getName() + " alone takes " + total
+                            + " bytes, more than rssmergett.channels.maxBytes");
+                return;
+            }
+            total -= coldest.evict();
+            gEvictionCounter.inc();
+            logger.info("Dropped the snapshot of channel " + coldest.getName() + " to free memory, "
+                        + total + " bytes in use");
         }
-        return gLastFetchedData;
     }
 
 }
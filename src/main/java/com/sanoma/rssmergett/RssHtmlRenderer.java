@@ -0,0 +1,316 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.xml.transform.*;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import org.apache.log4j.*;
+
+public class RssHtmlRenderer
+{
+    /**
+     * Class for rendering the combined RSS feed as HTML with XSLT. The
+     * stylesheet is read from the classpath and compiled once; the compiled
+     * Templates are thread safe and shared by all requests. The rendered HTML
+     * is cached for the snapshot content it was made from, so a snapshot is
+     * rendered (and compressed) only once however many requests read it.
+     * Pages of the feed are cached the same way in a small LRU cache.
+     *
+     * The cache is locked only to look up and add entries. The transform and
+     * the compression run outside the lock in the request that missed, and
+     * other requests for the same content wait for that rendering, so a miss
+     * does not hold up requests for anything else.
+     *
+     * The stylesheet is reloaded when its file changes, so the HTML layout
+     * can be changed without restarting the service.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssHtmlRenderer.class);
+
+    /**
+     * Rendering of HTML, done or in progress, together with what it is
+     * rendered from.
+     */
+    private static final class Rendered extends FutureTask<FeedContent>
+    {
+        final FeedContent rss;
+        final Templates templates;
+
+        Rendered(final FeedContent rss, final Templates templates)
+        {
+            super(new Callable<FeedContent>() {
+                    public FeedContent call() throws Exception {
+                        return renderHtml(templates, rss);
+                    }
+                });
+            this.rss = rss;
+            this.templates = templates;
+        }
+    }
+
+    /** Content type of the rendered HTML */
+    public static final String CONTENT_TYPE = "text/html;charset=UTF-8";
+
+    /** Classpath location of the stylesheet */
+    private final String stylesheetResource;
+
+    /** Interval (in milliseconds) for checking whether the stylesheet has changed, 0 to never check */
+    private final long reloadCheckInMillis;
+
+    /** Compiled stylesheet */
+    private volatile Templates templates;
+
+    /** Modification time of the compiled stylesheet */
+    private volatile long templatesLastModified;
+
+    /** Time (in milliseconds) of the last check for a changed stylesheet */
+    private volatile long lastReloadCheckTime;
+
+    /* Metrics of the rendering */
+    private static final RssMetrics.Counter gHitCounter = RssMetrics.counter(
+        "rssmergett_html_cache_total", "HTML render requests by cache result", "result", "hit");
+    private static final RssMetrics.Counter gMissCounter = RssMetrics.counter(
+        "rssmergett_html_cache_total", "HTML render requests by cache result", "result", "miss");
+    private static final RssMetrics.Histogram gTransformTimer = RssMetrics.timer(
+        "rssmergett_xslt_seconds", "Time to transform the combined feed into HTML");
+
+    /** Maximum number of rendered pages kept */
+    private static final int gMaxCachedPages = RssConfig.getInt("rssmergett.pages.maxCached", 32);
+
+    /** HTML of the latest rendered snapshot or page, always done */
+    private volatile Rendered rendered;
+
+    /** Recently rendered snapshots and pages by RSS content identity, guarded by itself */
+    private final Map<FeedContent, Rendered> renderedPages =
+        new LinkedHashMap<FeedContent, Rendered>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<FeedContent, Rendered> eldest) {
+                return size() > gMaxCachedPages;
+            }
+        };
+
+    /**
+     * Create a renderer.
+     * @param stylesheetResource Classpath location of the XSLT stylesheet
+     * @param reloadCheckInMillis Interval (in milliseconds) for checking whether the
+     *        stylesheet has changed, 0 to never reload it.
+     */
+    public RssHtmlRenderer(String stylesheetResource, long reloadCheckInMillis) throws TransformerException, IOException
+    {
+        this.stylesheetResource = stylesheetResource;
+        this.reloadCheckInMillis = reloadCheckInMillis;
+        this.lastReloadCheckTime = System.currentTimeMillis();
+        compile();
+    }
+
+    /**
+     * Create a renderer using the settings in rssmergett.properties.
+     * @return The configured renderer
+     */
+    public static RssHtmlRenderer createFromConfig() throws TransformerException, IOException
+    {
+        return new RssHtmlRenderer(RssConfig.getString("rssmergett.html.stylesheet", "/rss2html.xsl"),
+                                   RssConfig.getLong("rssmergett.html.reloadCheckMillis", 5000L));
+    }
+
+    /**
+     * Get the HTML rendering of a snapshot.
+     * @param snapshot The combined RSS snapshot to render
+     * @return The HTML as UTF-8 encoded binary, with compressed variants.
+     */
+    public FeedContent render(RssSnapshot snapshot) throws TransformerException, IOException
+    {
+        return render(snapshot.getContent());
+    }
+
+    /**
+     * Get the HTML rendering of a snapshot or a page of it.
+     * @param rss The RSS content to render
+     * @return The HTML as UTF-8 encoded binary. Has compressed variants
+     *         if the RSS content has them.
+     */
+    public FeedContent render(FeedContent rss) throws TransformerException, IOException
+    {
+        checkReload();
+        Templates currentTemplates = templates;
+        Rendered current = rendered;
+        if (current != null && current.rss == rss && current.templates == currentTemplates) {
+            gHitCounter.inc();
+            return getHtml(current);
+        }
+        boolean render = false;
+        synchronized (renderedPages) {
+            current = renderedPages.get(rss);
+            if (current == null || current.templates != currentTemplates) {
+                current = new Rendered(rss, currentTemplates);
+                renderedPages.put(rss, current);
+                render = true;
+            }
+        }
+        if (render) {
+            gMissCounter.inc();
+            current.run();
+        } else {
+            /* Rendered already, or being rendered by another request */
+            gHitCounter.inc();
+        }
+        FeedContent html;
+        try {
+            html = getHtml(current);
+        } catch (TransformerException e) {
+            forget(current);
+            throw e;
+        } catch (IOException e) {
+            forget(current);
+            throw e;
+        } catch (RuntimeException e) {
+            forget(current);
+            throw e;
+        }
+        rendered = current;
+        return html;
+    }
+
+    /**
+     * Wait for a rendering to finish.
+     * @return The HTML
+     */
+    private static FeedContent getHtml(Rendered rendering) throws TransformerException, IOException
+    {
+        try {
+            return rendering.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the HTML rendering");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TransformerException) {
+                throw (TransformerException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new TransformerException(cause);
+        }
+    }
+
+    /**
+     * Drop a failed rendering from the cache, so the next request tries again.
+     */
+    private void forget(Rendered rendering)
+    {
+        synchronized (renderedPages) {
+            if (renderedPages.get(rendering.rss) == rendering) {
+                renderedPages.remove(rendering.rss);
+            }
+        }
+    }
+
+    /**
+     * Transform RSS content into HTML and compress it.
+     * @param templates Compiled stylesheet
+     * @param rss The RSS content
+     * @return The HTML as UTF-8 encoded binary
+     */
+    private static FeedContent renderHtml(Templates templates, FeedContent rss) throws TransformerException
+    {
+        long startNanos = System.nanoTime();
+        byte[] bytes = transform(templates, rss.getData());
+        gTransformTimer.recordSince(startNanos);
+        /* Pages that are not worth compressing ahead are not compressed as HTML either */
+        return (rss.getGzipData() != null)
+            ? FeedContent.create(bytes, CONTENT_TYPE)
+            : FeedContent.createUncompressed(bytes, CONTENT_TYPE, System.currentTimeMillis());
+    }
+
+    /**
+     * Transform RSS XML into HTML.
+     * @param templates Compiled stylesheet
+     * @param xmlInUTF8 The RSS XML as UTF-8 encoded binary
+     * @return The HTML as UTF-8 encoded binary
+     */
+    private static byte[] transform(Templates templates, byte[] xmlInUTF8) throws TransformerException
+    {
+        Transformer transformer = templates.newTransformer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(xmlInUTF8.length);
+        Source text = new StreamSource(new ByteArrayInputStream(xmlInUTF8));
+        transformer.transform(text, new StreamResult(bos));
+        return bos.toByteArray();
+    }
+
+    /**
+     * Recompile the stylesheet if it has changed since it was compiled.
+     * Checks at most once per reload check interval.
+     */
+    private void checkReload()
+    {
+        if (reloadCheckInMillis <= 0) return;
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - lastReloadCheckTime < reloadCheckInMillis) return;
+        synchronized (this) {
+            if (currentTime - lastReloadCheckTime < reloadCheckInMillis) return;
+            lastReloadCheckTime = currentTime;
+            try {
+                if (lastModified(getStylesheetURL()) != templatesLastModified) {
+                    compile();
+                    logger.info("Reloaded stylesheet " + stylesheetResource);
+                }
+            } catch (Exception e) {
+                /* Keep using the previous version */
+                logger.error("Reloading stylesheet " + stylesheetResource + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Compile the stylesheet.
+     */
+    private void compile() throws TransformerException, IOException
+    {
+        URL url = getStylesheetURL();
+        long lastModified = lastModified(url);
+        InputStream is = url.openStream();
+        try {
+            TransformerFactory factory = TransformerFactory.newInstance();
+            Source xslt = new StreamSource(is, url.toExternalForm());
+            templates = factory.newTemplates(xslt);
+            templatesLastModified = lastModified;
+        } finally {
+            try { is.close(); } catch (Throwable tt) { /* ignore */ }
+        }
+    }
+
+    private URL getStylesheetURL() throws IOException
+    {
+        URL url = RssHtmlRenderer.class.getResource(stylesheetResource);
+        if (url == null) {
+            throw new FileNotFoundException("Stylesheet " + stylesheetResource + " not found in classpath");
+        }
+        return url;
+    }
+
+    private static long lastModified(URL url) throws IOException
+    {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return new File(url.toURI()).lastModified();
+            } catch (URISyntaxException e) {
+                /* fall through to the generic way */
+            }
+        }
+        URLConnection connection = url.openConnection();
+        connection.setUseCaches(false);
+        long lastModified = connection.getLastModified();
+        try { connection.getInputStream().close(); } catch (Throwable tt) { /* ignore */ }
+        return lastModified;
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.sanoma.rssmergett;
+
+public final class RssItem
+{
+    /**
+     * Immutable holder for the fields of one RSS feed item that are carried
+     * over into the combined feed. Missing fields are empty strings.
+     *
+     * The date of the item is kept as epoch milliseconds besides the date
+     * texts, so items are ordered by comparing numbers instead of parsing
+     * or comparing the texts.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    private final String title;
+    private final String link;
+    private final String guid;
+    private final String description;
+    private final String pubDate;
+    private final String dcDate;
+    private final long timestamp;
+
+    /**
+     * Create an item.
+     * @param title Item title
+     * @param link Item link
+     * @param guid Item guid
+     * @param description Item description
+     * @param pubDate Item publication date in RFC-822 format
+     * @param dcDate Item dc:date in ISO-8601 format
+     */
+    public RssItem(String title,
+                   String link,
+                   String guid,
+                   String description,
+                   String pubDate,
+                   String dcDate)
+    {
+        this(title, link, guid, description, pubDate, dcDate, RssDates.parseItemDate(dcDate, pubDate));
+    }
+
+    /**
+     * Create an item whose date has already been parsed.
+     * @param title Item title
+     * @param link Item link
+     * @param guid Item guid
+     * @param description Item description
+     * @param pubDate Item publication date in RFC-822 format
+     * @param dcDate Item dc:date in ISO-8601 format
+     * @param timestamp Date of the item in epoch milliseconds, see RssDates.parseItemDate
+     */
+    public RssItem(String title,
+                   String link,
+                   String guid,
+                   String description,
+                   String pubDate,
+                   String dcDate,
+                   long timestamp)
+    {
+        this.title = title;
+        this.link = link;
+        this.guid = guid;
+        this.description = description;
+        this.pubDate = pubDate;
+        this.dcDate = dcDate;
+        this.timestamp = timestamp;
+    }
+
+    public String getTitle() { return title; }
+    public String getLink() { return link; }
+    public String getGuid() { return guid; }
+    public String getDescription() { return description; }
+    public String getPubDate() { return pubDate; }
+    public String getDcDate() { return dcDate; }
+    /** @return Date of the item in epoch milliseconds, or RssDates.INVALID if it has no valid date */
+    public long getTimestamp() { return timestamp; }
+
+}
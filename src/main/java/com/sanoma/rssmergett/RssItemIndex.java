@@ -0,0 +1,402 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import org.apache.log4j.*;
+
+public class RssItemIndex
+{
+    /**
+     * Long-lived index of the items of the combined feed. Items are keyed by
+     * a 64-bit fingerprint of their guid (or link), kept in a primitive
+     * open-addressing table, and ordered newest first by their numeric
+     * timestamp.
+     *
+     * An update only looks at the sources whose items changed since the
+     * previous update, and inserts only the items that are new or whose
+     * content changed. The same story published in several source feeds
+     * has the same fingerprint and appears only once. Items older than the
+     * retention window, or beyond the maximum item count, are evicted.
+     *
+     * An item is owned by the source that inserted it. Only that source
+     * replaces it with changed content, unless another source has a newer
+     * version of it or the owning source has been replaced or dropped, so
+     * a story published differently in two feeds does not flip between
+     * the versions whenever either feed changes.
+     *
+     * Items evicted for the item count are remembered while a source still
+     * has them, so that they are not inserted and evicted again, reported
+     * as a change, whenever that source changes.
+     *
+     * The index is updated by the refresh thread only; readers use the
+     * immutable item lists returned by getItems().
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssItemIndex.class);
+
+    /**
+     * A source item list given to update(). A new list from the same feed
+     * is a new source; the old one is no longer current.
+     */
+    private static final class Source
+    {
+        /** Whether the list was among the sources of the latest update */
+        boolean current = true;
+    }
+
+    /**
+     * An item in the index.
+     */
+    private static final class Entry
+    {
+        final RssItem item;
+        final long fingerprint;
+        final long contentHash;
+        final long timestamp;
+        /** Insertion sequence, orders items with the same timestamp */
+        final long sequence;
+        /** The source the item was taken from */
+        final Source source;
+
+        Entry(RssItem item, long fingerprint, long contentHash, long timestamp, long sequence, Source source)
+        {
+            this.item = item;
+            this.fingerprint = fingerprint;
+            this.contentHash = contentHash;
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+            this.source = source;
+        }
+    }
+
+    /**
+     * An item evicted for the maximum item count.
+     */
+    private static final class Evicted
+    {
+        final long timestamp;
+        /** The latest source seen having the item */
+        Source source;
+
+        Evicted(long timestamp, Source source)
+        {
+            this.timestamp = timestamp;
+            this.source = source;
+        }
+    }
+
+    /** Newest first; items with the same timestamp in insertion order */
+    private static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (a.timestamp != b.timestamp) return a.timestamp > b.timestamp ? -1 : 1;
+            if (a.sequence != b.sequence) return a.sequence < b.sequence ? -1 : 1;
+            return 0;
+        }
+    };
+
+    /** Maximum number of items kept */
+    private final int maxItems;
+
+    /** Age (in milliseconds) after which items are evicted */
+    private final long retentionInMillis;
+
+    /** Items by fingerprint */
+    private final LongHashTable<Entry> entries;
+
+    /** Items ordered newest first */
+    private final ArrayList<Entry> ordered;
+
+    /** Items evicted for the maximum item count, by fingerprint */
+    private final LongHashTable<Evicted> evicted = new LongHashTable<Evicted>(16);
+
+    /** Source item lists processed by the previous update, compared by identity */
+    private Map<List<RssItem>, Source> processedSources = new IdentityHashMap<List<RssItem>, Source>();
+
+    /** Next insertion sequence number */
+    private long nextSequence = 0L;
+
+    /** Immutable view of the current items, rebuilt after changes */
+    private volatile List<RssItem> items = Collections.emptyList();
+
+    /** Timestamps of the current items, in the same order */
+    private volatile long[] timestamps = new long[0];
+
+    /** Items inserted by the last update and still in the index, oldest first */
+    private volatile List<RssItem> lastInserted = Collections.emptyList();
+
+    /**
+     * Create an index.
+     * @param maxItems Maximum number of items kept
+     * @param retentionInMillis Age (in milliseconds) after which items are evicted
+     */
+    public RssItemIndex(int maxItems, long retentionInMillis)
+    {
+        this.maxItems = maxItems;
+        this.retentionInMillis = retentionInMillis;
+        this.entries = new LongHashTable<Entry>(maxItems + maxItems / 2);
+        this.ordered = new ArrayList<Entry>(maxItems + 1);
+    }
+
+    /**
+     * Create an index using the settings in rssmergett.properties.
+     * @return The configured index
+     */
+    public static RssItemIndex createFromConfig()
+    {
+        return new RssItemIndex(RssConfig.getInt("rssmergett.index.maxItems", 500),
+                                RssConfig.getLong("rssmergett.index.retentionMillis", 3L * 24 * 3600 * 1000));
+    }
+
+    /**
+     * Update the index with the items of the source feeds. Source lists that
+     * are the same objects as in the previous update are skipped, so only
+     * changed sources cost anything. When several sources have the same
+     * item, the first one wins unless a later one has it with a newer date.
+     * @param sources Items of each source feed
+     * @param currentTime Current time in epoch milliseconds, for the retention window
+     * @return true if the items of the index changed
+     */
+    public boolean update(List<List<RssItem>> sources, long currentTime)
+    {
+        Map<List<RssItem>, Source> previousSources = processedSources;
+        Map<List<RssItem>, Source> currentSources = new IdentityHashMap<List<RssItem>, Source>();
+        for (List<RssItem> source : sources) {
+            Source known = previousSources.get(source);
+            currentSources.put(source, known != null ? known : new Source());
+        }
+        for (Map.Entry<List<RssItem>, Source> previous : previousSources.entrySet()) {
+            if (!currentSources.containsKey(previous.getKey())) {
+                previous.getValue().current = false;
+            }
+        }
+        processedSources = currentSources;
+
+        int nrReplaced = 0;
+        boolean sourcesChanged = false;
+        List<Entry> inserted = new ArrayList<Entry>();
+        long oldestAllowed = currentTime - retentionInMillis;
+        for (List<RssItem> sourceItems : sources) {
+            if (previousSources.containsKey(sourceItems)) {
+                continue;
+            }
+            Source source = currentSources.get(sourceItems);
+            sourcesChanged = true;
+            for (RssItem item : sourceItems) {
+                long timestamp = item.getTimestamp();
+                if (timestamp == RssDates.INVALID || timestamp < oldestAllowed) {
+                    continue;
+                }
+                long fingerprint = fingerprint(item);
+                Evicted gone = evicted.get(fingerprint);
+                if (gone != null) {
+                    if (timestamp <= gone.timestamp) {
+                        /* Would only be evicted again */
+                        gone.source = source;
+                        continue;
+                    }
+                    evicted.remove(fingerprint);
+                }
+                long contentHash = contentHash(item);
+                Entry existing = entries.get(fingerprint);
+                if (existing != null) {
+                    if (existing.contentHash == contentHash) {
+                        continue;
+                    }
+                    if (existing.source != source && existing.source.current && timestamp <= existing.timestamp) {
+                        /* Another current source has this item, and this version is not newer */
+                        continue;
+                    }
+                    removeOrdered(existing);
+                    nrReplaced++;
+                }
+                Entry entry = new Entry(item, fingerprint, contentHash, timestamp, nextSequence++, source);
+                entries.put(fingerprint, entry);
+                insertOrdered(entry);
+                inserted.add(entry);
+            }
+        }
+
+        if (sourcesChanged) {
+            forgetEvicted(oldestAllowed);
+        }
+        int nrEvicted = evict(oldestAllowed);
+        List<RssItem> remaining = getRemaining(inserted);
+        lastInserted = remaining;
+        /* New items that were evicted at once change nothing */
+        int nrRemoved = nrEvicted - (inserted.size() - remaining.size());
+        if (!remaining.isEmpty() || nrReplaced > 0 || nrRemoved > 0) {
+            List<RssItem> view = new ArrayList<RssItem>(ordered.size());
+            long[] viewTimestamps = new long[ordered.size()];
+            for (Entry entry : ordered) {
+                viewTimestamps[view.size()] = entry.timestamp;
+                view.add(entry.item);
+            }
+            timestamps = viewTimestamps;
+            items = Collections.unmodifiableList(view);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Index updated: " + inserted.size() + " inserted, " + nrEvicted + " evicted, "
+                             + ordered.size() + " items");
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the items that the last update inserted, new ones and ones whose
+     * content changed, leaving out those that did not fit in the index.
+     * @return Immutable list of the items, oldest first
+     */
+    public List<RssItem> getLastInserted()
+    {
+        return lastInserted;
+    }
+
+    /**
+     * Get the inserted entries that are still in the index, oldest first.
+     */
+    private List<RssItem> getRemaining(List<Entry> inserted)
+    {
+        if (inserted.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Collections.sort(inserted, Collections.reverseOrder(NEWEST_FIRST));
+        List<RssItem> remaining = new ArrayList<RssItem>(inserted.size());
+        for (Entry entry : inserted) {
+            if (entries.get(entry.fingerprint) == entry) {
+                remaining.add(entry.item);
+            }
+        }
+        return Collections.unmodifiableList(remaining);
+    }
+
+    /**
+     * Get the items of the index, newest first.
+     * @return Immutable list of the items
+     */
+    public List<RssItem> getItems()
+    {
+        return items;
+    }
+
+    /**
+     * Get the timestamps of the items, in the same order as getItems().
+     * @return Timestamps in epoch milliseconds. Must not be modified.
+     */
+    public long[] getTimestamps()
+    {
+        return timestamps;
+    }
+
+    /** @return Number of items in the index */
+    public int size()
+    {
+        return items.size();
+    }
+
+    private void insertOrdered(Entry entry)
+    {
+        int pos = Collections.binarySearch(ordered, entry, NEWEST_FIRST);
+        ordered.add(pos < 0 ? -pos - 1 : pos, entry);
+    }
+
+    private void removeOrdered(Entry entry)
+    {
+        int pos = Collections.binarySearch(ordered, entry, NEWEST_FIRST);
+        if (pos >= 0) {
+            ordered.remove(pos);
+        }
+    }
+
+    /**
+     * Evict the oldest items beyond the retention window or the maximum count.
+     * @return Number of evicted items
+     */
+    private int evict(long oldestAllowed)
+    {
+        int nrEvicted = 0;
+        while (!ordered.isEmpty()) {
+            Entry oldest = ordered.get(ordered.size() - 1);
+            if (ordered.size() <= maxItems && oldest.timestamp >= oldestAllowed) {
+                break;
+            }
+            ordered.remove(ordered.size() - 1);
+            entries.remove(oldest.fingerprint);
+            if (oldest.timestamp >= oldestAllowed) {
+                evicted.put(oldest.fingerprint, new Evicted(oldest.timestamp, oldest.source));
+            }
+            nrEvicted++;
+        }
+        return nrEvicted;
+    }
+
+    /**
+     * Forget the evicted items that are no longer in a current source, or
+     * that are beyond the retention window anyway.
+     */
+    private void forgetEvicted(long oldestAllowed)
+    {
+        if (evicted.size() == 0) {
+            return;
+        }
+        for (long fingerprint : evicted.keys()) {
+            Evicted gone = evicted.get(fingerprint);
+            if (!gone.source.current || gone.timestamp < oldestAllowed) {
+                evicted.remove(fingerprint);
+            }
+        }
+    }
+
+    /**
+     * Compute the identity fingerprint of an item: its guid, or its link if
+     * it has no guid, or its title and date if it has neither.
+     */
+    static long fingerprint(RssItem item)
+    {
+        String guid = item.getGuid().trim();
+        if (guid.length() > 0) return hash(FNV_OFFSET, guid);
+        String link = item.getLink().trim();
+        if (link.length() > 0) return hash(FNV_OFFSET, link);
+        return hash(hash(FNV_OFFSET, item.getTitle()), item.getDcDate());
+    }
+
+    /**
+     * Compute a hash of the item fields that end up in the combined feed.
+     */
+    static long contentHash(RssItem item)
+    {
+        long h = FNV_OFFSET;
+        h = hash(h, item.getTitle());
+        h = hash(h, item.getLink());
+        h = hash(h, item.getGuid());
+        h = hash(h, item.getDescription());
+        h = hash(h, item.getPubDate());
+        h = hash(h, item.getDcDate());
+        return h;
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Continue a 64-bit FNV-1a hash with the characters of a string, and
+     * finish with a bit mixing step so that similar strings spread well.
+     */
+    private static long hash(long h, String s)
+    {
+        for (int i=0; i<s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+        /* Separator so that ("ab","c") and ("a","bc") differ */
+        h ^= 0xff;
+        h *= FNV_PRIME;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
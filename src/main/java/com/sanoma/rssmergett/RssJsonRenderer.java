@@ -0,0 +1,242 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import java.util.*;
+
+public class RssJsonRenderer
+{
+    /**
+     * Renders the combined feed as compact JSON, straight from the merged
+     * items without going through the XML. The JSON is made once per
+     * refresh and kept with the snapshot as paged views (see RssPages), so
+     * the offset, limit and since parameters work the same way as for the
+     * RSS and HTML outputs.
+     *
+     * The result looks like this; empty fields are left out, and the
+     * timestamp is the date of the item in epoch milliseconds:
+     *
+     *   {"title":"..","link":"..","description":"..","language":"fi",
+     *    "image":{"url":"..","title":"..","link":".."},
+     *    "items":[{"title":"..","link":"..","guid":"..","description":"..",
+     *              "pubDate":"..","dcDate":"..","timestamp":1300000000000},..]}
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Content type of the JSON */
+    public static final String CONTENT_TYPE = "application/json;charset=UTF-8";
+
+    /** Bytes separating the items */
+    private static final byte[] SEPARATOR = bytes(",");
+
+    /** Bytes after the last item */
+    private static final byte[] FOOTER = bytes("]}");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private RssJsonRenderer()
+    {
+    }
+
+    /**
+     * Render items as JSON.
+     * @param items The items, newest first
+     * @param metadata Channel texts, or null to leave them out
+     * @return The JSON with its pages and compressed variants
+     */
+    public static RssPages render(List<RssItem> items, FeedMetadata metadata) throws IOException
+    {
+        int[] offsets = new int[items.size() + 1];
+        long[] timestamps = new long[items.size()];
+        FeedContent content = FeedContent.create(renderBytes(items, metadata, offsets, timestamps), CONTENT_TYPE);
+        return new RssPages(content, offsets, SEPARATOR.length, timestamps);
+    }
+
+    /**
+     * Render items as JSON without compressing it or recording the item
+     * positions, for results served only once such as search results.
+     * @param items The items, newest first
+     * @param metadata Channel texts, or null to leave them out
+     * @param createdTime Time (in epoch milliseconds) the items are from
+     * @return The JSON
+     */
+    public static FeedContent renderUncompressed(List<RssItem> items, FeedMetadata metadata, long createdTime)
+        throws IOException
+    {
+        return FeedContent.createUncompressed(renderBytes(items, metadata, null, null), CONTENT_TYPE, createdTime);
+    }
+
+    /**
+     * Render items as JSON.
+     * @param offsets Array the start offsets of the items and the end of
+     *        the last item are stored in, or null
+     * @param timestamps Array the item timestamps are stored in, or null
+     */
+    private static byte[] renderBytes(List<RssItem> items, FeedMetadata metadata, int[] offsets, long[] timestamps)
+        throws IOException
+    {
+        byte[] header = renderHeader(metadata);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(header.length + items.size() * 512);
+        bos.write(header);
+        StringBuilder sb = new StringBuilder(1024);
+        int i = 0;
+        for (RssItem item : items) {
+            if (i > 0) {
+                bos.write(SEPARATOR);
+            }
+            if (offsets != null) {
+                offsets[i] = bos.size();
+                timestamps[i] = item.getTimestamp();
+            }
+            sb.setLength(0);
+            appendItem(sb, item);
+            bos.write(sb.toString().getBytes("UTF-8"));
+            i++;
+        }
+        if (offsets != null) {
+            offsets[items.size()] = bos.size();
+        }
+        bos.write(FOOTER);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Get the JSON with other channel texts. The item bytes are reused as
+     * they are; the result is cached with the JSON it was made from.
+     * @param json The JSON made by render()
+     * @param metadata The channel texts
+     * @param maxCached Maximum number of localized versions kept
+     * @return The JSON with the given channel texts
+     */
+    public static RssPages localize(RssPages json, FeedMetadata metadata, int maxCached) throws IOException
+    {
+        RssPages localized = json.getLocalized(metadata);
+        if (localized == null) {
+            localized = json.reframe(renderHeader(metadata), FOOTER);
+            if (localized == null) {
+                return json;
+            }
+            json.putLocalized(metadata, localized, maxCached);
+        }
+        return localized;
+    }
+
+    /**
+     * Render one item as a JSON object, the same way as in render().
+     * @param item The item
+     * @return The JSON object, on one line
+     */
+    public static String renderItem(RssItem item)
+    {
+        StringBuilder sb = new StringBuilder(1024);
+        appendItem(sb, item);
+        return sb.toString();
+    }
+
+    /**
+     * Append an item as a JSON object.
+     */
+    private static void appendItem(StringBuilder sb, RssItem item)
+    {
+        sb.append('{');
+        boolean first = true;
+        first = appendField(sb, "title", item.getTitle(), first);
+        first = appendField(sb, "link", item.getLink(), first);
+        first = appendField(sb, "guid", item.getGuid(), first);
+        first = appendField(sb, "description", item.getDescription(), first);
+        first = appendField(sb, "pubDate", item.getPubDate(), first);
+        first = appendField(sb, "dcDate", item.getDcDate(), first);
+        if (item.getTimestamp() != RssDates.INVALID) {
+            if (!first) sb.append(',');
+            sb.append("\"timestamp\":").append(item.getTimestamp());
+        }
+        sb.append('}');
+    }
+
+    /**
+     * Render the channel texts and the start of the item list.
+     */
+    private static byte[] renderHeader(FeedMetadata metadata) throws UnsupportedEncodingException
+    {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append('{');
+        boolean first = true;
+        if (metadata != null) {
+            first = appendField(sb, "title", metadata.getTitle(), first);
+            first = appendField(sb, "link", metadata.getLink(), first);
+            first = appendField(sb, "description", metadata.getDescription(), first);
+            first = appendField(sb, "language", metadata.getLanguage(), first);
+            if (!isEmpty(metadata.getImageURL())) {
+                if (!first) sb.append(',');
+                sb.append("\"image\":{");
+                boolean firstImage = appendField(sb, "url", metadata.getImageURL(), true);
+                firstImage = appendField(sb, "title", metadata.getImageTitle(), firstImage);
+                appendField(sb, "link", metadata.getImageLink(), firstImage);
+                sb.append('}');
+                first = false;
+            }
+        }
+        if (!first) sb.append(',');
+        sb.append("\"items\":[");
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Append a string field unless the value is empty.
+     * @param first Whether no fields have been appended to the object yet
+     * @return Whether no fields have been appended to the object after this
+     */
+    private static boolean appendField(StringBuilder sb, String name, String value, boolean first)
+    {
+        if (isEmpty(value)) return first;
+        if (!first) sb.append(',');
+        sb.append('"').append(name).append("\":");
+        appendString(sb, value);
+        return false;
+    }
+
+    /**
+     * Append a JSON string. Besides the characters JSON requires to be
+     * escaped, the line and paragraph separators are escaped too, as
+     * JavaScript does not allow them in string literals.
+     */
+    private static void appendString(StringBuilder sb, String value)
+    {
+        sb.append('"');
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':  sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    sb.append("\\u")
+                      .append(HEX_DIGITS[(c >> 12) & 0xf]).append(HEX_DIGITS[(c >> 8) & 0xf])
+                      .append(HEX_DIGITS[(c >> 4) & 0xf]).append(HEX_DIGITS[c & 0xf]);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static boolean isEmpty(String value)
+    {
+        return value == null || value.length() == 0;
+    }
+
+    private static byte[] bytes(String s)
+    {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            /* UTF-8 is always supported */
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
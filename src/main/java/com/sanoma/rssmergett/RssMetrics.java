@@ -0,0 +1,317 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class RssMetrics
+{
+    /**
+     * Registry of the runtime metrics of the service: counters, gauges and
+     * histograms, written out in the Prometheus text exposition format by
+     * MetricsController.
+     *
+     * Recording is lock free: counters are AtomicLongs, and histograms keep
+     * an AtomicLongArray of power-of-two buckets, so recording a value is
+     * one array increment. Metrics are looked up by name and labels; code
+     * on a per-request path keeps the metric in a static field instead of
+     * looking it up every time.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Number of buckets of time histograms: 1 microsecond to 2^25 microseconds (about 34 s) */
+    private static final int TIME_BUCKETS = 26;
+
+    /** Number of buckets of size histograms: 1 to 2^31 */
+    private static final int SIZE_BUCKETS = 32;
+
+    /**
+     * A counter that only goes up.
+     */
+    public static final class Counter
+    {
+        private final AtomicLong value = new AtomicLong();
+
+        /** Increment the counter by one */
+        public void inc() { value.incrementAndGet(); }
+
+        /** Increment the counter */
+        public void add(long amount) { value.addAndGet(amount); }
+
+        /** @return Value of the counter */
+        public long get() { return value.get(); }
+    }
+
+    /**
+     * A value that can go up and down. Subclasses can override get() to
+     * compute the value when the metrics are read.
+     */
+    public static class Gauge
+    {
+        private final AtomicLong value = new AtomicLong();
+
+        /** Set the value */
+        public void set(long newValue) { value.set(newValue); }
+
+        /** @return The value */
+        public long get() { return value.get(); }
+    }
+
+    /**
+     * Distribution of recorded values in power-of-two buckets. Bucket i
+     * counts the values v with 2^(i-1) &lt; v &lt;= 2^i, the last bucket
+     * counts everything larger.
+     */
+    public static final class Histogram
+    {
+        private final AtomicLongArray buckets;
+        private final AtomicLong sum = new AtomicLong();
+
+        /** Number of decimal digits to shift when converting the recorded unit into the exposed unit */
+        private final int scale;
+
+        Histogram(int nrBuckets, int scale)
+        {
+            this.buckets = new AtomicLongArray(nrBuckets + 1);
+            this.scale = scale;
+        }
+
+        /**
+         * Record a value.
+         * @param value The value, in the unit of the histogram
+         */
+        public void record(long value)
+        {
+            int bucket = (value <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+            buckets.incrementAndGet(Math.min(bucket, buckets.length() - 1));
+            sum.addAndGet(value);
+        }
+
+        /**
+         * Record the time elapsed since the given start, for time histograms.
+         * @param startNanos Start time from System.nanoTime()
+         */
+        public void recordSince(long startNanos)
+        {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        /** @return Number of recorded values */
+        public long getCount()
+        {
+            long count = 0;
+            for (int i=0; i<buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Metrics with the same name and different labels.
+     */
+    private static final class Family
+    {
+        final String name;
+        final String help;
+        final String type;
+        final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+        Family(String name, String help, String type)
+        {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /** Metric families by name */
+    private static final ConcurrentMap<String, Family> gFamilies = new ConcurrentSkipListMap<String, Family>();
+
+    private RssMetrics()
+    {
+    }
+
+    /**
+     * Get or create a counter.
+     * @param name Name of the metric, e.g. "rssmergett_fetch_total"
+     * @param help Description of the metric
+     * @param labels Label names and values in turn, e.g. "source", url
+     * @return The counter
+     */
+    public static Counter counter(String name, String help, String... labels)
+    {
+        Family family = family(name, help, "counter");
+        String key = labelText(labels);
+        Object metric = family.metrics.get(key);
+        if (metric == null) {
+            Object existing = family.metrics.putIfAbsent(key, metric = new Counter());
+            if (existing != null) metric = existing;
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * Get or create a settable gauge.
+     * @param name Name of the metric
+     * @param help Description of the metric
+     * @param labels Label names and values in turn
+     * @return The gauge
+     */
+    public static Gauge gauge(String name, String help, String... labels)
+    {
+        Family family = family(name, help, "gauge");
+        String key = labelText(labels);
+        Object metric = family.metrics.get(key);
+        if (metric == null) {
+            Object existing = family.metrics.putIfAbsent(key, metric = new Gauge());
+            if (existing != null) metric = existing;
+        }
+        return (Gauge) metric;
+    }
+
+    /**
+     * Register a gauge that computes its value when the metrics are read.
+     * Replaces an earlier gauge with the same name and labels.
+     * @param name Name of the metric
+     * @param help Description of the metric
+     * @param gauge The gauge
+     * @param labels Label names and values in turn
+     */
+    public static void register(String name, String help, Gauge gauge, String... labels)
+    {
+        family(name, help, "gauge").metrics.put(labelText(labels), gauge);
+    }
+
+    /**
+     * Get or create a histogram of durations. Durations are recorded in
+     * microseconds and exposed in seconds.
+     * @param name Name of the metric, e.g. "rssmergett_fetch_seconds"
+     * @param help Description of the metric
+     * @param labels Label names and values in turn
+     * @return The histogram
+     */
+    public static Histogram timer(String name, String help, String... labels)
+    {
+        return histogram(name, help, TIME_BUCKETS, 6, labels);
+    }
+
+    /**
+     * Get or create a histogram of sizes, e.g. bytes or item counts.
+     * @param name Name of the metric, e.g. "rssmergett_fetch_bytes"
+     * @param help Description of the metric
+     * @param labels Label names and values in turn
+     * @return The histogram
+     */
+    public static Histogram sizes(String name, String help, String... labels)
+    {
+        return histogram(name, help, SIZE_BUCKETS, 0, labels);
+    }
+
+    private static Histogram histogram(String name, String help, int nrBuckets, int scale, String... labels)
+    {
+        Family family = family(name, help, "histogram");
+        String key = labelText(labels);
+        Object metric = family.metrics.get(key);
+        if (metric == null) {
+            Object existing = family.metrics.putIfAbsent(key, metric = new Histogram(nrBuckets, scale));
+            if (existing != null) metric = existing;
+        }
+        return (Histogram) metric;
+    }
+
+    private static Family family(String name, String help, String type)
+    {
+        Family family = gFamilies.get(name);
+        if (family == null) {
+            Family existing = gFamilies.putIfAbsent(name, family = new Family(name, help, type));
+            if (existing != null) family = existing;
+        }
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    /**
+     * Format labels as in the exposition format, e.g. {source="http://.."}.
+     */
+    private static String labelText(String... labels)
+    {
+        if (labels.length == 0) return "";
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (int i=0; i+1<labels.length; i+=2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j=0; j<value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format (version 0.0.4).
+     * @param out Writer the metrics are written to
+     */
+    public static void write(Writer out) throws IOException
+    {
+        for (Family family : gFamilies.values()) {
+            out.write("# HELP " + family.name + " " + family.help + "\n");
+            out.write("# TYPE " + family.name + " " + family.type + "\n");
+            for (Map.Entry<String, Object> entry : family.metrics.entrySet()) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                if (metric instanceof Counter) {
+                    out.write(family.name + labels + " " + ((Counter) metric).get() + "\n");
+                } else if (metric instanceof Gauge) {
+                    out.write(family.name + labels + " " + ((Gauge) metric).get() + "\n");
+                } else {
+                    writeHistogram(out, family.name, labels, (Histogram) metric);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeHistogram(Writer out, String name, String labels, Histogram histogram)
+        throws IOException
+    {
+        /* The bucket label goes with the other labels */
+        String prefix = labels.length() == 0 ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        long cumulative = 0;
+        int nrBuckets = histogram.buckets.length();
+        for (int i=0; i<nrBuckets; i++) {
+            cumulative += histogram.buckets.get(i);
+            String le = (i == nrBuckets - 1) ? "+Inf" : formatNumber(1L << i, histogram.scale);
+            out.write(name + "_bucket" + prefix + "le=\"" + le + "\"} " + cumulative + "\n");
+        }
+        out.write(name + "_sum" + labels + " " + formatNumber(histogram.sum.get(), histogram.scale) + "\n");
+        out.write(name + "_count" + labels + " " + cumulative + "\n");
+    }
+
+    /**
+     * Format value * 10^-scale exactly, e.g. microseconds as seconds.
+     */
+    private static String formatNumber(long value, int scale)
+    {
+        if (scale == 0 || value == 0) return Long.toString(value);
+        return BigDecimal.valueOf(value, scale).stripTrailingZeros().toPlainString();
+    }
+
+}
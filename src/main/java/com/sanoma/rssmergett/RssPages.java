@@ -0,0 +1,450 @@
+package com.sanoma.rssmergett;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.*;
+
+public final class RssPages
+{
+    /**
+     * Paged and date filtered views of one combined RSS snapshot. The item
+     * boundaries of the generated XML are located once, so a page is built
+     * by copying the channel header, a slice of item bytes and the footer,
+     * without parsing or serializing anything. The JSON version of the
+     * snapshot is paged the same way, with the item boundaries recorded
+     * when it is generated (see RssJsonRenderer).
+     *
+     * Pages are identified by the range of items they contain, so different
+     * queries that select the same items share one cached page. The common
+     * page sizes are built with compressed variants when the snapshot is
+     * created; other pages are cached uncompressed up to a fixed count and
+     * after that built per request.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssPages.class);
+
+    /** Maximum number of cached pages per snapshot */
+    private static final int gMaxCachedPages = RssConfig.getInt("rssmergett.pages.maxCached", 32);
+
+    /** Page sizes that are built with compressed variants when the snapshot is created */
+    private static final String[] gPrecomputedLimits =
+        RssConfig.getStringArray("rssmergett.pages.precomputeLimits", new String[] { "20" });
+
+    /**
+     * The paging parameters of a request.
+     */
+    public static final class Query
+    {
+        /** Query selecting the whole feed */
+        public static final Query ALL = new Query(0, -1, RssDates.INVALID);
+
+        final int offset;
+        final int limit;
+        final long since;
+
+        private Query(int offset, int limit, long since)
+        {
+            this.offset = offset;
+            this.limit = limit;
+            this.since = since;
+        }
+
+        /**
+         * Parse the paging parameters of a request.
+         * @param offset Number of items to skip, or null
+         * @param limit Maximum number of items, or null
+         * @param since Only include items newer than this, as epoch milliseconds
+         *        or an ISO-8601 or RFC-822 date, or null
+         * @return The query
+         * @throws IllegalArgumentException if a parameter is not valid
+         */
+        public static Query parse(String offset, String limit, String since)
+        {
+            if (offset == null && limit == null && since == null) {
+                return ALL;
+            }
+            int offsetValue = parseCount("offset", offset, 0);
+            int limitValue = parseCount("limit", limit, -1);
+            long sinceValue = RssDates.INVALID;
+            if (since != null && since.trim().length() > 0) {
+                String s = since.trim();
+                try {
+                    sinceValue = Long.parseLong(s);
+                } catch (NumberFormatException e) {
+                    sinceValue = RssDates.parseDate(s);
+                    if (sinceValue == RssDates.INVALID) {
+                        throw new IllegalArgumentException("Invalid since: " + since);
+                    }
+                }
+            }
+            return new Query(offsetValue, limitValue, sinceValue);
+        }
+
+        private static int parseCount(String name, String value, int defaultValue)
+        {
+            if (value == null || value.trim().length() == 0) return defaultValue;
+            try {
+                int count = Integer.parseInt(value.trim());
+                if (count >= 0) return count;
+            } catch (NumberFormatException e) {
+                /* fall through */
+            }
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static final byte[] ITEM_START = bytes("<item>");
+    private static final byte[] CHANNEL_END = bytes("</channel>");
+
+    /** The whole combined feed */
+    private final FeedContent full;
+
+    /** Start offsets of the items in the feed bytes, plus the end of the last item; null if paging is not possible */
+    private final int[] itemOffsets;
+
+    /** Number of bytes separating the items, e.g. the comma between JSON objects */
+    private final int separatorLength;
+
+    /** Timestamps of the items newest first, or null if not known */
+    private final long[] timestamps;
+
+    /** Cached pages by item range */
+    private final ConcurrentHashMap<Long, FeedContent> pages = new ConcurrentHashMap<Long, FeedContent>();
+
+    /** Versions of the feed with other channel texts, least recently used first; guarded by itself */
+    private final Map<FeedMetadata, RssPages> localized =
+        new LinkedHashMap<FeedMetadata, RssPages>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<FeedMetadata, RssPages> eldest) {
+                return size() > maxLocalized;
+            }
+        };
+
+    /** Maximum number of localized versions kept, as last given to putLocalized(); guarded by localized */
+    private int maxLocalized = 0;
+
+    /**
+     * Create the paged views of a combined feed.
+     * @param full The whole combined feed
+     * @param timestamps Timestamps of the items of the feed, newest first,
+     *        or null if the feed can not be filtered by date.
+     */
+    public RssPages(FeedContent full, long[] timestamps)
+    {
+        this(full, findItems(full.getData()), 0, timestamps);
+    }
+
+    /**
+     * Create the paged views of a feed whose items have already been located.
+     * @param full The whole feed
+     * @param offsets Start offsets of the items, followed by the end of the
+     *        last item, or null if the feed can not be paged. Must not be modified.
+     * @param separatorLength Number of bytes between the end of an item
+     *        and the start of the next one, left out at the end of a page.
+     * @param timestamps Timestamps of the items of the feed, newest first,
+     *        or null if the feed can not be filtered by date.
+     */
+    RssPages(FeedContent full, int[] offsets, int separatorLength, long[] timestamps)
+    {
+        this.full = full;
+        if (offsets != null && timestamps != null && timestamps.length != offsets.length - 1) {
+            logger.warn("Found " + (offsets.length - 1) + " items in the feed but have "
+                        + timestamps.length + " timestamps, date filtering disabled");
+            timestamps = null;
+        }
+        this.itemOffsets = offsets;
+        this.separatorLength = separatorLength;
+        this.timestamps = timestamps;
+        precompute();
+    }
+
+    /** @return The whole combined feed */
+    public FeedContent getFull()
+    {
+        return full;
+    }
+
+    /** @return Timestamps of the items newest first, or null if not known. Must not be modified. */
+    long[] getTimestamps()
+    {
+        return timestamps;
+    }
+
+    /**
+     * Get a cached version of the feed with other channel texts.
+     * @param metadata The channel texts
+     * @return The localized feed, or null if it has not been cached
+     */
+    public RssPages getLocalized(FeedMetadata metadata)
+    {
+        synchronized (localized) {
+            return localized.get(metadata);
+        }
+    }
+
+    /**
+     * Cache a version of the feed with other channel texts. When the cache
+     * is full, the least recently used version is dropped.
+     * @param metadata The channel texts
+     * @param pages The localized feed
+     * @param maxCached Maximum number of localized versions kept
+     */
+    public void putLocalized(FeedMetadata metadata, RssPages pages, int maxCached)
+    {
+        synchronized (localized) {
+            maxLocalized = maxCached;
+            if (!localized.containsKey(metadata)) {
+                localized.put(metadata, pages);
+            }
+        }
+    }
+
+    /**
+     * Put the items of this feed into another channel, reusing the item
+     * bytes as they are.
+     * @param frame A generated feed without items, carrying the other channel texts
+     * @return The combined feed with the channel of the frame, or null if the
+     *         items or the channel end of the frame could not be located.
+     */
+    public byte[] reframe(byte[] frame)
+    {
+        int frameChannelEnd = lastIndexOf(frame, CHANNEL_END);
+        if (itemOffsets == null || frameChannelEnd < 0) return null;
+        byte[] data = full.getData();
+        int itemsStart = itemOffsets[0];
+        int itemsLength = itemOffsets[itemOffsets.length - 1] - itemsStart;
+        byte[] result = new byte[frame.length + itemsLength];
+        System.arraycopy(frame, 0, result, 0, frameChannelEnd);
+        System.arraycopy(data, itemsStart, result, frameChannelEnd, itemsLength);
+        System.arraycopy(frame, frameChannelEnd, result, frameChannelEnd + itemsLength, frame.length - frameChannelEnd);
+        return result;
+    }
+
+    /**
+     * Put the items of this feed between another header and footer, reusing
+     * the item bytes as they are.
+     * @param header Bytes before the first item
+     * @param footer Bytes after the last item
+     * @return Paged views of the new feed, or null if the items of this feed
+     *         could not be located.
+     */
+    public RssPages reframe(byte[] header, byte[] footer)
+    {
+        if (itemOffsets == null) return null;
+        byte[] data = full.getData();
+        int itemsStart = itemOffsets[0];
+        int itemsLength = itemOffsets[itemOffsets.length - 1] - itemsStart;
+        byte[] result = new byte[header.length + itemsLength + footer.length];
+        System.arraycopy(header, 0, result, 0, header.length);
+        System.arraycopy(data, itemsStart, result, header.length, itemsLength);
+        System.arraycopy(footer, 0, result, header.length + itemsLength, footer.length);
+        int[] offsets = new int[itemOffsets.length];
+        for (int i=0; i<offsets.length; i++) {
+            offsets[i] = itemOffsets[i] - itemsStart + header.length;
+        }
+        FeedContent content = FeedContent.create(result, full.getContentType(), full.getCreatedTime());
+        return new RssPages(content, offsets, separatorLength, timestamps);
+    }
+
+    /**
+     * Get the memory taken by the feed, its cached pages and its localized
+     * versions. The item positions and timestamps are not counted.
+     * @return Size in bytes
+     */
+    public long getMemoryBytes()
+    {
+        long bytes = full.getMemoryBytes();
+        for (FeedContent page : pages.values()) {
+            bytes += page.getMemoryBytes();
+        }
+        List<RssPages> others;
+        synchronized (localized) {
+            others = new ArrayList<RssPages>(localized.values());
+        }
+        for (RssPages other : others) {
+            bytes += other.getMemoryBytes();
+        }
+        return bytes;
+    }
+
+    /** @return Number of items in the feed, or -1 if the items could not be located */
+    public int getItemCount()
+    {
+        return itemOffsets != null ? itemOffsets.length - 1 : -1;
+    }
+
+    /**
+     * Get the page selected by a query.
+     * @param query The paging parameters
+     * @return The page
+     */
+    public FeedContent getPage(Query query)
+    {
+        if (query == Query.ALL) return full;
+        return getPage(query.offset, query.limit, query.since);
+    }
+
+    /**
+     * Get a page of the feed. Items are newest first; the date filter is
+     * applied before the offset and the limit.
+     * @param offset Number of items to skip
+     * @param limit Maximum number of items, or -1 for no limit
+     * @param since Only include items newer than this (epoch milliseconds),
+     *        or RssDates.INVALID for no date filter.
+     * @return The page
+     */
+    public FeedContent getPage(int offset, int limit, long since)
+    {
+        if (itemOffsets == null) {
+            /* Items could not be located, serve everything */
+            return full;
+        }
+        int count = itemOffsets.length - 1;
+        int end = count;
+        if (since != RssDates.INVALID && timestamps != null) {
+            end = countNewerThan(timestamps, since);
+        }
+        int first = Math.min(offset, end);
+        if (limit >= 0 && limit < end - first) {
+            end = first + limit;
+        }
+        if (first == 0 && end == count) {
+            return full;
+        }
+
+        Long key = Long.valueOf(((long) first << 32) | end);
+        FeedContent page = pages.get(key);
+        if (page != null) {
+            return page;
+        }
+        page = FeedContent.createUncompressed(slice(first, end), full.getContentType(), full.getCreatedTime());
+        if (pages.size() < gMaxCachedPages) {
+            FeedContent existing = pages.putIfAbsent(key, page);
+            if (existing != null) {
+                page = existing;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Build the configured page sizes with compressed variants.
+     */
+    private void precompute()
+    {
+        if (itemOffsets == null) return;
+        int count = itemOffsets.length - 1;
+        for (String value : gPrecomputedLimits) {
+            int limit;
+            try {
+                limit = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value '" + value + "' in rssmergett.pages.precomputeLimits");
+                continue;
+            }
+            if (limit < 0 || limit >= count) continue;
+            pages.put(Long.valueOf(limit),
+                      FeedContent.create(slice(0, limit), full.getContentType(), full.getCreatedTime()));
+        }
+    }
+
+    /**
+     * Copy the channel header, the items [first, end) and the footer.
+     */
+    private byte[] slice(int first, int end)
+    {
+        byte[] data = full.getData();
+        int headerLength = itemOffsets[0];
+        int itemsLength = itemOffsets[end] - itemOffsets[first];
+        if (end < itemOffsets.length - 1 && end > first) {
+            /* Leave out the separator after the last item of the page */
+            itemsLength -= separatorLength;
+        }
+        int footerStart = itemOffsets[itemOffsets.length - 1];
+        int footerLength = data.length - footerStart;
+        byte[] page = new byte[headerLength + itemsLength + footerLength];
+        System.arraycopy(data, 0, page, 0, headerLength);
+        System.arraycopy(data, itemOffsets[first], page, headerLength, itemsLength);
+        System.arraycopy(data, footerStart, page, headerLength + itemsLength, footerLength);
+        return page;
+    }
+
+    /**
+     * Count the leading timestamps newer than the given time.
+     * @param timestamps Timestamps, newest first
+     */
+    static int countNewerThan(long[] timestamps, long since)
+    {
+        int low = 0, high = timestamps.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] > since) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Locate the items of a generated feed. Text content is always escaped,
+     * so the item start tag can not appear inside the items.
+     * @return Start offsets of the items followed by the offset of the channel
+     *         end tag, or null if the channel end tag was not found.
+     */
+    static int[] findItems(byte[] data)
+    {
+        int channelEnd = lastIndexOf(data, CHANNEL_END);
+        if (channelEnd < 0) return null;
+        int[] offsets = new int[16];
+        int count = 0;
+        for (int pos = indexOf(data, ITEM_START, 0); pos >= 0 && pos < channelEnd;
+             pos = indexOf(data, ITEM_START, pos + ITEM_START.length)) {
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = pos;
+        }
+        offsets[count++] = channelEnd;
+        return Arrays.copyOf(offsets, count);
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from)
+    {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, byte[] pattern)
+    {
+        outer:
+        for (int i = data.length - pattern.length; i >= 0; i--) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String s)
+    {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            /* UTF-8 is always supported */
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,336 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.log4j.*;
+
+public class RssSearchIndex
+{
+    /**
+     * In-memory full-text index of the items of a channel. The title and
+     * description of each item are split into words (see RssTokenizer), and
+     * each word has a posting list: a sorted int array of the numbers of the
+     * items containing it. A query returns the items containing all of its
+     * words, newest first.
+     *
+     * The index follows the item index of the channel (see RssItemIndex):
+     * update() is given the current items after each refresh, tokenizes only
+     * the items that are new, and marks the ones that have left the
+     * retention window as deleted. When more than half of the numbered
+     * items are deleted, the posting lists are compacted, so the index stays
+     * proportional to the items being served.
+     *
+     * The index is updated by the refresh thread; queries run in the request
+     * threads at the same time under a read lock.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssSearchIndex.class);
+
+    /** The posting lists are not compacted before there are this many deleted items */
+    private static final int MIN_DELETED_TO_COMPACT = 64;
+
+    /** Number of results returned when the query has no limit */
+    private static int gDefaultLimit = RssConfig.getInt("rssmergett.search.defaultLimit", 50);
+
+    /**
+     * Sorted numbers of the items containing a word.
+     */
+    private static final class Postings
+    {
+        int[] docs = new int[2];
+        int size = 0;
+
+        void add(int doc)
+        {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Posting lists by word */
+    private final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+    /** Numbers of the items in the index, by identity */
+    private final Map<RssItem, Integer> docIds = new IdentityHashMap<RssItem, Integer>();
+
+    /** Items by number, null for deleted items */
+    private RssItem[] docs = new RssItem[64];
+
+    /** Position of each item in the newest first item list, by number */
+    private int[] ranks = new int[64];
+
+    /** Numbers of the items in the newest first item list, by position */
+    private int[] docsByRank = new int[0];
+
+    /** Number of numbered items, deleted or not */
+    private int nrDocs = 0;
+
+    /** Number of deleted items */
+    private int nrDeleted = 0;
+
+    /** Estimated memory taken by the index */
+    private volatile long memoryBytes = 0L;
+
+    /** Number of distinct words in the index */
+    private volatile int nrWords = 0;
+
+    /**
+     * Update the index to contain the given items. Items that were in the
+     * index before (the same objects) are not tokenized again.
+     * @param items The current items, newest first
+     */
+    public void update(List<RssItem> items)
+    {
+        lock.writeLock().lock();
+        try {
+            Arrays.fill(ranks, 0, nrDocs, -1);
+            Set<String> words = new HashSet<String>();
+            int nrAdded = 0;
+            int rank = 0;
+            int[] newDocsByRank = new int[items.size()];
+            for (RssItem item : items) {
+                Integer doc = docIds.get(item);
+                if (doc == null) {
+                    doc = Integer.valueOf(add(item, words));
+                    nrAdded++;
+                }
+                newDocsByRank[rank] = doc.intValue();
+                ranks[doc.intValue()] = rank++;
+            }
+            docsByRank = newDocsByRank;
+            int nrRemoved = 0;
+            for (int doc=0; doc<nrDocs; doc++) {
+                if (docs[doc] != null && ranks[doc] < 0) {
+                    docIds.remove(docs[doc]);
+                    docs[doc] = null;
+                    nrRemoved++;
+                }
+            }
+            nrDeleted += nrRemoved;
+            if (nrDeleted >= MIN_DELETED_TO_COMPACT && nrDeleted > nrDocs / 2) {
+                compact();
+            }
+            if (nrAdded > 0 || nrRemoved > 0) {
+                memoryBytes = estimateMemoryBytes();
+                nrWords = postings.size();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Search index updated: " + nrAdded + " added, " + nrRemoved + " removed, "
+                                 + docIds.size() + " items, " + postings.size() + " words");
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number and tokenize a new item.
+     * @param words Set to reuse for the words of the item
+     * @return Number of the item
+     */
+    private int add(RssItem item, Set<String> words)
+    {
+        if (nrDocs == docs.length) {
+            docs = Arrays.copyOf(docs, nrDocs * 2);
+            ranks = Arrays.copyOf(ranks, nrDocs * 2);
+        }
+        int doc = nrDocs++;
+        docs[doc] = item;
+        docIds.put(item, Integer.valueOf(doc));
+        words.clear();
+        RssTokenizer.tokenize(item.getTitle(), words);
+        RssTokenizer.tokenize(item.getDescription(), words);
+        for (String word : words) {
+            Postings list = postings.get(word);
+            if (list == null) {
+                list = new Postings();
+                postings.put(word, list);
+            }
+            /* Numbers only grow, so the list stays sorted */
+            list.add(doc);
+        }
+        return doc;
+    }
+
+    /**
+     * Renumber the items without the deleted ones and drop them from the
+     * posting lists.
+     */
+    private void compact()
+    {
+        int[] newIds = new int[nrDocs];
+        int nrLive = 0;
+        for (int doc=0; doc<nrDocs; doc++) {
+            if (docs[doc] == null) {
+                newIds[doc] = -1;
+                continue;
+            }
+            newIds[doc] = nrLive;
+            docs[nrLive] = docs[doc];
+            ranks[nrLive] = ranks[doc];
+            docIds.put(docs[nrLive], Integer.valueOf(nrLive));
+            nrLive++;
+        }
+        Arrays.fill(docs, nrLive, nrDocs, null);
+        for (int rank=0; rank<docsByRank.length; rank++) {
+            docsByRank[rank] = newIds[docsByRank[rank]];
+        }
+        for (Iterator<Postings> it = postings.values().iterator(); it.hasNext(); ) {
+            Postings list = it.next();
+            int size = 0;
+            for (int i=0; i<list.size; i++) {
+                int doc = newIds[list.docs[i]];
+                if (doc >= 0) {
+                    list.docs[size++] = doc;
+                }
+            }
+            if (size == 0) {
+                it.remove();
+                continue;
+            }
+            list.size = size;
+            if (list.docs.length > size * 2) {
+                list.docs = Arrays.copyOf(list.docs, Math.max(2, size));
+            }
+        }
+        logger.debug("Search index compacted from " + nrDocs + " to " + nrLive + " items");
+        nrDocs = nrLive;
+        nrDeleted = 0;
+    }
+
+    /**
+     * Find the items containing all the words of a query.
+     * @param words The words of the query, see RssTokenizer.tokenizeQuery()
+     * @param query Paging of the results and the oldest item date; without
+     *        a limit, rssmergett.search.defaultLimit items are returned
+     * @return The matching items, newest first
+     */
+    public List<RssItem> search(List<String> words, RssPages.Query query)
+    {
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            Postings[] lists = new Postings[words.size()];
+            for (int i=0; i<lists.length; i++) {
+                lists[i] = postings.get(words.get(i));
+                if (lists[i] == null) {
+                    return Collections.emptyList();
+                }
+            }
+            /* Walk the shortest list and look up the others */
+            Arrays.sort(lists, new Comparator<Postings>() {
+                    public int compare(Postings a, Postings b) {
+                        return a.size < b.size ? -1 : (a.size > b.size ? 1 : 0);
+                    }
+                });
+            /* Mark the matches by their position in the newest first list, so
+               reading the marks in order gives the results without sorting */
+            long[] matches = new long[(docsByRank.length + 63) / 64];
+            int[] positions = new int[lists.length];
+            for (int i=0; i<lists[0].size; i++) {
+                int doc = lists[0].docs[i];
+                if (docs[doc] != null && containsAll(lists, positions, doc)) {
+                    int rank = ranks[doc];
+                    matches[rank >>> 6] |= 1L << rank;
+                }
+            }
+
+            int limit = query.limit < 0 ? gDefaultLimit : query.limit;
+            List<RssItem> result = new ArrayList<RssItem>(Math.min(limit, lists[0].size));
+            int skip = query.offset;
+            for (int w=0; w<matches.length && result.size() < limit; w++) {
+                long word = matches[w];
+                while (word != 0 && result.size() < limit) {
+                    int rank = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    RssItem item = docs[docsByRank[rank]];
+                    if (query.since != RssDates.INVALID && item.getTimestamp() <= query.since) {
+                        /* The rest are older still */
+                        return result;
+                    }
+                    if (skip > 0) {
+                        skip--;
+                    } else {
+                        result.add(item);
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check whether the lists after the first one contain an item. The
+     * items are looked up in increasing order, so each list is searched
+     * from where the previous lookup stopped, first with growing steps and
+     * then by bisection.
+     * @param positions Where the previous lookup stopped in each list
+     */
+    private static boolean containsAll(Postings[] lists, int[] positions, int doc)
+    {
+        for (int l=1; l<lists.length; l++) {
+            Postings list = lists[l];
+            int low = positions[l];
+            int step = 1;
+            int high = low;
+            while (high < list.size && list.docs[high] < doc) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            int pos = Arrays.binarySearch(list.docs, low, Math.min(high + 1, list.size), doc);
+            if (pos < 0) {
+                positions[l] = -pos - 1;
+                return false;
+            }
+            positions[l] = pos;
+        }
+        return true;
+    }
+
+    /** @return Number of items in the index */
+    public int size()
+    {
+        lock.readLock().lock();
+        try {
+            return docIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return Number of distinct words in the index */
+    public int getWordCount()
+    {
+        return nrWords;
+    }
+
+    /** @return Estimated memory (in bytes) taken by the index, not counting the items */
+    public long getMemoryBytes()
+    {
+        return memoryBytes;
+    }
+
+    private long estimateMemoryBytes()
+    {
+        /* Map entries, word strings and list objects, and the arrays */
+        long bytes = docs.length * 8L + ranks.length * 4L + docsByRank.length * 4L + docIds.size() * 48L;
+        for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+            bytes += 96 + entry.getKey().length() * 2 + entry.getValue().docs.length * 4L;
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+
+public final class RssSnapshot
+{
+    /**
+     * Immutable holder for one generated version of the combined RSS feed.
+     * A snapshot is never modified after it has been published, so readers
+     * can use it without locking. Localized versions of the snapshot, with
+     * the channel texts of another locale, are cached in the snapshot; the
+     * most recently used ones are kept.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Content type of the combined RSS feed */
+    public static final String CONTENT_TYPE = "text/xml;charset=UTF-8";
+
+    /** The combined RSS XML content as UTF-8 encoded binary, with compressed variants */
+    private final FeedContent content;
+
+    /** Paged views of the content */
+    private final RssPages pages;
+
+    /** The combined feed as JSON with its paged views, or null if not made */
+    private final RssPages json;
+
+    /** Time (in epoch milliseconds) when the snapshot was generated */
+    private final long generatedTime;
+
+    /** Channel texts of the content, or null if not known */
+    private final FeedMetadata metadata;
+
+    /** Versions of this snapshot with other channel texts, least recently used first; guarded by itself */
+    private final Map<FeedMetadata, RssSnapshot> localized =
+        new LinkedHashMap<FeedMetadata, RssSnapshot>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<FeedMetadata, RssSnapshot> eldest) {
+                return size() > maxLocalized;
+            }
+        };
+
+    /** Maximum number of localized versions kept, as last given to putLocalized(); guarded by localized */
+    private int maxLocalized = 0;
+
+    /**
+     * Create a snapshot.
+     * @param data The combined RSS XML content as UTF-8 encoded binary.
+     * @param generatedTime Time (in epoch milliseconds) when the content was generated.
+     */
+    public RssSnapshot(byte[] data, long generatedTime)
+    {
+        this(FeedContent.create(data, CONTENT_TYPE), generatedTime);
+    }
+
+    /**
+     * Create a snapshot from already compressed content.
+     * @param content The combined RSS XML content.
+     * @param generatedTime Time (in epoch milliseconds) when the content was generated.
+     */
+    public RssSnapshot(FeedContent content, long generatedTime)
+    {
+        this(new RssPages(content, null), null, generatedTime);
+    }
+
+    /**
+     * Create a snapshot with paged views of the content.
+     * @param pages The combined RSS XML content and its pages.
+     * @param metadata Channel texts of the content, or null if not known.
+     * @param generatedTime Time (in epoch milliseconds) when the content was generated.
+     */
+    public RssSnapshot(RssPages pages, FeedMetadata metadata, long generatedTime)
+    {
+        this(pages, null, metadata, generatedTime);
+    }
+
+    /**
+     * Create a snapshot with paged views of the content and its JSON version.
+     * @param pages The combined RSS XML content and its pages.
+     * @param json The combined feed as JSON and its pages, or null if not made.
+     * @param metadata Channel texts of the content, or null if not known.
+     * @param generatedTime Time (in epoch milliseconds) when the content was generated.
+     */
+    public RssSnapshot(RssPages pages, RssPages json, FeedMetadata metadata, long generatedTime)
+    {
+        this.content = pages.getFull();
+        this.pages = pages;
+        this.json = json;
+        this.metadata = metadata;
+        this.generatedTime = generatedTime;
+    }
+
+    /** @return The combined RSS XML content as UTF-8 encoded binary. Must not be modified. */
+    public byte[] getData() { return content.getData(); }
+
+    /** @return The combined RSS XML content with its compressed variants. */
+    public FeedContent getContent() { return content; }
+
+    /** @return Paged and date filtered views of the content. */
+    public RssPages getPages() { return pages; }
+
+    /** @return The combined feed as JSON with its pages, or null if not made. */
+    public RssPages getJson() { return json; }
+
+    /** @return Channel texts of the content, or null if not known. */
+    public FeedMetadata getMetadata() { return metadata; }
+
+    /**
+     * Get a cached version of this snapshot with other channel texts.
+     * @param otherMetadata The channel texts
+     * @return The localized snapshot, or null if it has not been cached
+     */
+    public RssSnapshot getLocalized(FeedMetadata otherMetadata)
+    {
+        synchronized (localized) {
+            return localized.get(otherMetadata);
+        }
+    }
+
+    /**
+     * Cache a version of this snapshot with other channel texts. When the
+     * cache is full, the least recently used version is dropped.
+     * @param snapshot The localized snapshot
+     * @param maxCached Maximum number of localized versions kept
+     */
+    public void putLocalized(RssSnapshot snapshot, int maxCached)
+    {
+        synchronized (localized) {
+            maxLocalized = maxCached;
+            if (!localized.containsKey(snapshot.getMetadata())) {
+                localized.put(snapshot.getMetadata(), snapshot);
+            }
+        }
+    }
+
+    /** @return Time (in epoch milliseconds) when the snapshot was generated. */
+    public long getGeneratedTime() { return generatedTime; }
+
+    /**
+     * Get the age of the snapshot.
+     * @param currentTime Current time in epoch milliseconds
+     * @return Age of the snapshot in milliseconds
+     */
+    public long getAge(long currentTime)
+    {
+        return currentTime - generatedTime;
+    }
+
+}
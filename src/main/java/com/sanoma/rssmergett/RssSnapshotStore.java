@@ -0,0 +1,359 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.apache.log4j.*;
+
+public class RssSnapshotStore
+{
+    /**
+     * Class for keeping the latest combined feed in a local file, so that a
+     * restarted service can serve it at once instead of waiting for the
+     * sources to be fetched and merged. Optionally the raw copies of the
+     * source feeds are kept in the file too, with their ETag and
+     * Last-Modified validators, so the first refresh after a restart uses
+     * conditional requests and still has a copy of sources that are down.
+     *
+     * The file is written to a temporary file in the same directory and
+     * then renamed over the previous one, so a crash while saving leaves
+     * the previous file intact. It is read through a memory mapping.
+     *
+     * The same format is used for the combined feeds published to the
+     * other nodes of a cluster (see FileLockCoordinator); those files carry
+     * a version number that grows with each published feed.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssSnapshotStore.class);
+
+    /** Marks the start and the end of the file */
+    private static final int MAGIC = 0x52534d53; // "RSMS"
+
+    /** Version of the file format; version 1 files (without the snapshot version) are still read */
+    private static final int FORMAT_VERSION = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Contents of the snapshot file.
+     */
+    public static final class Stored
+    {
+        private final RssSnapshot snapshot;
+        private final List<RssSourceCache.CachedFeed> feeds;
+        private final long version;
+
+        Stored(RssSnapshot snapshot, List<RssSourceCache.CachedFeed> feeds, long version)
+        {
+            this.snapshot = snapshot;
+            this.feeds = feeds;
+            this.version = version;
+        }
+
+        /** @return Version of the snapshot given to save(), 0 if none was given */
+        public long getVersion() { return version; }
+
+        /** @return The combined feed */
+        public RssSnapshot getSnapshot() { return snapshot; }
+
+        /** @return Cached copies of the source feeds, empty if they were not stored */
+        public List<RssSourceCache.CachedFeed> getFeeds() { return feeds; }
+    }
+
+    /** The snapshot file */
+    private final File file;
+
+    /** Whether the copies of the source feeds are stored */
+    private final boolean storeFeeds;
+
+    /**
+     * Create a store.
+     * @param file The snapshot file
+     * @param storeFeeds Whether the copies of the source feeds are stored with the combined feed
+     */
+    public RssSnapshotStore(File file, boolean storeFeeds)
+    {
+        this.file = file;
+        this.storeFeeds = storeFeeds;
+    }
+
+    /**
+     * Create a store using the settings in rssmergett.properties.
+     * @return The configured store, or null if storing snapshots is disabled
+     */
+    public static RssSnapshotStore createFromConfig()
+    {
+        if (!Boolean.valueOf(RssConfig.getString("rssmergett.snapshot.enabled", "true")).booleanValue()) {
+            return null;
+        }
+        String defaultPath = new File(System.getProperty("java.io.tmpdir"), "rssmergett-snapshot.dat").getPath();
+        return new RssSnapshotStore(new File(RssConfig.getString("rssmergett.snapshot.file", defaultPath)),
+                                    Boolean.valueOf(RssConfig.getString("rssmergett.snapshot.feeds", "true")).booleanValue());
+    }
+
+    /** @return The snapshot file */
+    public File getFile() { return file; }
+
+    /** @return true if the copies of the source feeds are stored */
+    public boolean isStoringFeeds() { return storeFeeds; }
+
+    /**
+     * Identify a list of sources, so that a saved snapshot is only used with
+     * the sources it was made of.
+     * @param urls URLs of the source feeds
+     * @return Key for save() and load()
+     */
+    public static String sourcesKey(String[] urls)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String url : urls) {
+            sb.append(url).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Save a snapshot, replacing the previous file atomically.
+     * @param sourcesKey Identifies the configured sources; a file is only loaded for the same sources
+     * @param snapshot The combined feed
+     * @param feeds Cached copies of the source feeds, ignored unless storing them is enabled
+     * @throws IOException If the file can not be written. The previous file is then left as it was.
+     */
+    public void save(String sourcesKey, RssSnapshot snapshot, List<RssSourceCache.CachedFeed> feeds)
+        throws IOException
+    {
+        save(sourcesKey, snapshot, feeds, 0L);
+    }
+
+    /**
+     * Save a snapshot with a version number, replacing the previous file atomically.
+     * @param sourcesKey Identifies the configured sources; a file is only loaded for the same sources
+     * @param snapshot The combined feed
+     * @param feeds Cached copies of the source feeds, ignored unless storing them is enabled
+     * @param version Version of the snapshot, returned by Stored.getVersion()
+     * @throws IOException If the file can not be written. The previous file is then left as it was.
+     */
+    public void save(String sourcesKey, RssSnapshot snapshot, List<RssSourceCache.CachedFeed> feeds, long version)
+        throws IOException
+    {
+        long startNanos = System.nanoTime();
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create directory " + directory);
+        }
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        boolean saved = false;
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            FeedContent content = snapshot.getPages().getFull();
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, sourcesKey);
+            out.writeLong(version);
+            out.writeLong(snapshot.getGeneratedTime());
+            out.writeLong(content.getCreatedTime());
+
+            FeedMetadata metadata = snapshot.getMetadata();
+            out.writeBoolean(metadata != null);
+            if (metadata != null) {
+                writeString(out, metadata.getTitle());
+                writeString(out, metadata.getImageURL());
+                writeString(out, metadata.getImageTitle());
+                writeString(out, metadata.getImageLink());
+                writeString(out, metadata.getDescription());
+                writeString(out, metadata.getLink());
+                writeString(out, metadata.getLanguage());
+            }
+
+            long[] timestamps = snapshot.getPages().getTimestamps();
+            out.writeInt(timestamps == null ? -1 : timestamps.length);
+            if (timestamps != null) {
+                for (long timestamp : timestamps) {
+                    out.writeLong(timestamp);
+                }
+            }
+            writeBytes(out, content.getData());
+
+            List<RssSourceCache.CachedFeed> storedFeeds = storeFeeds && feeds != null
+                ? feeds : Collections.<RssSourceCache.CachedFeed>emptyList();
+            out.writeInt(storedFeeds.size());
+            for (RssSourceCache.CachedFeed feed : storedFeeds) {
+                writeString(out, feed.getUrl());
+                writeString(out, feed.getEtag());
+                writeString(out, feed.getLastModified());
+                out.writeLong(feed.getValidatedTime());
+                writeBytes(out, feed.getBody());
+            }
+            out.writeInt(MAGIC);
+            out.flush();
+            fos.getFD().sync();
+            fos.close();
+            Files.move(temp.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            saved = true;
+        } finally {
+            try { fos.close(); } catch (Throwable tt) { /* ignore */ }
+            if (!saved) {
+                temp.delete();
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Saved snapshot to " + file + " (" + file.length() + " bytes) in "
+                         + (System.nanoTime() - startNanos) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Load the saved snapshot.
+     * @param sourcesKey Identifies the configured sources, see save()
+     * @return The snapshot, or null if there is no file, the file is damaged
+     *         or it was saved for other sources.
+     */
+    public Stored load(String sourcesKey)
+    {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int formatVersion = (in.getInt() == MAGIC) ? in.getInt() : -1;
+            if (formatVersion < 1 || formatVersion > FORMAT_VERSION) {
+                logger.warn("Ignoring snapshot file " + file + ": unknown format");
+                return null;
+            }
+            if (!sourcesKey.equals(readString(in))) {
+                logger.info("Ignoring snapshot file " + file + ": it was saved for other sources");
+                return null;
+            }
+            long version = (formatVersion >= 2) ? in.getLong() : 0L;
+            long generatedTime = in.getLong();
+            long createdTime = in.getLong();
+
+            FeedMetadata metadata = null;
+            if (in.get() != 0) {
+                metadata = new FeedMetadata(readString(in), readString(in), readString(in), readString(in),
+                                            readString(in), readString(in), readString(in));
+            }
+
+            long[] timestamps = null;
+            int nrTimestamps = in.getInt();
+            if (nrTimestamps >= 0) {
+                checkRemaining(in, nrTimestamps * 8L);
+                timestamps = new long[nrTimestamps];
+                in.asLongBuffer().get(timestamps);
+                in.position(in.position() + nrTimestamps * 8);
+            }
+            byte[] data = readBytes(in);
+
+            int nrFeeds = in.getInt();
+            List<RssSourceCache.CachedFeed> feeds = new ArrayList<RssSourceCache.CachedFeed>();
+            for (int i=0; i<nrFeeds; i++) {
+                String url = readString(in);
+                String etag = readString(in);
+                String lastModified = readString(in);
+                long validatedTime = in.getLong();
+                feeds.add(new RssSourceCache.CachedFeed(url, readBytes(in), etag, lastModified, validatedTime));
+            }
+            if (in.getInt() != MAGIC) {
+                logger.warn("Ignoring snapshot file " + file + ": it is damaged");
+                return null;
+            }
+
+            FeedContent content = FeedContent.create(data, RssSnapshot.CONTENT_TYPE, createdTime);
+            RssSnapshot snapshot = new RssSnapshot(new RssPages(content, timestamps), metadata, generatedTime);
+            logger.info("Loaded snapshot from " + new Date(generatedTime) + " from " + file
+                        + " (" + data.length + " bytes, " + feeds.size() + " source feeds)");
+            return new Stored(snapshot, feeds, version);
+        } catch (IOException e) {
+            logger.warn("Could not read snapshot file " + file + ": " + e);
+            return null;
+        } catch (RuntimeException e) {
+            /* BufferUnderflowException from a truncated file or a bad length in a damaged one */
+            logger.warn("Ignoring snapshot file " + file + ": it is damaged (" + e + ")");
+            return null;
+        } finally {
+            if (raf != null) {
+                try { raf.close(); } catch (Throwable tt) { /* ignore */ }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        writeBytes(out, value == null ? null : value.getBytes(UTF8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException
+    {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, UTF8);
+    }
+
+    private static byte[] readBytes(ByteBuffer in)
+    {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        checkRemaining(in, length);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Check that a length read from the file fits in the rest of the file,
+     * before anything is allocated for it.
+     */
+    private static void checkRemaining(ByteBuffer in, long length)
+    {
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    /** Test driver: prints the contents of a snapshot file */
+    public static void main(String[] arg)
+    {
+        if (arg.length != 2) {
+            System.err.println("usage: java com.sanoma.rssmergett.RssSnapshotStore snapshot.dat url1,url2..\n");
+            System.exit(-10);
+        }
+        Stored stored = new RssSnapshotStore(new File(arg[0]), true).load(sourcesKey(arg[1].split(",")));
+        if (stored == null) {
+            System.out.println("No snapshot");
+            return;
+        }
+        RssSnapshot snapshot = stored.getSnapshot();
+        System.out.println("Generated " + new Date(snapshot.getGeneratedTime()) + ", "
+                           + snapshot.getData().length + " bytes, "
+                           + snapshot.getPages().getItemCount() + " items");
+        for (RssSourceCache.CachedFeed feed : stored.getFeeds()) {
+            System.out.println(feed.getUrl() + ": " + feed.getBody().length + " bytes, ETag " + feed.getEtag()
+                               + ", Last-Modified " + feed.getLastModified());
+        }
+    }
+
+}
@@ -0,0 +1,564 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.*;
+import org.apache.log4j.*;
+
+public class RssSourceCache
+{
+    /**
+     * Class for caching the source RSS feeds. For every source the cache
+     * keeps the items of the last successfully parsed copy together with the
+     * ETag and Last-Modified validators the source sent with it.
+     *
+     * Refreshes use conditional GETs, so an unchanged source costs a 304
+     * response and no parsing. A source that fails or times out is replaced
+     * by its last good copy, so the combined feed survives the failure of
+     * single sources.
+     *
+     * When keeping bodies is enabled, the raw bytes of the cached copies are
+     * kept as well, so the copies can be saved with the snapshot and
+     * restored after a restart (see RssSnapshotStore).
+     *
+     * One cache is shared by all channels. A source used by several
+     * channels is fetched once: a copy validated within the reuse window of
+     * the caller is used without fetching, and a source that is being
+     * fetched for another channel is waited for instead of fetched again.
+     *
+     * Every source is fetched on a schedule of its own that follows how
+     * often the source changes: the interval is half of the average time
+     * between the observed changes, or of the time since the last change
+     * if that is longer, within rssmergett.source.minIntervalMillis and
+     * rssmergett.source.maxIntervalMillis. A source that is not due is
+     * served from its cached copy without a request. A copy that comes
+     * back byte for byte the same (from a source that ignores conditional
+     * requests) counts as unchanged and is not parsed again.
+     *
+     * A source that fails rssmergett.source.breaker.failures times in a
+     * row is not requested at all (the circuit breaker is open) for a
+     * backoff time that doubles with every further failure, up to
+     * rssmergett.source.breaker.maxBackoffMillis. When the backoff time
+     * has passed, one request is let through as a probe: if it succeeds
+     * the breaker closes, otherwise it opens again for longer.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(RssSourceCache.class);
+
+    /** Shortest interval (in milliseconds) between the fetches of a source */
+    private static long gMinIntervalInMillis = RssConfig.getLong("rssmergett.source.minIntervalMillis", 60000L);
+
+    /** Longest interval (in milliseconds) between the fetches of a source */
+    private static long gMaxIntervalInMillis = RssConfig.getLong("rssmergett.source.maxIntervalMillis", 1800000L);
+
+    /** Number of failures in a row that opens the circuit breaker of a source */
+    private static int gBreakerFailures = RssConfig.getInt("rssmergett.source.breaker.failures", 3);
+
+    /** Time (in milliseconds) the circuit breaker stays open after it first opens */
+    private static long gBreakerBackoffInMillis = RssConfig.getLong("rssmergett.source.breaker.backoffMillis", 30000L);
+
+    /** Longest time (in milliseconds) the circuit breaker stays open */
+    private static long gBreakerMaxBackoffInMillis =
+        RssConfig.getLong("rssmergett.source.breaker.maxBackoffMillis", 3600000L);
+
+    /** A source due within this time (in milliseconds) is fetched with the current refresh */
+    private static final long DUE_SLACK_MILLIS = 1000L;
+
+    /**
+     * Cached state of one source feed.
+     */
+    private static final class Entry
+    {
+        /** Items of the last successfully parsed copy */
+        final List<RssItem> items;
+
+        /** ETag of the cached copy, or null */
+        final String etag;
+
+        /** Last-Modified of the cached copy, or null */
+        final String lastModified;
+
+        /** Time (in epoch milliseconds) when the copy was last confirmed to be current */
+        final long validatedTime;
+
+        /** Raw bytes of the copy, or null if bodies are not kept */
+        final byte[] body;
+
+        /** Hash of the raw bytes of the copy, see FeedContent.hash() */
+        final String bodyHash;
+
+        Entry(List<RssItem> items, String etag, String lastModified, long validatedTime, byte[] body,
+              String bodyHash)
+        {
+            this.items = items;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.validatedTime = validatedTime;
+            this.body = body;
+            this.bodyHash = bodyHash;
+        }
+    }
+
+    /**
+     * Fetch schedule and circuit breaker of one source. Guarded by itself.
+     */
+    private static final class Schedule
+    {
+        private final String url;
+
+        /** Current interval (in milliseconds) between fetches */
+        private long intervalMillis = gMinIntervalInMillis;
+
+        /** Average time (in milliseconds) between the observed changes, 0 until known */
+        private long averageChangeMillis = 0L;
+
+        /** Time (in epoch milliseconds) of the last observed change, 0 if none */
+        private long lastChangeTime = 0L;
+
+        /** Time (in epoch milliseconds) when the source is due to be fetched */
+        private long nextFetchTime = 0L;
+
+        /** Number of failed fetches in a row */
+        private int failures = 0;
+
+        /** Time (in epoch milliseconds) until which the circuit breaker is open, 0 if it is closed */
+        private long openUntil = 0L;
+
+        Schedule(String url)
+        {
+            this.url = url;
+        }
+
+        /**
+         * Check whether the source should be fetched now.
+         * @param currentTime Current time in epoch milliseconds
+         * @return null if the source should be fetched, otherwise why not:
+         *         "breaker" or "schedule"
+         */
+        synchronized String getSkipReason(long currentTime)
+        {
+            if (openUntil > 0) {
+                /* After the backoff time one probe goes through; fetches of a source never overlap */
+                return currentTime >= openUntil ? null : "breaker";
+            }
+            return currentTime + DUE_SLACK_MILLIS >= nextFetchTime ? null : "schedule";
+        }
+
+        /**
+         * Record a successful fetch and plan the next one.
+         * @param startTime Time (in epoch milliseconds) when the fetch started
+         * @param changed Whether the source had changed
+         */
+        synchronized void fetched(long startTime, boolean changed)
+        {
+            if (openUntil > 0) {
+                logger.info("Source " + url + " is back after " + failures + " failures, closing the circuit breaker");
+                openUntil = 0L;
+                RssMetrics.gauge("rssmergett_source_breaker_open", "Whether the circuit breaker of a source is open",
+                                 "source", url).set(0);
+            }
+            failures = 0;
+            if (changed) {
+                if (lastChangeTime > 0) {
+                    long gap = startTime - lastChangeTime;
+                    averageChangeMillis = (averageChangeMillis == 0) ? gap : (averageChangeMillis * 3 + gap) / 4;
+                }
+                lastChangeTime = startTime;
+            }
+            long basis = Math.max(averageChangeMillis, lastChangeTime > 0 ? startTime - lastChangeTime : 0L);
+            intervalMillis = Math.min(gMaxIntervalInMillis, Math.max(gMinIntervalInMillis, basis / 2));
+            nextFetchTime = startTime + intervalMillis;
+            RssMetrics.gauge("rssmergett_source_interval_seconds", "Current interval between the fetches of a source",
+                             "source", url).set(intervalMillis / 1000);
+        }
+
+        /**
+         * Record a failed fetch, and open the circuit breaker if the source
+         * keeps failing.
+         * @param currentTime Current time in epoch milliseconds
+         */
+        synchronized void failed(long currentTime)
+        {
+            failures++;
+            /* Retry with the next refresh until the breaker opens */
+            nextFetchTime = currentTime;
+            if (failures < gBreakerFailures) {
+                return;
+            }
+            int doublings = Math.min(failures - gBreakerFailures, 20);
+            long backoff = Math.min(gBreakerMaxBackoffInMillis, gBreakerBackoffInMillis << doublings);
+            /* Spread the probes of sources that failed together */
+            backoff += ThreadLocalRandom.current().nextLong(backoff / 10 + 1);
+            openUntil = currentTime + backoff;
+            logger.warn("Source " + url + " failed " + failures + " times in a row, not fetching it for "
+                        + backoff + " ms");
+            RssMetrics.counter("rssmergett_source_breaker_trips_total", "Times the circuit breaker of a source opened",
+                               "source", url).inc();
+            RssMetrics.gauge("rssmergett_source_breaker_open", "Whether the circuit breaker of a source is open",
+                             "source", url).set(1);
+        }
+    }
+
+    /**
+     * Raw copy of a source feed with its validators, for saving and
+     * restoring the cache.
+     */
+    public static final class CachedFeed
+    {
+        private final String url;
+        private final byte[] body;
+        private final String etag;
+        private final String lastModified;
+        private final long validatedTime;
+
+        /**
+         * Create a cached copy.
+         * @param url URL of the source
+         * @param body Raw bytes of the copy
+         * @param etag ETag of the copy, or null
+         * @param lastModified Last-Modified of the copy, or null
+         * @param validatedTime Time (in epoch milliseconds) when the copy was last confirmed to be current
+         */
+        public CachedFeed(String url, byte[] body, String etag, String lastModified, long validatedTime)
+        {
+            this.url = url;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.validatedTime = validatedTime;
+        }
+
+        public String getUrl() { return url; }
+        public byte[] getBody() { return body; }
+        public String getEtag() { return etag; }
+        public String getLastModified() { return lastModified; }
+        public long getValidatedTime() { return validatedTime; }
+    }
+
+    /** Fetcher downloading the source feeds */
+    private final RssFeedFetcher fetcher;
+
+    /** Merger used for parsing the source feeds */
+    private final RssXmlMerger parser;
+
+    /** Cached source feeds by URL */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** Fetch schedules of the sources by URL */
+    private final ConcurrentMap<String, Schedule> schedules = new ConcurrentHashMap<String, Schedule>();
+
+    /** Sources being fetched, by URL; the latch is released when the fetch is done */
+    private final ConcurrentMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+
+    /** Incremented whenever the items of any source change */
+    private final AtomicLong version = new AtomicLong();
+
+    /** Whether the raw bytes of the cached copies are kept */
+    private volatile boolean keepBodies = false;
+
+    /**
+     * Create a source cache.
+     * @param fetcher Fetcher downloading the source feeds.
+     * @param parser Merger used for parsing the source feeds.
+     */
+    public RssSourceCache(RssFeedFetcher fetcher, RssXmlMerger parser)
+    {
+        this.fetcher = fetcher;
+        this.parser = parser;
+    }
+
+    /**
+     * Get the version of the cached content. The version changes whenever
+     * a refresh brings in changed items for any source, so a caller can skip
+     * rebuilding the combined feed when the version stays the same.
+     * @return Version number of the cached content
+     */
+    public long getVersion()
+    {
+        return version.get();
+    }
+
+    /**
+     * Set whether the raw bytes of the cached copies are kept, so that
+     * getCachedFeeds() can return them. Off by default.
+     * @param keepBodies true to keep the bytes
+     */
+    public void setKeepBodies(boolean keepBodies)
+    {
+        this.keepBodies = keepBodies;
+    }
+
+    /**
+     * Get the raw cached copies of the given sources. Only copies whose bytes
+     * have been kept are returned.
+     * @param urls URLs of the source RSS feeds
+     * @return Cached copies, in the order of the URLs
+     */
+    public List<CachedFeed> getCachedFeeds(String[] urls)
+    {
+        List<CachedFeed> feeds = new ArrayList<CachedFeed>(urls.length);
+        for (String url : urls) {
+            Entry entry = entries.get(url);
+            if (entry != null && entry.body != null) {
+                feeds.add(new CachedFeed(url, entry.body, entry.etag, entry.lastModified, entry.validatedTime));
+            }
+        }
+        return feeds;
+    }
+
+    /**
+     * Restore a cached copy, e.g. one saved before a restart. The copy is
+     * parsed and used like a copy fetched from the source; it is ignored if
+     * the cache already has a copy of the source.
+     * @param feed The cached copy
+     * @return true if the copy was restored
+     */
+    public boolean restore(CachedFeed feed)
+    {
+        if (entries.containsKey(feed.getUrl())) {
+            return false;
+        }
+        try {
+            List<RssItem> items =
+                Collections.unmodifiableList(parser.parseItems(new ByteArrayInputStream(feed.getBody())));
+            Entry entry = new Entry(items, feed.getEtag(), feed.getLastModified(), feed.getValidatedTime(),
+                                    keepBodies ? feed.getBody() : null, FeedContent.hash(feed.getBody()));
+            if (entries.putIfAbsent(feed.getUrl(), entry) != null) {
+                return false;
+            }
+            version.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            logger.warn("Could not restore the cached copy of " + feed.getUrl() + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Refresh the given sources and get their items. Sources that fail
+     * are replaced by their last good copy. Sources that have never been
+     * fetched successfully are left out.
+     * @param urls URLs of the source RSS feeds
+     * @return Items of each source that has a good copy, in the order of the URLs.
+     * @throws IOException If none of the sources has a good copy.
+     */
+    public List<List<RssItem>> refresh(String[] urls) throws IOException
+    {
+        return refresh(urls, 0L);
+    }
+
+    /**
+     * Refresh the given sources and get their items, reusing copies that
+     * have been validated recently, e.g. for another channel.
+     * @param urls URLs of the source RSS feeds
+     * @param maxAgeMillis Copies validated within this time (in milliseconds) are used without fetching
+     * @return Items of each source that has a good copy, in the order of the URLs.
+     * @throws IOException If none of the sources has a good copy.
+     */
+    public List<List<RssItem>> refresh(String[] urls, long maxAgeMillis) throws IOException
+    {
+        return refresh(urls, maxAgeMillis, false);
+    }
+
+    /**
+     * Refresh the given sources and get their items.
+     * @param urls URLs of the source RSS feeds
+     * @param maxAgeMillis Copies validated within this time (in milliseconds) are used without fetching
+     * @param force Fetch the sources even if they are not due or their circuit breaker is open
+     * @return Items of each source that has a good copy, in the order of the URLs.
+     * @throws IOException If none of the sources has a good copy.
+     */
+    public List<List<RssItem>> refresh(String[] urls, long maxAgeMillis, boolean force) throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+
+        /* Split the sources into reused ones, ones fetched here and ones fetched by another refresh */
+        List<String> fetchUrls = new ArrayList<String>(urls.length);
+        List<CountDownLatch> fetchLatches = new ArrayList<CountDownLatch>(urls.length);
+        List<CountDownLatch> joined = new ArrayList<CountDownLatch>();
+        for (String url : urls) {
+            Entry entry = entries.get(url);
+            if (entry != null && maxAgeMillis > 0 && startTime - entry.validatedTime <= maxAgeMillis) {
+                continue;
+            }
+            String skipReason = force ? null : getSchedule(url).getSkipReason(startTime);
+            if (skipReason != null) {
+                RssMetrics.counter("rssmergett_source_skipped_total", "Source fetches skipped, by reason",
+                                   "source", url, "reason", skipReason).inc();
+                continue;
+            }
+            CountDownLatch latch = new CountDownLatch(1);
+            CountDownLatch running = inFlight.putIfAbsent(url, latch);
+            if (running == null) {
+                fetchUrls.add(url);
+                fetchLatches.add(latch);
+            } else {
+                joined.add(running);
+            }
+        }
+
+        IOException lastError = null;
+        try {
+            lastError = fetch(fetchUrls.toArray(new String[fetchUrls.size()]), startTime);
+        } finally {
+            for (int i=0; i<fetchUrls.size(); i++) {
+                inFlight.remove(fetchUrls.get(i));
+                fetchLatches.get(i).countDown();
+            }
+        }
+        long deadline = System.currentTimeMillis() + fetcher.getMaxWaitMillis();
+        for (CountDownLatch latch : joined) {
+            try {
+                latch.await(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the source feeds");
+            }
+        }
+
+        List<List<RssItem>> sources = new ArrayList<List<RssItem>>(urls.length);
+        for (String url : urls) {
+            Entry entry = entries.get(url);
+            if (entry != null) {
+                sources.add(entry.items);
+            } else if (lastError == null) {
+                lastError = new IOException("Source " + url + " has no cached copy");
+            }
+        }
+        if (sources.isEmpty() && lastError != null) {
+            throw lastError;
+        }
+        return sources;
+    }
+
+    /**
+     * Get the fetch schedule of a source.
+     */
+    private Schedule getSchedule(String url)
+    {
+        Schedule schedule = schedules.get(url);
+        if (schedule == null) {
+            Schedule created = new Schedule(url);
+            schedule = schedules.putIfAbsent(url, created);
+            if (schedule == null) {
+                schedule = created;
+            }
+        }
+        return schedule;
+    }
+
+    /**
+     * Fetch sources and update their cached copies. Sources that fail keep
+     * their last good copy.
+     * @param urls URLs of the source RSS feeds
+     * @param startTime Time (in epoch milliseconds) when the refresh started
+     * @return The last error, or null if all the sources were fetched
+     */
+    private IOException fetch(String[] urls, long startTime)
+    {
+        if (urls.length == 0) {
+            return null;
+        }
+        String[] etags = new String[urls.length];
+        String[] lastModifieds = new String[urls.length];
+        for (int i=0; i<urls.length; i++) {
+            Entry entry = entries.get(urls[i]);
+            if (entry != null) {
+                etags[i] = entry.etag;
+                lastModifieds[i] = entry.lastModified;
+            }
+        }
+
+        RssFeedFetcher.Result[] results = fetcher.fetchAll(urls, etags, lastModifieds);
+
+        long currentTime = System.currentTimeMillis();
+        boolean changed = false;
+        IOException lastError = null;
+        for (int i=0; i<urls.length; i++) {
+            String url = urls[i];
+            RssFeedFetcher.Result result = results[i];
+            Entry entry = entries.get(url);
+            IOException error = result.getError();
+            String bodyHash = (error == null && result.getBody() != null) ? FeedContent.hash(result.getBody()) : null;
+
+            if (error == null && entry != null
+                && (result.isNotModified() || (bodyHash != null && bodyHash.equals(entry.bodyHash)))) {
+                /* Unchanged, no need to parse */
+                entry = new Entry(entry.items, result.getEtag(), result.getLastModified(), currentTime, entry.body,
+                                  entry.bodyHash);
+                entries.put(url, entry);
+                getSchedule(url).fetched(startTime, false);
+                RssMetrics.counter("rssmergett_source_reused_total", "Source feeds reused unchanged without parsing",
+                                   "source", url).inc();
+            } else if (error == null && result.getBody() != null) {
+                try {
+                    long startNanos = System.nanoTime();
+                    List<RssItem> items =
+                        Collections.unmodifiableList(parser.parseItems(new ByteArrayInputStream(result.getBody())));
+                    RssMetrics.timer("rssmergett_parse_seconds", "Time to parse a source feed",
+                                     "source", url).recordSince(startNanos);
+                    RssMetrics.gauge("rssmergett_source_items", "Number of items in the latest copy of a source feed",
+                                     "source", url).set(items.size());
+                    entry = new Entry(items, result.getEtag(), result.getLastModified(), currentTime,
+                                      keepBodies ? result.getBody() : null, bodyHash);
+                    entries.put(url, entry);
+                    getSchedule(url).fetched(startTime, true);
+                    changed = true;
+                } catch (Exception e) {
+                    error = (IOException) new IOException("Parsing " + url + " failed").initCause(e);
+                }
+            } else if (error == null) {
+                error = new IOException("Source " + url + " answered not modified but there is no cached copy");
+            }
+
+            if (error != null) {
+                lastError = error;
+                getSchedule(url).failed(currentTime);
+                RssMetrics.counter("rssmergett_source_failures_total", "Failed source feed refreshes",
+                                   "source", url, "fallback", entry != null ? "cached" : "none").inc();
+                if (entry != null) {
+                    logger.warn("Source " + url + " failed, using the copy from "
+                                + new Date(entry.validatedTime) + ": " + error);
+                } else {
+                    logger.warn("Source " + url + " failed and has no cached copy, leaving it out: " + error);
+                }
+            }
+        }
+
+        if (changed) {
+            version.incrementAndGet();
+        }
+        return lastError;
+    }
+
+    /** Test driver: refreshes the given sources twice and reports what was reused */
+    public static void main(String[] arg)
+    {
+        if (arg.length == 0) {
+            System.err.println("usage: java com.sanoma.rssmergett.RssSourceCache url1 url2..\n");
+            System.exit(-10);
+        }
+        RssFeedFetcher fetcher = RssFeedFetcher.createFromConfig();
+        try {
+            RssSourceCache cache = new RssSourceCache(fetcher, new RssXmlMerger());
+            for (int round=1; round<=2; round++) {
+                List<List<RssItem>> sources = cache.refresh(arg);
+                int nrItems = 0;
+                for (List<RssItem> items : sources) {
+                    nrItems += items.size();
+                }
+                System.out.println("Round " + round + ": " + sources.size() + " sources, "
+                                   + nrItems + " items, version " + cache.getVersion());
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+        } finally {
+            fetcher.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+package com.sanoma.rssmergett;
+
+import java.text.Normalizer;
+import java.util.*;
+
+public final class RssTokenizer
+{
+    /**
+     * Splits item texts and search queries into the words indexed by
+     * RssSearchIndex. Both go through the same steps, so a query word
+     * matches the same word in the items:
+     *
+     * - HTML tags in the text are skipped and the common entities decoded
+     * - letters are lower cased; accented letters are folded to their base
+     *   letter, except the Finnish å, ä and ö, which are letters of their
+     *   own (æ and ø count as ä and ö, ü as y, as in Finnish sorting)
+     * - words of one character are dropped
+     * - the most common Finnish inflection endings are stripped, so that
+     *   e.g. "Teslan", "Teslaa" and "Teslasta" all match "Tesla".
+     *
+     * The stemming is light: it only removes case endings, plural markers
+     * and clitics, and does not undo consonant gradation ("Helsingissä"
+     * does not match "Helsinki"). It may also stem unrelated words to the
+     * same stem, which costs some precision but no recall.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Words longer than this are cut, they are not real words anyway */
+    private static final int MAX_WORD_LENGTH = 40;
+
+    /** Endings are only stripped if at least this many letters remain */
+    private static final int MIN_STEM_LENGTH = 3;
+
+    /** Clitics, stripped before the case endings */
+    private static final String[] CLITICS = new String[] { "kaan", "kään", "kin" };
+
+    /** Case endings and the plural genitive, stripped after a vowel */
+    private static final String[] CASE_ENDINGS = new String[] {
+        "iden", "jen",
+        "ssa", "ssä", "sta", "stä", "lla", "llä", "lta", "ltä", "lle", "ksi", "tta", "ttä"
+    };
+
+    /** Lower cased and folded versions of the Latin characters, 0 for characters that are not part of words */
+    private static final char[] FOLDED = new char[0x250];
+
+    static {
+        for (char c = 0; c < FOLDED.length; c++) {
+            FOLDED[c] = fold(c);
+        }
+    }
+
+    private RssTokenizer()
+    {
+    }
+
+    /**
+     * Split text into normalized words.
+     * @param text The text, may contain HTML
+     * @param words Collection the words are added to
+     */
+    public static void tokenize(String text, Collection<String> words)
+    {
+        char[] word = new char[MAX_WORD_LENGTH];
+        int length = 0;
+        boolean hasDigits = false;
+        int n = text.length();
+        for (int i=0; i<=n; i++) {
+            char c = 0;
+            if (i < n) {
+                c = text.charAt(i);
+                if (c == '<' && i + 1 < n && isTagStart(text.charAt(i + 1))) {
+                    int end = text.indexOf('>', i);
+                    if (end > 0) {
+                        /* A tag separates words */
+                        i = end;
+                        c = 0;
+                    }
+                } else if (c == '&') {
+                    int end = text.indexOf(';', i);
+                    if (end > i + 1 && end - i <= 10) {
+                        char decoded = decodeEntity(text.substring(i + 1, end));
+                        if (decoded != 0) {
+                            i = end;
+                            c = decoded;
+                        }
+                    }
+                }
+                c = c < FOLDED.length ? FOLDED[c] : (Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0);
+            }
+            if (c != 0) {
+                if (length < MAX_WORD_LENGTH) {
+                    word[length++] = c;
+                    hasDigits |= (c >= '0' && c <= '9');
+                }
+                continue;
+            }
+            if (length > 1) {
+                /* Numbers and codes are kept as they are */
+                int stemmed = hasDigits ? length : stem(word, length);
+                words.add(new String(word, 0, stemmed));
+            }
+            length = 0;
+            hasDigits = false;
+        }
+    }
+
+    /**
+     * Split a search query into normalized words.
+     * @param query The query
+     * @return The distinct words of the query, in the order they appear
+     */
+    public static List<String> tokenizeQuery(String query)
+    {
+        Set<String> words = new LinkedHashSet<String>();
+        tokenize(query, words);
+        return new ArrayList<String>(words);
+    }
+
+    /**
+     * Strip the inflection endings of a lower cased word. The rules are
+     * applied until none of them matches any more.
+     * @param word The word
+     * @param length Length of the word
+     * @return Length of the stem
+     */
+    static int stem(char[] word, int length)
+    {
+        while (true) {
+            int stripped = stripOnce(word, length);
+            if (stripped == length) {
+                return length;
+            }
+            length = stripped;
+        }
+    }
+
+    /**
+     * Strip one ending.
+     * @return Length of the word without the ending, or the same length if no rule matched
+     */
+    private static int stripOnce(char[] w, int n)
+    {
+        for (String clitic : CLITICS) {
+            if (n - clitic.length() >= MIN_STEM_LENGTH && endsWith(w, n, clitic)) {
+                return n - clitic.length();
+            }
+        }
+        for (String ending : CASE_ENDINGS) {
+            int stem = n - ending.length();
+            if (stem >= MIN_STEM_LENGTH && endsWith(w, n, ending) && isVowel(w[stem - 1])) {
+                return stem;
+            }
+        }
+        if (n - 2 < MIN_STEM_LENGTH) {
+            return n;
+        }
+        char last = w[n - 1];
+        char prev = w[n - 2];
+        /* Illative and genitive of long vowels: autoon, koneen */
+        if (last == 'n' && isVowel(prev) && prev == w[n - 3]) {
+            return n - 2;
+        }
+        /* Genitive: Teslan; plural: autot */
+        if ((last == 'n' || last == 't') && isVowel(prev)) {
+            return n - 1;
+        }
+        /* Long vowel at the end: Teslaa, konee(ssa) */
+        if (isVowel(last) && last == prev) {
+            return n - 1;
+        }
+        /* Partitive: autoa, pörssiä */
+        if ((last == 'a' || last == 'ä') && isVowel(prev)) {
+            return n - 1;
+        }
+        /* Plural stem: autoi(ssa) */
+        if (last == 'i' && (prev == 'a' || prev == 'o' || prev == 'u' || prev == 'y' || prev == 'ä' || prev == 'ö')) {
+            return n - 1;
+        }
+        return n;
+    }
+
+    private static boolean endsWith(char[] w, int n, String suffix)
+    {
+        int start = n - suffix.length();
+        for (int i=0; i<suffix.length(); i++) {
+            if (w[start + i] != suffix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isVowel(char c)
+    {
+        switch (c) {
+        case 'a': case 'e': case 'i': case 'o': case 'u': case 'y': case 'ä': case 'ö': case 'å':
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isTagStart(char c)
+    {
+        return c == '/' || c == '!' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Decode an HTML entity.
+     * @param name The entity without the & and ;
+     * @return The character, or 0 if the entity is not known
+     */
+    private static char decodeEntity(String name)
+    {
+        if (name.charAt(0) == '#') {
+            try {
+                int code = (name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X'))
+                    ? Integer.parseInt(name.substring(2), 16)
+                    : Integer.parseInt(name.substring(1));
+                return (code > 0 && code < 0xffff) ? (char) code : ' ';
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        if (name.equals("auml")) return 'ä';
+        if (name.equals("Auml")) return 'Ä';
+        if (name.equals("ouml")) return 'ö';
+        if (name.equals("Ouml")) return 'Ö';
+        if (name.equals("aring")) return 'å';
+        if (name.equals("Aring")) return 'Å';
+        if (name.equals("amp") || name.equals("lt") || name.equals("gt") || name.equals("quot")
+            || name.equals("apos") || name.equals("nbsp")) {
+            return ' ';
+        }
+        return 0;
+    }
+
+    /**
+     * Lower case and fold a character.
+     * @return The folded character, or 0 if the character is not part of words
+     */
+    private static char fold(char c)
+    {
+        if (!Character.isLetterOrDigit(c)) {
+            return 0;
+        }
+        c = Character.toLowerCase(c);
+        if (c < 0x80 || c == 'å' || c == 'ä' || c == 'ö') {
+            return c;
+        }
+        switch (c) {
+        case 'æ': return 'ä';
+        case 'ø': return 'ö';
+        case 'ü': return 'y';
+        case 'ß': return 's';
+        default:
+            char base = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD).charAt(0);
+            return Character.isLetter(base) ? base : c;
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.sanoma.rssmergett;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+@Component
+public class RssWarmStart implements InitializingBean {
+
+    /**
+     * Spring component loading the combined feed saved before the service
+     * was last stopped when the application starts, so the first requests
+     * do not have to wait for the sources. See RssFetchAndCombine.warmStart().
+     * In a cluster it also starts the scheduled refreshes of all the
+     * channels, see RssFetchAndCombine.startClusterRefresh().
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Localized channel texts of the combined feed */
+    private FeedMetadataCache feedMetadataCache;
+
+    /** Setter for injecting the channel texts.
+     * @param cache Injected FeedMetadataCache bean.
+     */
+    @Autowired
+    public void setFeedMetadataCache(FeedMetadataCache cache) {
+        feedMetadataCache = cache;
+    }
+
+    public void afterPropertiesSet() {
+        RssFetchAndCombine.warmStart();
+        RssFetchAndCombine.startClusterRefresh(feedMetadataCache);
+    }
+
+}
@@ -27,6 +27,20 @@ public class RssXmlMerger
     {
     }
 
+    /**
+     * Create the merge engine selected with rssmergett.merge.engine: "stax"
+     * (the default) for the streaming StaxRssXmlMerger or "dom" for this class.
+     * @return The configured merger
+     */
+    public static RssXmlMerger createFromConfig()
+    {
+        String engine = RssConfig.getString("rssmergett.merge.engine", "stax");
+        if ("dom".equalsIgnoreCase(engine)) {
+            return new RssXmlMerger();
+        }
+        return new StaxRssXmlMerger();
+    }
+
     /**
      * Get and catenate all text node contents directly under node.
      * @param node Node DOM tree node the texts under which we get
@@ -123,37 +137,189 @@ public class RssXmlMerger
         throws IOException, javax.xml.parsers.ParserConfigurationException, org.xml.sax.SAXException,
                java.lang.ClassNotFoundException, java.lang.InstantiationException, java.lang.IllegalAccessException
     {
-        // Iterate all source rss xml streams, parse them and create sorted list of item nodes
-        // according to the dc:date value inside the item node.
-
-        HashMap<String, LinkedList<Node>> dateItemsH = new HashMap<String, LinkedList<Node>>(); // group feed items according to their date
-        ArrayList<String> dateList = new ArrayList<String>(); // list of unique datetimes in the feeds
-        Document[] doms = new Document[inputs.length];
+        long startNanos = System.nanoTime();
+        List<List<RssItem>> sources = new ArrayList<List<RssItem>>(inputs.length);
         for (int i=0; i<inputs.length; i++) {
-            // Parse xml as dom tree
-            doms[i] = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputs[i]);
-            // Find all dc:date entries in the DOM tree and group items according to their dc:date
-            NodeList dcDates = doms[i].getElementsByTagName("dc:date");
-            for(int j=0; j<dcDates.getLength(); j++) {
-                Node dcDateNode=dcDates.item(j);
-                Node itemNode = dcDateNode.getParentNode();
-                String itemDate = getElementTexts(dcDateNode);
-                LinkedList<Node> dateNodes = dateItemsH.get(itemDate);
-                if (dateNodes == null) {
-                    dateNodes = new LinkedList<Node>();
-                    dateItemsH.put(itemDate, dateNodes);
-                    dateList.add(itemDate);
+            sources.add(parseItems(inputs[i]));
+        }
+        byte[] result = merge(sources,
+                              combinedTitle,
+                              combinedImageURL,
+                              combinedImageTitle,
+                              combinedImageLink,
+                              combinedDescription,
+                              combinedLink,
+                              combinedLanguage);
+        RssMetrics.timer("rssmergett_merge_seconds", "Time to parse and merge the source feeds in one go")
+            .recordSince(startNanos);
+        return result;
+    }
+
+    /**
+     * Parse the items of one RSS feed. Only items having a valid dc:date or
+     * pubDate are taken.
+     * @param input Input stream providing the RSS feed
+     * @return Items of the feed in document order
+     * @throws org.xml.sax.SAXException If the RSS feed is invalid XML.
+     */
+    public List<RssItem> parseItems(InputStream input)
+        throws IOException, javax.xml.parsers.ParserConfigurationException, org.xml.sax.SAXException
+    {
+        // Parse xml as dom tree
+        Document dom = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
+        NodeList itemNodes = dom.getElementsByTagName("item");
+        List<RssItem> items = new ArrayList<RssItem>(itemNodes.getLength());
+        for(int j=0; j<itemNodes.getLength(); j++) {
+            Node item = itemNodes.item(j);
+            RssItem parsed = createItem(getChildTexts(item, "title"),
+                                        getChildTexts(item, "link"),
+                                        getChildTexts(item, "guid"),
+                                        getChildTexts(item, "description"),
+                                        getChildTexts(item, "pubDate"),
+                                        getChildTexts(item, "dc:date"));
+            if (parsed != null) {
+                items.add(parsed);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Create an item from the parsed field texts. The date of the item is
+     * its dc:date or, if it has no valid dc:date, its pubDate; in the latter
+     * case the dc:date of the item is set from the pubDate, so that every
+     * item of the combined feed has a dc:date.
+     * @return The item, or null if it has no valid date
+     */
+    static RssItem createItem(CharSequence title,
+                              CharSequence link,
+                              CharSequence guid,
+                              CharSequence description,
+                              CharSequence pubDate,
+                              CharSequence dcDate)
+    {
+        long timestamp = RssDates.parseIsoDate(dcDate);
+        String dcDateText;
+        if (timestamp != RssDates.INVALID) {
+            dcDateText = dcDate.toString();
+        } else {
+            timestamp = RssDates.parseRfc822Date(pubDate);
+            if (timestamp == RssDates.INVALID) return null;
+            dcDateText = RssDates.formatIsoDate(timestamp);
+        }
+        return new RssItem(title.toString(),
+                           link.toString(),
+                           guid.toString(),
+                           description.toString(),
+                           pubDate.toString(),
+                           dcDateText,
+                           timestamp);
+    }
+
+    /**
+     * Order items newest first, keeping the given order of items with the
+     * same date. The sort runs on an array of the item timestamps; a list
+     * that is already in order is returned as it is.
+     * @param items The items
+     * @return The items newest first
+     */
+    static List<RssItem> sortNewestFirst(List<RssItem> items)
+    {
+        int n = items.size();
+        long[] keys = new long[n];
+        boolean sorted = true;
+        for (int i=0; i<n; i++) {
+            keys[i] = items.get(i).getTimestamp();
+            if (i > 0 && keys[i] > keys[i-1]) sorted = false;
+        }
+        if (sorted) return items;
+
+        // Stable bottom-up merge sort of the item indexes by their keys
+        int[] from = new int[n];
+        int[] to = new int[n];
+        for (int i=0; i<n; i++) from[i] = i;
+        for (int width=1; width<n; width*=2) {
+            for (int lo=0; lo<n; lo+=2*width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    to[k++] = (keys[from[j]] > keys[from[i]]) ? from[j++] : from[i++];
                 }
-                dateNodes.add(itemNode);
+                while (i < mid) to[k++] = from[i++];
+                while (j < hi) to[k++] = from[j++];
             }
+            int[] tmp = from; from = to; to = tmp;
+        }
+        List<RssItem> ordered = new ArrayList<RssItem>(n);
+        for (int i=0; i<n; i++) {
+            ordered.add(items.get(from[i]));
         }
-        
-        // Sort nodes according to their date/time
-        String[] uniqueDates = dateList.toArray(new String[0]);
-        Arrays.sort(uniqueDates); // ISO representation of dates sort nicely simply using alphabetic sort
+        return ordered;
+    }
 
-        // Merge dom trees into a new DOM tree
+    /**
+     * Combine already parsed RSS feeds into one.
+     * @param sources Items of each RSS feed to be combined
+     * @param combinedTitle Title text for the combined RSS feed
+     * @param combinedImageURL Image URl for the combined RSS feed
+     * @param combinedImageTitle Image title for the combined RSS feed
+     * @param combinedImageLink Image link for the combined RSS feed
+     * @param combinedDescription Description for the combined RSS feed
+     * @param combinedLink Link for the combined RSS feed
+     * @param combinedLanguage Language code for the combined RSS feed.
+     * @return The combined RSS XML content as UTF-8 encoded binary.
+     */
+    public byte[] merge(List<List<RssItem>> sources,
+                        String combinedTitle,
+                        String combinedImageURL,
+                        String combinedImageTitle,
+                        String combinedImageLink,
+                        String combinedDescription,
+                        String combinedLink,
+                        String combinedLanguage)
+        throws IOException, javax.xml.parsers.ParserConfigurationException,
+               java.lang.ClassNotFoundException, java.lang.InstantiationException, java.lang.IllegalAccessException
+    {
+        // Order the items of all feeds by date, feeds in the given order for items with the same date
+        List<RssItem> allItems = new ArrayList<RssItem>();
+        for (List<RssItem> items : sources) {
+            allItems.addAll(items);
+        }
+        List<RssItem> orderedItems = sortNewestFirst(allItems);
+        return render(orderedItems,
+                      combinedTitle,
+                      combinedImageURL,
+                      combinedImageTitle,
+                      combinedImageLink,
+                      combinedDescription,
+                      combinedLink,
+                      combinedLanguage);
+    }
 
+    /**
+     * Render items as an RSS feed, in the given order.
+     * @param items Items of the feed, in the order they are rendered
+     * @param combinedTitle Title text for the combined RSS feed
+     * @param combinedImageURL Image URl for the combined RSS feed
+     * @param combinedImageTitle Image title for the combined RSS feed
+     * @param combinedImageLink Image link for the combined RSS feed
+     * @param combinedDescription Description for the combined RSS feed
+     * @param combinedLink Link for the combined RSS feed
+     * @param combinedLanguage Language code for the combined RSS feed.
+     * @return The RSS XML content as UTF-8 encoded binary.
+     */
+    public byte[] render(List<RssItem> items,
+                         String combinedTitle,
+                         String combinedImageURL,
+                         String combinedImageTitle,
+                         String combinedImageLink,
+                         String combinedDescription,
+                         String combinedLink,
+                         String combinedLanguage)
+        throws IOException, javax.xml.parsers.ParserConfigurationException,
+               java.lang.ClassNotFoundException, java.lang.InstantiationException, java.lang.IllegalAccessException
+    {
         // Create empty RSS DOM tree
         DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
         DocumentBuilder builder = builderFactory.newDocumentBuilder();
@@ -175,20 +341,16 @@ public class RssXmlMerger
         createTextChild(resultDoc, channelElement, "link", combinedLink);
         createTextChild(resultDoc, channelElement, "language", combinedLanguage);
     
-        // Iterate dates in inverse order because sorting organized them so that oldest is first
         // Insert items in new DOM tree in correct order
-        for (int dateInd = uniqueDates.length-1; dateInd >= 0; dateInd--) {
-            String dateString = uniqueDates[dateInd];
-            for (Node item : dateItemsH.get(dateString)) {
-                Element newItemElement = resultDoc.createElement("item");
-                channelElement.appendChild(newItemElement);
-                createTextChild(resultDoc, newItemElement, "title", getChildTexts(item, "title"));
-                createTextChild(resultDoc, newItemElement, "link", getChildTexts(item, "link"));
-                createTextChild(resultDoc, newItemElement, "guid", getChildTexts(item, "guid"));
-                createTextChild(resultDoc, newItemElement, "description", getChildTexts(item, "description"));
-                createTextChild(resultDoc, newItemElement, "pubDate", getChildTexts(item, "pubDate"));
-                createTextChild(resultDoc, newItemElement, "dc:date", dateString);
-            }
+        for (RssItem item : items) {
+            Element newItemElement = resultDoc.createElement("item");
+            channelElement.appendChild(newItemElement);
+            createTextChild(resultDoc, newItemElement, "title", item.getTitle());
+            createTextChild(resultDoc, newItemElement, "link", item.getLink());
+            createTextChild(resultDoc, newItemElement, "guid", item.getGuid());
+            createTextChild(resultDoc, newItemElement, "description", item.getDescription());
+            createTextChild(resultDoc, newItemElement, "pubDate", item.getPubDate());
+            createTextChild(resultDoc, newItemElement, "dc:date", item.getDcDate());
         }
         // Extract resulting XML as UTF-8 encoded binary 
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
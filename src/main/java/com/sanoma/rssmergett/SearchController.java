@@ -0,0 +1,154 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import java.io.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.servlet.support.RequestContextUtils;
+
+import org.apache.log4j.*;
+
+@Controller
+@RequestMapping(value="/search")
+public class SearchController {
+
+    /**
+     * Spring Controller class for searching the items of the combined feed.
+     * The items are looked up from the full-text index of the channel (see
+     * RssSearchIndex) and returned as an RSS feed, or as JSON with
+     * format=json.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /* Logger for the class */
+    protected static final Logger logger = Logger.getLogger(SearchController.class);
+
+    /* Metrics of the requests */
+    private static final RssMetrics.Counter gRequestCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/search");
+    private static final RssMetrics.Histogram gRequestTimer = RssMetrics.timer(
+        "rssmergett_request_seconds", "Time to handle a request, by endpoint", "endpoint", "/search");
+    private static final RssMetrics.Counter gChannelRequestCounter = RssMetrics.counter(
+        "rssmergett_requests_total", "Requests by endpoint", "endpoint", "/search/{channel}");
+    private static final RssMetrics.Histogram gChannelRequestTimer = RssMetrics.timer(
+        "rssmergett_request_seconds", "Time to handle a request, by endpoint", "endpoint", "/search/{channel}");
+
+    /** Localized channel texts of the combined feed */
+    private FeedMetadataCache feedMetadataCache;
+
+    /** Setter for injecting the FeedMetadataCache bean.
+     * @param cache Injected FeedMetadataCache bean.
+     */
+    @Autowired
+    public void setFeedMetadataCache(FeedMetadataCache cache) {
+        feedMetadataCache = cache;
+    }
+
+    /**
+     * Action handler for searching the items of the combined feed.
+     * @param request The HTTP request
+     * @param response The HTTP response the results are written to
+     * @param q The words to search for; items containing all of them match
+     * @param offset Number of newest results to skip (optional)
+     * @param limit Maximum number of results (optional)
+     * @param since Only include items newer than this, epoch milliseconds, ISO-8601 or RFC-822 (optional)
+     * @param format "json" for JSON, RSS otherwise (optional)
+     */
+    @RequestMapping(method=RequestMethod.GET)
+    public void searchAction(HttpServletRequest request, HttpServletResponse response,
+                             @RequestParam(value="q", required=false) String q,
+                             @RequestParam(value="offset", required=false) String offset,
+                             @RequestParam(value="limit", required=false) String limit,
+                             @RequestParam(value="since", required=false) String since,
+                             @RequestParam(value="format", required=false) String format) throws Exception
+    {
+        logger.info("Incoming search query");
+        gRequestCounter.inc();
+        serve(request, response, RssFetchAndCombine.getDefaultChannel(), null,
+              q, offset, limit, since, format, gRequestTimer);
+    }
+
+    /**
+     * Action handler for searching the items of a named channel, see searchAction().
+     * @param channel Name of the channel
+     */
+    @RequestMapping(value="/{channel}", method=RequestMethod.GET)
+    public void searchChannelAction(HttpServletRequest request, HttpServletResponse response,
+                                    @PathVariable("channel") String channel,
+                                    @RequestParam(value="q", required=false) String q,
+                                    @RequestParam(value="offset", required=false) String offset,
+                                    @RequestParam(value="limit", required=false) String limit,
+                                    @RequestParam(value="since", required=false) String since,
+                                    @RequestParam(value="format", required=false) String format) throws Exception
+    {
+        logger.info("Incoming search query for channel " + channel);
+        gChannelRequestCounter.inc();
+        RssChannel rssChannel = RssFetchAndCombine.getChannel(channel);
+        if (rssChannel == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such channel: " + channel);
+            return;
+        }
+        serve(request, response, rssChannel, channel, q, offset, limit, since, format, gChannelRequestTimer);
+    }
+
+    /**
+     * Search a channel and write the results.
+     * @param channelName Name of the channel for the channel texts, null for the default channel
+     * @param timer Histogram the time of the request is recorded in
+     */
+    private void serve(final HttpServletRequest request, final HttpServletResponse response,
+                       final RssChannel channel, String channelName, final String q,
+                       String offset, String limit, String since, String format,
+                       final RssMetrics.Histogram timer) throws Exception
+    {
+        final long startNanos = System.nanoTime();
+
+        if (q == null || RssTokenizer.tokenizeQuery(q).isEmpty()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No words to search for in q");
+            return;
+        }
+        final RssPages.Query query;
+        try {
+            query = RssPages.Query.parse(offset, limit, since);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        final boolean json = "json".equalsIgnoreCase(format);
+        final FeedMetadata metadata = feedMetadataCache.get(RequestContextUtils.getLocale(request), channelName);
+
+        AsyncFeedRequest.Handler handler = new AsyncFeedRequest.Handler() {
+                public void handle(RssSnapshot snapshot) throws Exception {
+                    /* The snapshot is only waited for so that the index has been filled */
+                    FeedContent results = channel.search(q, query, metadata, snapshot.getGeneratedTime(), json);
+                    FeedContentWriter.write(request, response, results, channel.getMaxAgeSeconds(snapshot));
+                    timer.recordSince(startNanos);
+                    logger.info("Incoming search query done");
+                }
+            };
+
+        RssSnapshot snapshot;
+        try {
+            snapshot = AsyncFeedRequest.getSnapshot(request, response, channel, metadata, handler);
+        } catch (Throwable t) {
+            logger.error("Incoming search query failed with error", t);
+            throw new Exception("INTERNAL ERROR");
+        }
+
+        if (snapshot == null) {
+            /* Waiting for a refresh without holding the thread, the handler writes the response */
+            return;
+        }
+        handler.handle(snapshot);
+    }
+
+}
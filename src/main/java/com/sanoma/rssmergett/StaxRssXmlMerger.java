@@ -0,0 +1,582 @@
+package com.sanoma.rssmergett;
+
+import java.util.*;
+import java.io.*;
+import javax.xml.stream.*;
+
+public class StaxRssXmlMerger extends RssXmlMerger
+{
+    /**
+     * Streaming implementation of the RSS merger. The source feeds are read
+     * with a StAX pull parser straight into item records, the sources are
+     * k-way merged by item date, and the combined feed is written with a
+     * streaming XML writer. No DOM trees are built, so a merge allocates
+     * little more than the item texts themselves.
+     *
+     * The output is identical to the DOM based RssXmlMerger, except that
+     * CDATA sections in the source items are kept (the DOM path drops them),
+     * and &lt;item&gt; elements are matched by local name.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** Factory for the StAX parsers, thread safe once configured */
+    private static final XMLInputFactory gInputFactory = createInputFactory();
+
+    /** Factory for the StAX writers, thread safe once configured */
+    private static final XMLOutputFactory gOutputFactory = XMLOutputFactory.newInstance();
+
+    /* Indexes of the item fields collected while parsing */
+    private static final int TITLE = 0;
+    private static final int LINK = 1;
+    private static final int GUID = 2;
+    private static final int DESCRIPTION = 3;
+    private static final int PUB_DATE = 4;
+    private static final int DC_DATE = 5;
+    private static final int NR_FIELDS = 6;
+
+    public StaxRssXmlMerger()
+    {
+    }
+
+    private static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * Map an element name to the index of the item field it carries.
+     * @param reader Parser positioned at a start element
+     * @return Field index, or -1 if the element is not an item field
+     */
+    private static int fieldIndex(XMLStreamReader reader)
+    {
+        String name = reader.getLocalName();
+        String prefix = reader.getPrefix();
+        if (prefix != null && prefix.length() > 0) {
+            return ("dc".equals(prefix) && "date".equals(name)) ? DC_DATE : -1;
+        }
+        if ("title".equals(name)) return TITLE;
+        if ("link".equals(name)) return LINK;
+        if ("guid".equals(name)) return GUID;
+        if ("description".equals(name)) return DESCRIPTION;
+        if ("pubDate".equals(name)) return PUB_DATE;
+        return -1;
+    }
+
+    /**
+     * Parse the items of one RSS feed. Only items having a valid dc:date or
+     * pubDate are taken.
+     * @param input Input stream providing the RSS feed
+     * @return Items of the feed in document order
+     * @throws IOException If the RSS feed can not be read or is invalid XML.
+     */
+    public List<RssItem> parseItems(InputStream input) throws IOException
+    {
+        List<RssItem> items = new ArrayList<RssItem>();
+        StringBuilder[] fields = new StringBuilder[NR_FIELDS];
+        for (int i=0; i<NR_FIELDS; i++) {
+            fields[i] = new StringBuilder();
+        }
+        boolean[] seen = new boolean[NR_FIELDS];
+        /* Field index of each open element inside the current item, -1 for other elements */
+        int[] openFields = new int[16];
+        int depth = 0; // nesting depth inside the current item, 0 when outside items
+
+        XMLStreamReader reader = null;
+        try {
+            reader = gInputFactory.createXMLStreamReader(input);
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (depth > 0) {
+                        if (depth == openFields.length) {
+                            openFields = Arrays.copyOf(openFields, depth * 2);
+                        }
+                        int field = fieldIndex(reader);
+                        openFields[depth++] = field;
+                        if (field >= 0) seen[field] = true;
+                    } else if ("item".equals(reader.getLocalName())) {
+                        for (int i=0; i<NR_FIELDS; i++) {
+                            fields[i].setLength(0);
+                            seen[i] = false;
+                        }
+                        openFields[0] = -1;
+                        depth = 1;
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth > 0 && --depth == 0 && (seen[DC_DATE] || seen[PUB_DATE])) {
+                        RssItem item = createItem(fields[TITLE], fields[LINK], fields[GUID],
+                                                  fields[DESCRIPTION], fields[PUB_DATE], fields[DC_DATE]);
+                        if (item != null) {
+                            items.add(item);
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (depth > 0 && openFields[depth-1] >= 0) {
+                        fields[openFields[depth-1]].append(reader.getTextCharacters(),
+                                                          reader.getTextStart(),
+                                                          reader.getTextLength());
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw (IOException) new IOException("Invalid RSS feed: " + e.getMessage()).initCause(e);
+        } finally {
+            if (reader != null) {
+                try { reader.close(); } catch (Throwable tt) { /* ignore */ }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Combine already parsed RSS feeds into one.
+     * @param sources Items of each RSS feed to be combined
+     * @param combinedTitle Title text for the combined RSS feed
+     * @param combinedImageURL Image URl for the combined RSS feed
+     * @param combinedImageTitle Image title for the combined RSS feed
+     * @param combinedImageLink Image link for the combined RSS feed
+     * @param combinedDescription Description for the combined RSS feed
+     * @param combinedLink Link for the combined RSS feed
+     * @param combinedLanguage Language code for the combined RSS feed.
+     * @return The combined RSS XML content as UTF-8 encoded binary.
+     */
+    public byte[] merge(List<List<RssItem>> sources,
+                        String combinedTitle,
+                        String combinedImageURL,
+                        String combinedImageTitle,
+                        String combinedImageLink,
+                        String combinedDescription,
+                        String combinedLink,
+                        String combinedLanguage)
+        throws IOException
+    {
+        return render(mergeNewestFirst(sources),
+                      combinedTitle,
+                      combinedImageURL,
+                      combinedImageTitle,
+                      combinedImageLink,
+                      combinedDescription,
+                      combinedLink,
+                      combinedLanguage);
+    }
+
+    /**
+     * Render items as an RSS feed, in the given order.
+     * @param items Items of the feed, in the order they are rendered
+     * @param combinedTitle Title text for the combined RSS feed
+     * @param combinedImageURL Image URl for the combined RSS feed
+     * @param combinedImageTitle Image title for the combined RSS feed
+     * @param combinedImageLink Image link for the combined RSS feed
+     * @param combinedDescription Description for the combined RSS feed
+     * @param combinedLink Link for the combined RSS feed
+     * @param combinedLanguage Language code for the combined RSS feed.
+     * @return The RSS XML content as UTF-8 encoded binary.
+     */
+    public byte[] render(List<RssItem> items,
+                         String combinedTitle,
+                         String combinedImageURL,
+                         String combinedImageTitle,
+                         String combinedImageLink,
+                         String combinedDescription,
+                         String combinedLink,
+                         String combinedLanguage)
+        throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(estimateSize(items));
+        writeFeed(items,
+                  combinedTitle,
+                  combinedImageURL,
+                  combinedImageTitle,
+                  combinedImageLink,
+                  combinedDescription,
+                  combinedLink,
+                  combinedLanguage,
+                  bos);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Write items as an RSS feed to a stream, in the given order.
+     * @param items Items of the feed, in the order they are written
+     * @param combinedTitle Title text for the combined RSS feed
+     * @param combinedImageURL Image URl for the combined RSS feed
+     * @param combinedImageTitle Image title for the combined RSS feed
+     * @param combinedImageLink Image link for the combined RSS feed
+     * @param combinedDescription Description for the combined RSS feed
+     * @param combinedLink Link for the combined RSS feed
+     * @param combinedLanguage Language code for the combined RSS feed.
+     * @param outputStream Stream the UTF-8 encoded RSS XML is written to.
+     */
+    public void writeFeed(List<RssItem> items,
+                          String combinedTitle,
+                          String combinedImageURL,
+                          String combinedImageTitle,
+                          String combinedImageLink,
+                          String combinedDescription,
+                          String combinedLink,
+                          String combinedLanguage,
+                          OutputStream outputStream)
+        throws IOException
+    {
+        try {
+            XMLStreamWriter writer = gOutputFactory.createXMLStreamWriter(outputStream, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("rss");
+            writer.writeAttribute("version", "2.0");
+            writer.writeAttribute("xmlns:dc", "http://purl.org/dc/elements/1.1/");
+            writer.writeAttribute("xmlns:rdf", "http://www.w3.org/1999/02/22-rdf-syntax-ns#");
+            writer.writeStartElement("channel");
+            writeTextElement(writer, "title", combinedTitle);
+            writer.writeStartElement("image");
+            writeTextElement(writer, "url", combinedImageURL);
+            writeTextElement(writer, "title", combinedImageTitle);
+            writeTextElement(writer, "link", combinedImageLink);
+            writer.writeEndElement();
+            writeTextElement(writer, "description", combinedDescription);
+            writeTextElement(writer, "link", combinedLink);
+            writeTextElement(writer, "language", combinedLanguage);
+            for (RssItem item : items) {
+                writeItem(writer, item);
+            }
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw (IOException) new IOException("Writing combined RSS failed: " + e.getMessage()).initCause(e);
+        }
+    }
+
+    /**
+     * k-way merge of the sources, newest first.
+     * @param sources Items of each RSS feed
+     * @return All items, newest first
+     */
+    private static List<RssItem> mergeNewestFirst(List<List<RssItem>> sources)
+    {
+        int nrSources = sources.size();
+        int nrItems = 0;
+        List<List<RssItem>> sorted = new ArrayList<List<RssItem>>(nrSources);
+        for (List<RssItem> items : sources) {
+            sorted.add(sortNewestFirst(items));
+            nrItems += items.size();
+        }
+        List<RssItem> merged = new ArrayList<RssItem>(nrItems);
+        int[] positions = new int[nrSources];
+        int[] heap = new int[nrSources];
+        int heapSize = 0;
+        for (int s=0; s<nrSources; s++) {
+            if (!sorted.get(s).isEmpty()) {
+                heap[heapSize] = s;
+                siftUp(heap, heapSize++, sorted, positions);
+            }
+        }
+        while (heapSize > 0) {
+            int s = heap[0];
+            List<RssItem> items = sorted.get(s);
+            merged.add(items.get(positions[s]++));
+            if (positions[s] == items.size()) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, sorted, positions);
+        }
+        return merged;
+    }
+
+    /**
+     * Heap order of the sources: the newest head item first, ties resolved by
+     * source order so that the output matches the DOM path.
+     */
+    private static boolean before(int a, int b, List<List<RssItem>> sorted, int[] positions)
+    {
+        long dateA = sorted.get(a).get(positions[a]).getTimestamp();
+        long dateB = sorted.get(b).get(positions[b]).getTimestamp();
+        return dateA > dateB || (dateA == dateB && a < b);
+    }
+
+    private static void siftUp(int[] heap, int i, List<List<RssItem>> sorted, int[] positions)
+    {
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!before(heap[i], heap[parent], sorted, positions)) break;
+            int tmp = heap[i]; heap[i] = heap[parent]; heap[parent] = tmp;
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int heapSize, List<List<RssItem>> sorted, int[] positions)
+    {
+        int i = 0;
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= heapSize) break;
+            int smallest = left;
+            if (left + 1 < heapSize && before(heap[left + 1], heap[left], sorted, positions)) {
+                smallest = left + 1;
+            }
+            if (!before(heap[smallest], heap[i], sorted, positions)) break;
+            int tmp = heap[i]; heap[i] = heap[smallest]; heap[smallest] = tmp;
+            i = smallest;
+        }
+    }
+
+    /**
+     * Write one item of the combined feed.
+     */
+    private static void writeItem(XMLStreamWriter writer, RssItem item) throws XMLStreamException
+    {
+        writer.writeStartElement("item");
+        writeTextElement(writer, "title", item.getTitle());
+        writeTextElement(writer, "link", item.getLink());
+        writeTextElement(writer, "guid", item.getGuid());
+        writeTextElement(writer, "description", item.getDescription());
+        writeTextElement(writer, "pubDate", item.getPubDate());
+        writeTextElement(writer, "dc:date", item.getDcDate());
+        writer.writeEndElement();
+    }
+
+    /**
+     * Write an element with given text. Nothing is written if the text is null.
+     */
+    private static void writeTextElement(XMLStreamWriter writer, String tag, String text) throws XMLStreamException
+    {
+        if (text == null) return;
+        if (text.length() == 0) {
+            writer.writeEmptyElement(tag);
+            return;
+        }
+        writer.writeStartElement(tag);
+        writeText(writer, text);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Write text content. Carriage returns, C1 control characters and characters
+     * outside the basic multilingual plane are written as character references,
+     * the same way the DOM serializer of the DOM path writes them.
+     */
+    private static void writeText(XMLStreamWriter writer, String text) throws XMLStreamException
+    {
+        int start = 0;
+        int length = text.length();
+        for (int i=0; i<length; i++) {
+            char c = text.charAt(i);
+            if (c == '\r' || (c >= 0x7f && c <= 0x9f) || Character.isHighSurrogate(c)) {
+                if (i > start) {
+                    writer.writeCharacters(text.substring(start, i));
+                }
+                int codePoint = text.codePointAt(i);
+                writer.writeEntityRef("#" + codePoint);
+                i += Character.charCount(codePoint) - 1;
+                start = i + 1;
+            }
+        }
+        if (start == 0) {
+            writer.writeCharacters(text);
+        } else if (start < length) {
+            writer.writeCharacters(text.substring(start));
+        }
+    }
+
+    /**
+     * Estimate the size of the combined feed for sizing the output buffer.
+     */
+    private static int estimateSize(List<RssItem> items)
+    {
+        int size = 1024;
+        for (RssItem item : items) {
+            size += 160 + item.getTitle().length() + item.getLink().length() + item.getGuid().length()
+                + item.getDescription().length() + item.getPubDate().length() + item.getDcDate().length();
+        }
+        return size;
+    }
+
+    /**
+     * Test driver: merges the files with both engines, checks that the
+     * results match and compares cost. The DOM path drops the text of CDATA
+     * sections, so if the outputs differ and the files have CDATA, they are
+     * compared again with the CDATA written as escaped text; any other
+     * difference fails the check.
+     */
+    public static void main(String[] arg)
+    {
+        if (arg.length == 0) {
+            System.err.println("usage: java com.sanoma.rssmergett.StaxRssXmlMerger file1.xml file2.xml..\n");
+            System.exit(-10);
+        }
+        try {
+            byte[][] files = new byte[arg.length][];
+            for (int i=0; i<arg.length; i++) {
+                files[i] = readFile(arg[i]);
+            }
+            RssXmlMerger[] engines = new RssXmlMerger[] { new RssXmlMerger(), new StaxRssXmlMerger() };
+            byte[][] results = new byte[engines.length][];
+            for (int e=0; e<engines.length; e++) {
+                int rounds = 50;
+                long allocatedBefore = allocatedBytes();
+                long startTime = System.nanoTime();
+                for (int round=0; round<rounds; round++) {
+                    results[e] = mergeFiles(engines[e], files);
+                }
+                long micros = (System.nanoTime() - startTime) / 1000 / rounds;
+                long allocated = (allocatedBytes() - allocatedBefore) / rounds;
+                System.out.println(engines[e].getClass().getSimpleName() + ": " + results[e].length + " bytes, "
+                                   + micros + " us/merge, "
+                                   + (allocatedBefore < 0 ? "n/a" : (allocated / 1024) + " KiB") + " allocated/merge");
+            }
+            boolean same = Arrays.equals(results[0], results[1]);
+            int cdataSections = 0;
+            if (!same) {
+                /* The DOM path drops CDATA text, compare again with the CDATA sections written as escaped text */
+                byte[][] normalised = new byte[files.length][];
+                for (int i=0; i<files.length; i++) {
+                    normalised[i] = escapeCdata(files[i]);
+                    cdataSections += countCdata(files[i]);
+                }
+                if (cdataSections > 0) {
+                    same = Arrays.equals(mergeFiles(engines[0], normalised), mergeFiles(engines[1], normalised));
+                }
+            }
+            if (!same) {
+                System.out.println("Outputs DIFFER");
+                System.exit(1);
+            } else if (cdataSections > 0) {
+                System.out.println("Outputs are identical except for the text of " + cdataSections
+                                   + " CDATA sections, which only " + StaxRssXmlMerger.class.getSimpleName()
+                                   + " keeps");
+            } else {
+                System.out.println("Outputs are identical");
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static final byte[] CDATA_START = { '<', '!', '[', 'C', 'D', 'A', 'T', 'A', '[' };
+    private static final byte[] CDATA_END = { ']', ']', '>' };
+
+    /**
+     * Replace the CDATA sections of a feed with the same text escaped. Works
+     * on the bytes, which is safe for UTF-8 and the ISO-8859 encodings: the
+     * markup characters are never part of a multibyte character.
+     */
+    static byte[] escapeCdata(byte[] file)
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(file.length + 256);
+        int i = 0;
+        while (i < file.length) {
+            int start = indexOf(file, CDATA_START, i);
+            if (start < 0) {
+                break;
+            }
+            int end = indexOf(file, CDATA_END, start + CDATA_START.length);
+            if (end < 0) {
+                break;
+            }
+            bos.write(file, i, start - i);
+            for (int j=start + CDATA_START.length; j<end; j++) {
+                byte b = file[j];
+                if (b == '&') {
+                    writeAscii(bos, "&amp;");
+                } else if (b == '<') {
+                    writeAscii(bos, "&lt;");
+                } else if (b == '>') {
+                    writeAscii(bos, "&gt;");
+                } else {
+                    bos.write(b);
+                }
+            }
+            i = end + CDATA_END.length;
+        }
+        bos.write(file, i, file.length - i);
+        return bos.toByteArray();
+    }
+
+    private static int countCdata(byte[] file)
+    {
+        int count = 0;
+        for (int i = indexOf(file, CDATA_START, 0); i >= 0; i = indexOf(file, CDATA_START, i + CDATA_START.length)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from)
+    {
+        outer:
+        for (int i=from; i<=data.length - pattern.length; i++) {
+            for (int j=0; j<pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void writeAscii(ByteArrayOutputStream bos, String text)
+    {
+        for (int i=0; i<text.length(); i++) {
+            bos.write(text.charAt(i));
+        }
+    }
+
+    private static byte[] mergeFiles(RssXmlMerger merger, byte[][] files) throws Exception
+    {
+        InputStream[] inputs = new InputStream[files.length];
+        for (int i=0; i<files.length; i++) {
+            inputs[i] = new ByteArrayInputStream(files[i]);
+        }
+        return merger.merge(inputs,
+                            "combinedTitle",
+                            "combinedImageURL",
+                            "combinedImageTitle",
+                            "combinedImageLink",
+                            "combinedDescription",
+                            "combinedLink",
+                            "combinedLanguage");
+    }
+
+    private static byte[] readFile(String name) throws IOException
+    {
+        FileInputStream fis = new FileInputStream(name);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = fis.read(buffer)) != -1) {
+                bos.write(buffer, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            try { fis.close(); } catch (Throwable tt) { /* ignore */ }
+        }
+    }
+
+    /** @return Bytes allocated by the current thread so far, or -1 if the JVM can not tell */
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1L;
+    }
+
+}
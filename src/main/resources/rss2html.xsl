@@ -0,0 +1,29 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!-- Renders the combined RSS feed as HTML. Used by HtmlController. -->
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" version="1.0">
+<xsl:output method="html" encoding="UTF-8"/>
+<xsl:template match="/">
+<html>
+  <head>
+     <title>
+      <xsl:value-of select="/rss/channel/title"/>
+     </title>
+  </head>
+  <body>
+    <xsl:for-each select="/rss/channel/item">
+      <hr/>
+      <a>
+        <xsl:attribute name="href">
+          <xsl:value-of select="link"/>
+        </xsl:attribute>
+        <xsl:value-of select="title"/>
+      </a>
+      <br/>
+      <xsl:value-of select="pubDate"/>
+      <br/>
+      <xsl:value-of select="description"/>
+    </xsl:for-each>
+  </body>
+</html>
+</xsl:template>
+</xsl:stylesheet>
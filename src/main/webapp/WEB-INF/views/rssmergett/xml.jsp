@@ -1 +0,0 @@
-<%@page contentType="text/xml;charset=UTF-8"%><%@page pageEncoding="UTF-8"%><%@ page session="false" %><%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %><%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %><%@ taglib prefix="form" uri="http://www.springframework.org/tags/form" %>${xml}
@@ -0,0 +1,144 @@
+package com.sanoma.rssmergett;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongHashTableTest
+{
+    /**
+     * Tests of the open addressing LongHashTable.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    @Test
+    public void testPutGetRemove()
+    {
+        LongHashTable<String> table = new LongHashTable<String>(4);
+        assertNull(table.put(1L, "one"));
+        assertNull(table.put(0L, "zero"));
+        assertNull(table.put(-1L, "minus one"));
+        assertEquals("one", table.put(1L, "uno"));
+        assertEquals(3, table.size());
+        assertEquals("uno", table.get(1L));
+        assertEquals("zero", table.get(0L));
+        assertEquals("minus one", table.get(-1L));
+        assertNull(table.get(2L));
+        assertEquals("zero", table.remove(0L));
+        assertNull(table.remove(0L));
+        assertNull(table.get(0L));
+        assertEquals(2, table.size());
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(1L));
+    }
+
+    @Test
+    public void testBackwardShiftDelete()
+    {
+        /* Keys with the same home slot form one probe run, also across the end of the array */
+        LongHashTable<Long> table = new LongHashTable<Long>(8);
+        long[] run = sameSlotKeys(15, 6);
+        long[] next = sameSlotKeys(0, 3);
+        for (long key : run) table.put(key, key);
+        for (long key : next) table.put(key, key);
+
+        /* Remove from the start, the middle and the end of the runs */
+        long[] removed = { run[0], run[3], next[1], run[5] };
+        for (long key : removed) {
+            assertEquals(Long.valueOf(key), table.remove(key));
+        }
+        assertEquals(run.length + next.length - removed.length, table.size());
+        for (long key : removed) {
+            assertNull(table.get(key));
+        }
+        for (long key : concat(run, next)) {
+            if (!contains(removed, key)) {
+                assertEquals(Long.valueOf(key), table.get(key));
+            }
+        }
+        for (long key : removed) {
+            table.put(key, key);
+        }
+        for (long key : concat(run, next)) {
+            assertEquals(Long.valueOf(key), table.get(key));
+        }
+    }
+
+    @Test
+    public void testResize()
+    {
+        LongHashTable<Long> table = new LongHashTable<Long>(1);
+        for (long key=0; key<10000; key++) {
+            table.put(key * 31, key);
+        }
+        assertEquals(10000, table.size());
+        for (long key=0; key<10000; key++) {
+            assertEquals(Long.valueOf(key), table.get(key * 31));
+        }
+        long[] keys = table.keys();
+        Arrays.sort(keys);
+        assertEquals(10000, keys.length);
+        assertEquals(31L, keys[1]);
+    }
+
+    @Test
+    public void testAgainstHashMap()
+    {
+        Random random = new Random(42);
+        LongHashTable<Long> table = new LongHashTable<Long>(16);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        for (int i=0; i<200000; i++) {
+            long key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), table.remove(key));
+            } else {
+                long value = random.nextLong();
+                assertEquals(expected.put(key, value), table.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (long key=-1000; key<1000; key++) {
+            assertEquals(expected.get(key), table.get(key));
+        }
+    }
+
+    /**
+     * Find keys whose home slot is the given one in a table of 16 slots,
+     * using the same spreading as LongHashTable.slot().
+     */
+    private static long[] sameSlotKeys(int slot, int count)
+    {
+        long[] keys = new long[count];
+        int n = 0;
+        for (long key=1; n<count; key++) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            if (((int) (h ^ (h >>> 32)) & 15) == slot) {
+                keys[n++] = key;
+            }
+        }
+        return keys;
+    }
+
+    private static long[] concat(long[] a, long[] b)
+    {
+        long[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static boolean contains(long[] keys, long key)
+    {
+        for (long k : keys) {
+            if (k == key) return true;
+        }
+        return false;
+    }
+}
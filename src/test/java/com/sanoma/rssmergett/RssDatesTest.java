@@ -0,0 +1,128 @@
+package com.sanoma.rssmergett;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RssDatesTest
+{
+    /**
+     * Tests of the ISO-8601 and RFC-822 date parsers of RssDates.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    /** 2013-05-20T12:00:00Z */
+    private static final long NOON_UTC = 1369051200000L;
+
+    private static final long HOUR = 3600L * 1000;
+
+    @Test
+    public void testIsoOffsets()
+    {
+        assertEquals(NOON_UTC, RssDates.parseIsoDate("2013-05-20T12:00:00Z"));
+        assertEquals(NOON_UTC, RssDates.parseIsoDate("2013-05-20T12:00:00z"));
+        assertEquals(NOON_UTC, RssDates.parseIsoDate("2013-05-20T12:00:00"));
+        assertEquals(NOON_UTC - 3 * HOUR, RssDates.parseIsoDate("2013-05-20T12:00:00+03:00"));
+        assertEquals(NOON_UTC - 3 * HOUR, RssDates.parseIsoDate("2013-05-20T12:00:00+0300"));
+        assertEquals(NOON_UTC - 3 * HOUR, RssDates.parseIsoDate("2013-05-20T12:00:00+03"));
+        assertEquals(NOON_UTC + 5 * HOUR + 30 * 60000L, RssDates.parseIsoDate("2013-05-20T12:00:00-05:30"));
+        assertEquals(NOON_UTC - 3 * HOUR, RssDates.parseIsoDate("2013-05-20T12:00+03:00"));
+        assertEquals(NOON_UTC - 12 * HOUR, RssDates.parseIsoDate("2013-05-20"));
+        assertEquals(NOON_UTC, RssDates.parseIsoDate(" 2013-05-20 12:00:00Z\n"));
+    }
+
+    @Test
+    public void testIsoFractionalSeconds()
+    {
+        assertEquals(NOON_UTC + 500, RssDates.parseIsoDate("2013-05-20T12:00:00.5Z"));
+        assertEquals(NOON_UTC + 123, RssDates.parseIsoDate("2013-05-20T12:00:00.123Z"));
+        assertEquals(NOON_UTC + 123, RssDates.parseIsoDate("2013-05-20T12:00:00.123456789Z"));
+        assertEquals(NOON_UTC + 250 - 3 * HOUR, RssDates.parseIsoDate("2013-05-20T12:00:00,25+03:00"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-05-20T12:00:00.Z"));
+    }
+
+    @Test
+    public void testInvalidIsoDates()
+    {
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate(null));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate(""));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-13-20T12:00:00Z"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-00-20T12:00:00Z"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-05-32T12:00:00Z"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-05-00T12:00:00Z"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-04-31T12:00:00Z"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-02-29T12:00:00Z"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-05-20T24:00:00Z"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-05-20T12:60:00Z"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-05-20T12:00:00+24:00"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-05-20T12:00:00+03:"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("2013-05-20T12:00:00 junk"));
+        assertEquals(RssDates.INVALID, RssDates.parseIsoDate("20.05.2013"));
+        assertEquals(RssDates.toEpochMillis(2012, 2, 29, 0, 0, 0, 0), RssDates.parseIsoDate("2012-02-29"));
+    }
+
+    @Test
+    public void testRfc822NamedZones()
+    {
+        assertEquals(NOON_UTC, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 GMT"));
+        assertEquals(NOON_UTC, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 UT"));
+        assertEquals(NOON_UTC, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 Z"));
+        assertEquals(NOON_UTC, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00"));
+        assertEquals(NOON_UTC + 5 * HOUR, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 EST"));
+        assertEquals(NOON_UTC + 4 * HOUR, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 EDT"));
+        assertEquals(NOON_UTC + 6 * HOUR, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 CST"));
+        assertEquals(NOON_UTC + 6 * HOUR, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 MDT"));
+        assertEquals(NOON_UTC + 8 * HOUR, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 pst"));
+        assertEquals(NOON_UTC - 3 * HOUR, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 +0300"));
+        assertEquals(NOON_UTC + 90 * 60000L, RssDates.parseRfc822Date("20 May 2013 12:00 -0130"));
+    }
+
+    @Test
+    public void testRfc822TwoDigitYears()
+    {
+        assertEquals(NOON_UTC, RssDates.parseRfc822Date("Mon, 20 May 13 12:00:00 GMT"));
+        assertEquals(RssDates.toEpochMillis(2049, 1, 1, 0, 0, 0, 0), RssDates.parseRfc822Date("1 Jan 49 00:00 GMT"));
+        assertEquals(RssDates.toEpochMillis(1950, 1, 1, 0, 0, 0, 0), RssDates.parseRfc822Date("1 Jan 50 00:00 GMT"));
+        assertEquals(RssDates.toEpochMillis(1999, 12, 31, 23, 59, 59, 0),
+                     RssDates.parseRfc822Date("Fri, 31 Dec 99 23:59:59 GMT"));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Mon, 20 May 213 12:00:00 GMT"));
+    }
+
+    @Test
+    public void testInvalidRfc822Dates()
+    {
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date(null));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date(""));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Mon, 32 May 2013 12:00:00 GMT"));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Mon, 0 May 2013 12:00:00 GMT"));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Thu, 31 Apr 2013 12:00:00 GMT"));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Fri, 29 Feb 2013 12:00:00 GMT"));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Mon, 20 Mai 2013 12:00:00 GMT"));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Mon, 20 May 2013 25:00:00 GMT"));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 +0360"));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Mon, 20 May 2013 12:00:00 +03"));
+        assertEquals(RssDates.INVALID, RssDates.parseRfc822Date("Mon, 20 May 2013"));
+        assertEquals(RssDates.toEpochMillis(2012, 2, 29, 12, 0, 0, 0),
+                     RssDates.parseRfc822Date("Wed, 29 Feb 2012 12:00:00 GMT"));
+    }
+
+    @Test
+    public void testParseDateAndItemDate()
+    {
+        assertEquals(NOON_UTC, RssDates.parseDate("2013-05-20T12:00:00Z"));
+        assertEquals(NOON_UTC, RssDates.parseDate("Mon, 20 May 2013 12:00:00 GMT"));
+        assertEquals(NOON_UTC, RssDates.parseItemDate("2013-05-20T12:00:00Z", "Tue, 21 May 2013 12:00:00 GMT"));
+        assertEquals(NOON_UTC, RssDates.parseItemDate("bogus", "Mon, 20 May 2013 12:00:00 GMT"));
+        assertEquals(NOON_UTC, RssDates.parseItemDate(null, "Mon, 20 May 2013 12:00:00 GMT"));
+        assertEquals(RssDates.INVALID, RssDates.parseItemDate("bogus", "bogus"));
+    }
+
+    @Test
+    public void testFormatIsoDate()
+    {
+        assertEquals("2013-05-20T12:00:00Z", RssDates.formatIsoDate(NOON_UTC));
+        assertEquals("1969-12-31T23:59:59Z", RssDates.formatIsoDate(-1000L));
+        assertEquals(NOON_UTC, RssDates.parseIsoDate(RssDates.formatIsoDate(NOON_UTC)));
+    }
+}
@@ -0,0 +1,152 @@
+package com.sanoma.rssmergett;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RssItemIndexTest
+{
+    /**
+     * Tests of RssItemIndex: deduplication, the ownership of items by their
+     * source, the retention window and the maximum item count.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    private static final long HOUR = 3600L * 1000;
+
+    /** Current time of the tests */
+    private static final long NOW = 1000L * HOUR;
+
+    @Test
+    public void testNewestFirstAndDeduplicated()
+    {
+        RssItemIndex index = new RssItemIndex(100, 24 * HOUR);
+        List<RssItem> a = source(item("1", "a", 3), item("2", "a", 1));
+        List<RssItem> b = source(item("3", "b", 2), item("1", "b", 3));
+        assertTrue(index.update(sources(a, b), NOW));
+        assertEquals(Arrays.asList("1/a", "3/b", "2/a"), titles(index));
+        assertEquals(3, index.getLastInserted().size());
+
+        /* The same lists again are skipped */
+        assertFalse(index.update(sources(a, b), NOW));
+        assertEquals(0, index.getLastInserted().size());
+    }
+
+    @Test
+    public void testOwningSourceKeepsItem()
+    {
+        RssItemIndex index = new RssItemIndex(100, 24 * HOUR);
+        List<RssItem> a = source(item("1", "a", 3));
+        index.update(sources(a, source(item("1", "b", 3))), NOW);
+        assertEquals(Arrays.asList("1/a"), titles(index));
+
+        /* Another version with the same date in a changed source does not replace it */
+        assertFalse(index.update(sources(a, source(item("1", "b2", 3))), NOW));
+        assertEquals(Arrays.asList("1/a"), titles(index));
+
+        /* A newer version does */
+        assertTrue(index.update(sources(a, source(item("1", "b3", 4))), NOW));
+        assertEquals(Arrays.asList("1/b3"), titles(index));
+    }
+
+    @Test
+    public void testChangedOwnerReplacesItem()
+    {
+        RssItemIndex index = new RssItemIndex(100, 24 * HOUR);
+        List<RssItem> b = source(item("1", "b", 3));
+        index.update(sources(source(item("1", "a", 3)), b), NOW);
+        assertEquals(Arrays.asList("1/a"), titles(index));
+
+        /* The owning source changes its version */
+        assertTrue(index.update(sources(source(item("1", "a2", 3)), b), NOW));
+        assertEquals(Arrays.asList("1/a2"), titles(index));
+
+        /* Once the owning source is dropped, the version of another source wins */
+        assertTrue(index.update(sources(source(item("1", "b2", 3))), NOW));
+        assertEquals(Arrays.asList("1/b2"), titles(index));
+    }
+
+    @Test
+    public void testRetention()
+    {
+        RssItemIndex index = new RssItemIndex(100, 10 * HOUR);
+        List<RssItem> a = source(item("1", "a", 0), item("2", "a", 5), item("3", "a", -1));
+        assertTrue(index.update(sources(a), NOW));
+        assertEquals(Arrays.asList("2/a", "1/a"), titles(index));
+
+        /* Items age out even when no source changes */
+        assertTrue(index.update(sources(a), NOW + 2 * HOUR));
+        assertEquals(Arrays.asList("2/a"), titles(index));
+        assertFalse(index.update(sources(a), NOW + 2 * HOUR));
+        assertTrue(index.update(sources(a), NOW + 6 * HOUR));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testMaxItems()
+    {
+        RssItemIndex index = new RssItemIndex(3, 100 * HOUR);
+        List<RssItem> a = source(item("1", "a", 1), item("2", "a", 2), item("3", "a", 3));
+        List<RssItem> b = source(item("4", "b", 4), item("5", "b", 5));
+        assertTrue(index.update(sources(a, b), NOW));
+        assertEquals(Arrays.asList("5/b", "4/b", "3/a"), titles(index));
+        assertEquals(3, index.getTimestamps().length);
+        assertEquals(Arrays.asList("3/a", "4/b", "5/b"), titles(index.getLastInserted()));
+
+        /* The evicted items are not inserted again while their source has them, and an
+           item that would be evicted at once is not a change either */
+        List<RssItem> a2 = source(item("1", "a", 1), item("2", "a", 2), item("3", "a", 3), item("0", "a", 0));
+        assertFalse(index.update(sources(a2, b), NOW));
+        List<RssItem> b2 = source(item("1", "b", 1), item("4", "b", 4), item("5", "b", 5));
+        assertFalse(index.update(sources(a2, b2), NOW));
+        assertEquals(Arrays.asList("5/b", "4/b", "3/a"), titles(index));
+
+        /* A newer version of an evicted item fits */
+        assertTrue(index.update(sources(source(item("2", "a3", 6), item("3", "a3", 3)), b2), NOW));
+        assertEquals(Arrays.asList("2/a3", "5/b", "4/b"), titles(index));
+        assertEquals(Arrays.asList("2/a3"), titles(index.getLastInserted()));
+    }
+
+    /**
+     * Create an item whose title shows its id and the source version it
+     * came from, dated the given number of hours after the epoch of the
+     * tests (NOW - 10 hours).
+     */
+    private static RssItem item(String id, String version, int hours)
+    {
+        long timestamp = NOW - 10 * HOUR + hours * HOUR;
+        return new RssItem(id + "/" + version, "http://example.com/" + id, "http://example.com/" + id,
+                           "", "", RssDates.formatIsoDate(timestamp), timestamp);
+    }
+
+    private static List<RssItem> source(RssItem... items)
+    {
+        return new ArrayList<RssItem>(Arrays.asList(items));
+    }
+
+    private static List<List<RssItem>> sources(List<RssItem>... sources)
+    {
+        return Arrays.asList(sources);
+    }
+
+    private static List<String> titles(RssItemIndex index)
+    {
+        return titles(index.getItems());
+    }
+
+    private static List<String> titles(List<RssItem> items)
+    {
+        List<String> titles = new ArrayList<String>(items.size());
+        for (RssItem item : items) {
+            titles.add(item.getTitle());
+        }
+        return titles;
+    }
+}
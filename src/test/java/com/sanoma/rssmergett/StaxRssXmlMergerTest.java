@@ -0,0 +1,143 @@
+package com.sanoma.rssmergett;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class StaxRssXmlMergerTest
+{
+    /**
+     * Checks that the streaming StaxRssXmlMerger produces the same bytes as
+     * the DOM based RssXmlMerger for the fixture feeds in
+     * src/test/resources/feeds.
+     *
+     * @author Tuomas Tynjälä
+     */
+
+    private static final String[] FEEDS = {
+        "pubdate.xml", "duplicates.xml", "characters.xml", "latin1.xml"
+    };
+
+    @Test
+    public void testEnginesProduceSameBytes() throws Exception
+    {
+        byte[][] files = readFeeds(FEEDS);
+        byte[] dom = merge(new RssXmlMerger(), files);
+        byte[] stax = merge(new StaxRssXmlMerger(), files);
+        assertArrayEquals(dom, stax);
+    }
+
+    @Test
+    public void testEachFeedOnItsOwn() throws Exception
+    {
+        for (String feed : FEEDS) {
+            byte[][] files = readFeeds(feed);
+            assertArrayEquals(feed, merge(new RssXmlMerger(), files), merge(new StaxRssXmlMerger(), files));
+        }
+    }
+
+    @Test
+    public void testCdata() throws Exception
+    {
+        byte[][] files = readFeeds("cdata.xml", "duplicates.xml");
+        String stax = new String(merge(new StaxRssXmlMerger(), files), "UTF-8");
+        assertTrue(stax, stax.contains("&lt;p&gt;Hello &lt;b&gt;world&lt;/b&gt; &amp;amp; more&lt;/p&gt;"));
+        assertTrue(stax, stax.contains("Before inside &lt; &amp; &gt; after"));
+
+        /* Only the text of the CDATA sections differs: the DOM path drops it */
+        assertFalse(stax.equals(new String(merge(new RssXmlMerger(), files), "UTF-8")));
+        byte[][] escaped = new byte[files.length][];
+        for (int i=0; i<files.length; i++) {
+            escaped[i] = StaxRssXmlMerger.escapeCdata(files[i]);
+        }
+        byte[] stax2 = merge(new StaxRssXmlMerger(), escaped);
+        assertArrayEquals(merge(new RssXmlMerger(), escaped), stax2);
+        assertEquals(stax, new String(stax2, "UTF-8"));
+    }
+
+    @Test
+    public void testPubDateOnlyItems() throws Exception
+    {
+        String stax = new String(merge(new StaxRssXmlMerger(), readFeeds("pubdate.xml")), "UTF-8");
+        assertTrue(stax, stax.contains("<pubDate>Fri, 16 Oct 2026 09:15:00 +0300</pubDate><dc:date>2026-10-16T06:15:00Z</dc:date>"));
+        assertTrue(stax, stax.contains("<dc:date>2026-10-16T06:45:00Z</dc:date>"));
+        assertTrue(stax, stax.contains("<dc:date>2026-10-16T09:30:00Z</dc:date>"));
+        assertFalse(stax, stax.contains("Invalid date"));
+        assertTrue(stax, stax.indexOf("Both dates") < stax.indexOf("Named zone"));
+        assertTrue(stax, stax.indexOf("Named zone") < stax.indexOf("Only a pubDate"));
+    }
+
+    @Test
+    public void testDuplicateGuidsAreKept() throws Exception
+    {
+        String stax = new String(merge(new StaxRssXmlMerger(), readFeeds("cdata.xml", "duplicates.xml")), "UTF-8");
+        assertEquals(stax, 2, count(stax, "<guid>http://example.com/dup/1</guid>"));
+        assertEquals(stax, 2, count(stax, "<guid>http://example.com/cdata/1</guid>"));
+        assertTrue(stax, stax.indexOf("First copy") < stax.indexOf("Second copy"));
+    }
+
+    @Test
+    public void testCharacters() throws Exception
+    {
+        String stax = new String(merge(new StaxRssXmlMerger(), readFeeds("characters.xml", "latin1.xml")), "UTF-8");
+        assertTrue(stax, stax.contains("Ääkköset ja €uro"));
+        assertTrue(stax, stax.contains("Hyvää päivää"));
+        assertTrue(stax, stax.contains("C1 controls &#133; and &#150;"));
+        assertTrue(stax, stax.contains("Numeric &#128;&#133;&#159; references and &lt;escaped&gt; markup"));
+        assertTrue(stax, stax.contains("&#128512; emoji"));
+        assertTrue(stax, stax.contains("<link>http://example.com/chars/1?a=1&amp;b=2</link>"));
+    }
+
+    private static int count(String text, String part)
+    {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + part.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] merge(RssXmlMerger merger, byte[][] files) throws Exception
+    {
+        InputStream[] inputs = new InputStream[files.length];
+        for (int i=0; i<files.length; i++) {
+            inputs[i] = new ByteArrayInputStream(files[i]);
+        }
+        return merger.merge(inputs,
+                            "combinedTitle",
+                            "combinedImageURL",
+                            "combinedImageTitle",
+                            "combinedImageLink",
+                            "combinedDescription",
+                            "combinedLink",
+                            "fi");
+    }
+
+    private static byte[][] readFeeds(String... names) throws IOException
+    {
+        byte[][] files = new byte[names.length][];
+        for (int i=0; i<names.length; i++) {
+            InputStream is = StaxRssXmlMergerTest.class.getResourceAsStream("/feeds/" + names[i]);
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    bos.write(buffer, 0, n);
+                }
+                files[i] = bos.toByteArray();
+            } finally {
+                try { is.close(); } catch (Throwable tt) { /* ignore */ }
+            }
+        }
+        return files;
+    }
+}